@@ -0,0 +1,7293 @@
+package cardpayment;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+public class CardPaymentSystem extends JFrame implements Serializable {
+    // App constants
+    private static final long MIN_BALANCE = 100_00; // paisa
+    private static final String DATA_FILE = "users.dat";
+    private static final String JOURNAL_FILE = "users.journal";
+    private static final String LEDGER_FILE = "ledger.dat";
+    private static final String LOG_FILE = "app.log";
+    private static final String FORM_KEY = "cardpayment.idempotencyKey"; // client property on a form's submit button
+
+    // In memory state
+    private static UserDirectory users = new UserDirectory();
+    private static ShardedStore store;
+    private static PaymentEngine engine;
+    private static final SessionManager sessions = SessionManager.fromSystemProperties();
+    private static final LoginThrottle loginThrottle = LoginThrottle.fromSystemProperties();
+
+    // UI shared
+    private CardLayout cardLayout;
+    private JPanel cardPanel;
+    private JLabel welcomeLabel;
+    private final HistoryTableModel historyModel = new HistoryTableModel();
+    private JLabel saveStatus;
+    // This terminal's login; null when logged out
+    private SessionManager.Session session;
+
+    public CardPaymentSystem() {
+        setTitle("1 Card Payment System");
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(900, 650);
+        setLocationRelativeTo(null);
+
+        // Load user data
+        loadUsers();
+
+        // Initialize UI
+        initUI();
+
+        setVisible(true);
+    }
+
+    private void initUI() {
+        cardLayout = new CardLayout();
+        cardPanel = new JPanel(cardLayout);
+        cardPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+
+        // Create panels
+        createWelcomePanel();
+        createLoginPanel();
+        createRegistrationPanel();
+        createUserMenuPanel();
+        createBalancePanel();
+        createDepositPanel();
+        createWithdrawPanel();
+        createTransferPanel();
+        createTransactionHistoryPanel();
+        createConvocationPanel();
+        createBillPaymentPanel();
+        createBulkDisbursementPanel();
+        createUpdateInfoPanel();       // completed
+        createChangePinPanel();        // completed
+        createDeleteAccountPanel();    // completed
+        createUserDetailsPanel();      // completed
+
+        // Pending-save indicator; the listener fires off the EDT, so it just
+        // schedules a re-read of the count
+        saveStatus = new JLabel();
+        saveStatus.setBorder(BorderFactory.createEmptyBorder(4, 15, 4, 15));
+        saveStatus.setForeground(new Color(100, 100, 100));
+        showPendingWrites();
+        store.onPendingChange(n -> SwingUtilities.invokeLater(this::showPendingWrites));
+
+        add(cardPanel);
+        add(saveStatus, BorderLayout.SOUTH);
+        cardLayout.show(cardPanel, "Welcome");
+    }
+    // Panels
+    private void createWelcomePanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(BorderFactory.createEmptyBorder(50, 50, 50, 50));
+        panel.setBackground(new Color(240, 248, 255));
+
+        JLabel title = new JLabel("Welcome to 1 Card Payment System", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 28));
+        title.setForeground(new Color(0, 102, 204));
+
+        JLabel subtitle = new JLabel("Secure and convenient digital payments", JLabel.CENTER);
+        subtitle.setFont(new Font("Arial", Font.PLAIN, 16));
+        subtitle.setForeground(new Color(100, 100, 100));
+
+        JPanel buttonPanel = new JPanel(new GridLayout(2, 1, 15, 15));
+        buttonPanel.setBorder(BorderFactory.createEmptyBorder(20, 50, 20, 50));
+        buttonPanel.setOpaque(false);
+
+        JButton loginBtn = createStyledButton("Login", new Color(0, 153, 204), 40);
+        JButton registerBtn = createStyledButton("Create Account", new Color(76, 175, 80), 40);
+
+        loginBtn.addActionListener(e -> cardLayout.show(cardPanel, "Login"));
+        registerBtn.addActionListener(e -> cardLayout.show(cardPanel, "Register"));
+
+        buttonPanel.add(loginBtn);
+        buttonPanel.add(registerBtn);
+
+        JPanel titlePanel = new JPanel(new BorderLayout());
+        titlePanel.setOpaque(false);
+        titlePanel.add(title, BorderLayout.NORTH);
+        titlePanel.add(subtitle, BorderLayout.CENTER);
+
+        panel.add(titlePanel, BorderLayout.NORTH);
+        panel.add(buttonPanel, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "Welcome");
+    }
+
+    private void createLoginPanel() {
+        JPanel panel = new JPanel(new GridBagLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(15, 15, 15, 15);
+
+        JLabel title = new JLabel("Login to Your Account", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JLabel phoneLabel = new JLabel("Phone Number:");
+        phoneLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField phoneField = new JTextField(20);
+        phoneField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel pinLabel = new JLabel("PIN:");
+        pinLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JPasswordField pinField = new JPasswordField(20);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JButton loginBtn = createStyledButton("Login", new Color(0, 153, 204), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        loginBtn.addActionListener(e -> {
+            String phone = phoneField.getText().trim();
+            String pin = new String(pinField.getPassword());
+
+            if (phone.isEmpty() || pin.isEmpty()) {
+                showError("Please enter both phone number and PIN");
+                return;
+            }
+
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            long wait = loginThrottle.check(phone, now);
+            if (wait > 0) {
+                Metrics.LOGIN.record(Metrics.Login.THROTTLED, System.nanoTime() - start);
+                showError("Too many login attempts. Try again in " + (wait + 999) / 1000 + " seconds.");
+                return;
+            }
+
+            User user = findUserByPhone(phone);
+            loginBtn.setEnabled(false);
+            CompletableFuture.supplyAsync(() -> {
+                boolean ok = PinHasher.verify(user, pin);
+                if (ok) PinHasher.upgrade(user, pin, store);
+                return ok;
+            }).whenCompleteAsync((verified, ex) -> {
+                loginBtn.setEnabled(true);
+                if (ex != null) {
+                    showError("PIN check failed: " + ex.getMessage());
+                    return;
+                }
+                Metrics.LOGIN.record(verified ? Metrics.Login.OK : Metrics.Login.REFUSED, System.nanoTime() - start);
+                if (verified) {
+                    loginThrottle.succeeded(phone);
+                    session = sessions.open(user, System.nanoTime());
+                    Logger.log("User logged in: " + user.getUsername());
+                    welcomeLabel.setText("Welcome, " + user.getFullName() + " (" + user.getUsername() + ")");
+                    cardLayout.show(cardPanel, "UserMenu");
+                    showSuccess("Login successful!");
+                    phoneField.setText("");
+                    pinField.setText("");
+                } else {
+                    long blocked = loginThrottle.failed(phone, now);
+                    if (blocked > 0) Logger.log("Login attempts for " + phone + " blocked for " + blocked + " ms");
+                    showError("Invalid phone number or PIN");
+                }
+            }, SwingUtilities::invokeLater);
+        });
+
+        backBtn.addActionListener(e -> {
+            phoneField.setText("");
+            pinField.setText("");
+            cardLayout.show(cardPanel, "Welcome");
+        });
+
+        gbc.gridwidth = 2;
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        panel.add(title, gbc);
+
+        gbc.gridwidth = 1;
+        gbc.gridy = 1;
+        panel.add(phoneLabel, gbc);
+
+        gbc.gridx = 1;
+        panel.add(phoneField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        panel.add(pinLabel, gbc);
+
+        gbc.gridx = 1;
+        panel.add(pinField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 3;
+        panel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        panel.add(loginBtn, gbc);
+
+        cardPanel.add(panel, "Login");
+    }
+
+    private void createRegistrationPanel() {
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+
+        JLabel title = new JLabel("Create New Account", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridLayout(0, 2, 10, 10));
+        formPanel.setBackground(new Color(240, 248, 255));
+
+        // Personal Information
+        JTextField usernameField = new JTextField();
+        JTextField phoneField = new JTextField();
+        JPasswordField pinField = new JPasswordField();
+       // JTextField fullNameField = new JTextField();
+       // JTextField dobField = new JTextField();
+       // JTextField genderField = new JTextField();
+        JTextField emailField = new JTextField();
+
+        // Family Information
+       // JTextField motherField = new JTextField();
+       // JTextField fatherField = new JTextField();
+
+        // Identification
+        JTextField nidField = new JTextField();
+      //  JTextField birthCertField = new JTextField();
+
+        // Address
+       // JTextField permAddrField = new JTextField();
+       // JTextField presAddrField = new JTextField();
+
+        addFormField(formPanel, "Username*:", usernameField);
+        addFormField(formPanel, "Phone Number*:", phoneField);
+        addFormField(formPanel, "Email:", emailField);
+        addFormField(formPanel, "National ID:", nidField);
+        addFormField(formPanel, "PIN*:", pinField);
+        //addFormField(formPanel, "Full Name*:", fullNameField);
+        //addFormField(formPanel, "Date of Birth:", dobField);
+        //addFormField(formPanel, "Gender:", genderField);
+        //addFormField(formPanel, "Email:", emailField);
+        //addFormField(formPanel, "Mother's Name:", motherField);
+        //addFormField(formPanel, "Father's Name:", fatherField);
+        //addFormField(formPanel, "National ID:", nidField);
+        //addFormField(formPanel, "Birth Certificate:", birthCertField);
+        //addFormField(formPanel, "Permanent Address:", permAddrField);
+        //addFormField(formPanel, "Present Address:", presAddrField);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 15));
+        buttonPanel.setOpaque(false);
+
+        JButton registerBtn = createStyledButton("Register", new Color(76, 175, 80), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        registerBtn.addActionListener(e -> {
+            String username = usernameField.getText().trim();
+            String phone = phoneField.getText().trim();
+            String pin = new String(pinField.getPassword());
+           // String fullName = fullNameField.getText().trim();
+
+            if (username.isEmpty() || phone.isEmpty() || pin.isEmpty() ) {
+                showError("Please fill all required fields (marked with *)");
+                return;
+            }
+
+            if (findUserByPhone(phone) != null) {
+                showError("Phone number already registered");
+                return;
+            }
+
+            if (pin.length() < 4) {
+                showError("PIN must be at least 4 characters");
+                return;
+            }
+
+            String email = emailField.getText().trim();
+            String nid = nidField.getText().trim();
+            CompletableFuture<Void> added = CompletableFuture.supplyAsync(() -> PinHasher.hash(pin))
+                    .thenCompose(hash -> store.addAsync(new RegularUser(
+                    username, phone, hash,
+                    //dobField.getText().trim(),
+                    //genderField.getText().trim(),
+                    email,
+                    //motherField.getText().trim(),
+                   // fatherField.getText().trim(),
+                    nid
+                   // birthCertField.getText().trim(),
+                  //  permAddrField.getText().trim(),
+                   // presAddrField.getText().trim()
+            )));
+
+            afterWrite(registerBtn, added, () -> {
+                Logger.log("New user created: " + username);
+
+                // Clear fields
+                for (Component comp : formPanel.getComponents()) {
+                    if (comp instanceof JTextField) ((JTextField) comp).setText("");
+                    else if (comp instanceof JPasswordField) ((JPasswordField) comp).setText("");
+                }
+
+                showSuccess("Account created successfully!");
+                cardLayout.show(cardPanel, "Welcome");
+            });
+        });
+
+        backBtn.addActionListener(e -> cardLayout.show(cardPanel, "Welcome"));
+
+        buttonPanel.add(backBtn);
+        buttonPanel.add(registerBtn);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(new JScrollPane(formPanel), BorderLayout.CENTER);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "Register");
+    }
+
+    private void createUserMenuPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+
+        welcomeLabel = new JLabel("", JLabel.CENTER);
+        welcomeLabel.setFont(new Font("Arial", Font.BOLD, 22));
+        welcomeLabel.setForeground(new Color(0, 102, 204));
+
+        JPanel buttonPanel = new JPanel(new GridLayout(0, 2, 15, 15));
+        buttonPanel.setBackground(new Color(240, 248, 255));
+        buttonPanel.setBorder(BorderFactory.createEmptyBorder(20, 50, 20, 50));
+
+        String[] buttonLabels = {
+                "Show Details", "Check Balance", "Deposit Money", "Withdraw Money",
+                "Transfer Money", "Transaction History", "Convocation Payment",
+                "Bill Payment", "Bulk Disbursement", "Update Information", "Change PIN", "Delete Account", "Logout"
+        };
+
+        Color[] buttonColors = {
+                new Color(102, 187, 106), new Color(129, 199, 132),
+                new Color(56, 142, 60), new Color(46, 125, 50),
+                new Color(0, 150, 136), new Color(0, 137, 123),
+                new Color(0, 188, 212), new Color(0, 172, 193), new Color(0, 121, 107),
+                new Color(121, 134, 203), new Color(92, 107, 192),
+                new Color(229, 57, 53), new Color(239, 83, 80)
+        };
+
+        for (int i = 0; i < buttonLabels.length; i++) {
+            JButton button = createStyledButton(buttonLabels[i], buttonColors[i], 14);
+            button.addActionListener(new UserMenuListener(buttonLabels[i]));
+            buttonPanel.add(button);
+        }
+
+        panel.add(welcomeLabel, BorderLayout.NORTH);
+        panel.add(new JScrollPane(buttonPanel), BorderLayout.CENTER);
+
+        cardPanel.add(panel, "UserMenu");
+    }
+
+    private void createBalancePanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Account Balance", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JLabel balanceLabel = new JLabel("", JLabel.CENTER);
+        balanceLabel.setFont(new Font("Arial", Font.BOLD, 36));
+        balanceLabel.setForeground(new Color(46, 125, 50));
+
+        JButton statementBtn = createStyledButton("This Month's Statement", new Color(0, 137, 123), 16);
+        JButton backBtn = createStyledButton("Back to Menu", new Color(158, 158, 158), 16);
+
+        panel.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                User user = currentUser();
+                if (user != null) {
+                    balanceLabel.setText("BDT " + Money.format(user.getBalance()));
+                }
+            }
+        });
+
+        statementBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            LocalDate today = LocalDate.now();
+            AccountSummary.Statement st;
+            try {
+                st = engine.statement(user, today.withDayOfMonth(1), today);
+            } catch (IOException ex) {
+                showError("Failed to read transactions: " + ex.getMessage());
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("Statement ").append(st.from).append(" to ").append(st.to).append("\n\n");
+            Money.appendTo(sb.append(String.format("%-22s BDT ", "Opening balance")), st.openingBalance).append("\n");
+            for (String type : new String[] {"Deposit", "Transfer In", "Withdraw", "Transfer Out", "Bill Payment", "Convocation Payment"}) {
+                if (st.count(type) == 0) continue;
+                Money.appendTo(sb.append(String.format("%-22s BDT ", type + " (" + st.count(type) + ")")), st.total(type)).append("\n");
+            }
+            Money.appendTo(sb.append(String.format("%-22s BDT ", "Closing balance")), st.closingBalance);
+            JTextArea text = new JTextArea(sb.toString());
+            text.setEditable(false);
+            text.setFont(new Font("Monospaced", Font.PLAIN, 14));
+            JOptionPane.showMessageDialog(this, text, "Monthly Statement", JOptionPane.INFORMATION_MESSAGE);
+        });
+
+        backBtn.addActionListener(e -> cardLayout.show(cardPanel, "UserMenu"));
+
+        JPanel centerPanel = new JPanel(new GridBagLayout());
+        centerPanel.setBackground(new Color(240, 248, 255));
+        centerPanel.add(balanceLabel);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(centerPanel, BorderLayout.CENTER);
+
+        JPanel southPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
+        southPanel.setBackground(new Color(240, 248, 255));
+        southPanel.add(statementBtn);
+        southPanel.add(backBtn);
+        panel.add(southPanel, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "Balance");
+    }
+
+    private void createDepositPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Deposit Money", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(15, 15, 15, 15);
+
+        JLabel amountLabel = new JLabel("Amount (BDT):");
+        amountLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField amountField = new JTextField(15);
+        amountField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JButton depositBtn = createStyledButton("Deposit", new Color(56, 142, 60), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        depositBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            try {
+                long amount = Money.parse(amountField.getText());
+                runPayment(depositBtn, engine.deposit(user, amount, formKey(depositBtn)), () -> {
+                    showSuccess("Successfully deposited BDT " + Money.format(amount));
+                    amountField.setText("");
+                    cardLayout.show(cardPanel, "UserMenu");
+                });
+            } catch (NumberFormatException ex) {
+                showError("Please enter a valid amount");
+            }
+        });
+
+        backBtn.addActionListener(e -> {
+            amountField.setText("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        formPanel.add(amountLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(amountField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        formPanel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(depositBtn, gbc);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(formPanel, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "Deposit");
+    }
+
+    private void createWithdrawPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Withdraw Money", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(15, 15, 15, 15);
+
+        JLabel pinLabel = new JLabel("Enter PIN:");
+        pinLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JPasswordField pinField = new JPasswordField(15);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel amountLabel = new JLabel("Amount (BDT):");
+        amountLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField amountField = new JTextField(15);
+        amountField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JButton withdrawBtn = createStyledButton("Withdraw", new Color(46, 125, 50), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        withdrawBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            String pin = new String(pinField.getPassword());
+            withPin(withdrawBtn, user, pin, "Incorrect PIN", () -> {
+                try {
+                    long amount = Money.parse(amountField.getText());
+                    runPayment(withdrawBtn, engine.withdraw(user, amount, formKey(withdrawBtn)), () -> {
+                        showSuccess("Successfully withdrew BDT " + Money.format(amount));
+                        pinField.setText("");
+                        amountField.setText("");
+                        cardLayout.show(cardPanel, "UserMenu");
+                    });
+                } catch (NumberFormatException ex) {
+                    showError("Please enter a valid amount");
+                }
+            });
+        });
+
+        backBtn.addActionListener(e -> {
+            pinField.setText("");
+            amountField.setText("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        formPanel.add(pinLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(pinField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        formPanel.add(amountLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(amountField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        formPanel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(withdrawBtn, gbc);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(formPanel, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "Withdraw");
+    }
+
+    private void createTransferPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Transfer Money", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(15, 15, 15, 15);
+
+        JLabel pinLabel = new JLabel("Enter PIN:");
+        pinLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JPasswordField pinField = new JPasswordField(15);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel phoneLabel = new JLabel("Recipient Phone:");
+        phoneLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField phoneField = new JTextField(15);
+        phoneField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel amountLabel = new JLabel("Amount (BDT):");
+        amountLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField amountField = new JTextField(15);
+        amountField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JButton transferBtn = createStyledButton("Transfer", new Color(0, 150, 136), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        transferBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            String pin = new String(pinField.getPassword());
+            withPin(transferBtn, user, pin, "Incorrect PIN", () -> {
+                try {
+                    long amount = Money.parse(amountField.getText());
+                    String receiverPhone = phoneField.getText().trim();
+                    runPayment(transferBtn, engine.transfer(user, receiverPhone, amount, formKey(transferBtn)), () -> {
+                        showSuccess("Successfully transferred BDT " + Money.format(amount) + " to " + receiverPhone);
+                        pinField.setText("");
+                        phoneField.setText("");
+                        amountField.setText("");
+                        cardLayout.show(cardPanel, "UserMenu");
+                    });
+                } catch (NumberFormatException ex) {
+                    showError("Please enter a valid amount");
+                }
+            });
+        });
+
+        backBtn.addActionListener(e -> {
+            pinField.setText("");
+            phoneField.setText("");
+            amountField.setText("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        formPanel.add(pinLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(pinField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        formPanel.add(phoneLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(phoneField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        formPanel.add(amountLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(amountField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 3;
+        formPanel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(transferBtn, gbc);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(formPanel, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "Transfer");
+    }
+
+    private void createTransactionHistoryPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Transaction History", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JTable table = new JTable(historyModel);
+        table.setFont(new Font("Monospaced", Font.PLAIN, 14));
+        table.setRowHeight(22);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(170);
+        table.getColumnModel().getColumn(1).setPreferredWidth(170);
+        table.getColumnModel().getColumn(2).setPreferredWidth(130);
+        table.getColumnModel().getColumn(3).setPreferredWidth(300);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200)));
+
+        JLabel summary = new JLabel(" ", JLabel.CENTER);
+        summary.setFont(new Font("Arial", Font.PLAIN, 14));
+
+        // Filters; blank fields match everything
+        JTextField fromField = new JTextField(9);
+        JTextField toField = new JTextField(9);
+        JComboBox<String> typeBox = new JComboBox<>(new String[] {"All types", "Deposit", "Withdraw",
+                "Transfer Out", "Transfer In", "Bill Payment", "Convocation Payment"});
+        JTextField partyField = new JTextField(11);
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 8, 5));
+        filterPanel.setBackground(new Color(240, 248, 255));
+        filterPanel.add(new JLabel("From (yyyy-MM-dd):"));
+        filterPanel.add(fromField);
+        filterPanel.add(new JLabel("To:"));
+        filterPanel.add(toField);
+        filterPanel.add(typeBox);
+        filterPanel.add(new JLabel("Phone:"));
+        filterPanel.add(partyField);
+
+        JButton refreshBtn = createStyledButton("Refresh", new Color(0, 137, 123), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        // PIN is asked once per visit to the panel
+        SessionManager.Session[] unlocked = new SessionManager.Session[1];
+        refreshBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            if (unlocked[0] != session) {
+                String pin = JOptionPane.showInputDialog(this, "Enter PIN to view transactions:");
+                if (pin == null) return;
+
+                SessionManager.Session visit = session;
+                withPin(refreshBtn, user, pin, "Incorrect PIN", () -> {
+                    unlocked[0] = visit;
+                    refreshBtn.doClick();
+                });
+                return;
+            }
+
+            LocalDate from, to;
+            try {
+                from = fromField.getText().isBlank() ? null : LocalDate.parse(fromField.getText().trim());
+                to = toField.getText().isBlank() ? null : LocalDate.parse(toField.getText().trim());
+            } catch (DateTimeParseException ex) {
+                showError("Dates must be written as yyyy-MM-dd");
+                return;
+            }
+            String type = typeBox.getSelectedIndex() == 0 ? null : (String) typeBox.getSelectedItem();
+            String party = partyField.getText().isBlank() ? null : partyField.getText().trim();
+
+            if (from == null && to == null && type == null && party == null) {
+                // rows are read from the ledger as they scroll into view
+                historyModel.show(store.ledger(user), user);
+            } else {
+                ZoneId zone = ZoneId.systemDefault();
+                long fromMillis = from == null ? Long.MIN_VALUE : from.atStartOfDay(zone).toInstant().toEpochMilli();
+                long toMillis = to == null ? Long.MAX_VALUE : to.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+                try {
+                    historyModel.showMatches(store.ledger(user), engine.search(user, fromMillis, toMillis,
+                            type == null ? TransactionIndex.ALL_TYPES : TransactionIndex.typeMask(type), party));
+                } catch (IOException ex) {
+                    showError("Failed to read transactions: " + ex.getMessage());
+                    return;
+                }
+            }
+            int n = historyModel.getRowCount();
+            boolean filtered = from != null || to != null || type != null || party != null;
+            summary.setText(n == 0 ? (filtered ? "No matching transactions." : "No transactions yet.")
+                    : n + (n == 1 ? " transaction" : " transactions") + (filtered ? " matching" : "") + ", newest first");
+        });
+
+        backBtn.addActionListener(e -> {
+            unlocked[0] = null;
+            historyModel.clear();
+            summary.setText(" ");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 10));
+        buttonPanel.setBackground(new Color(240, 248, 255));
+        buttonPanel.add(refreshBtn);
+        buttonPanel.add(backBtn);
+
+        JPanel south = new JPanel(new BorderLayout());
+        south.setOpaque(false);
+        south.add(summary, BorderLayout.NORTH);
+        south.add(buttonPanel, BorderLayout.SOUTH);
+
+        JPanel north = new JPanel(new BorderLayout());
+        north.setOpaque(false);
+        north.add(title, BorderLayout.NORTH);
+        north.add(filterPanel, BorderLayout.SOUTH);
+
+        panel.add(north, BorderLayout.NORTH);
+        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(south, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "TransactionHistory");
+    }
+
+    private void createConvocationPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Convocation Payment", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(15, 15, 15, 15);
+
+        JLabel pinLabel = new JLabel("Enter PIN:");
+        pinLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JPasswordField pinField = new JPasswordField(15);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel amountLabel = new JLabel("Fee Amount (BDT):");
+        amountLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField amountField = new JTextField(15);
+        amountField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JButton payBtn = createStyledButton("Pay Fee", new Color(0, 172, 193), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        payBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            String pin = new String(pinField.getPassword());
+            withPin(payBtn, user, pin, "Incorrect PIN", () -> {
+                try {
+                    long amount = Money.parse(amountField.getText());
+                    runPayment(payBtn, engine.payConvocation(user, amount, formKey(payBtn)), () -> {
+                        showSuccess("Successfully paid convocation fee of BDT " + Money.format(amount));
+                        pinField.setText("");
+                        amountField.setText("");
+                        cardLayout.show(cardPanel, "UserMenu");
+                    });
+                } catch (NumberFormatException ex) {
+                    showError("Please enter a valid amount");
+                }
+            });
+        });
+
+        backBtn.addActionListener(e -> {
+            pinField.setText("");
+            amountField.setText("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        formPanel.add(pinLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(pinField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        formPanel.add(amountLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(amountField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        formPanel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(payBtn, gbc);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(formPanel, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "Convocation");
+    }
+
+    private void createBillPaymentPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Bill Payment", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(15, 15, 15, 15);
+
+        JLabel pinLabel = new JLabel("Enter PIN:");
+        pinLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JPasswordField pinField = new JPasswordField(15);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel billerLabel = new JLabel("Biller Name:");
+        billerLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField billerField = new JTextField(15);
+        billerField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel amountLabel = new JLabel("Amount (BDT):");
+        amountLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JTextField amountField = new JTextField(15);
+        amountField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JButton payBtn = createStyledButton("Pay Bill", new Color(0, 172, 193), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        payBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            String pin = new String(pinField.getPassword());
+            withPin(payBtn, user, pin, "Incorrect PIN", () -> {
+                try {
+                    long amount = Money.parse(amountField.getText());
+                    String biller = billerField.getText();
+                    runPayment(payBtn, engine.payBill(user, biller, amount, formKey(payBtn)), () -> {
+                        showSuccess("Successfully paid bill to " + biller + " for BDT " + Money.format(amount));
+                        pinField.setText("");
+                        billerField.setText("");
+                        amountField.setText("");
+                        cardLayout.show(cardPanel, "UserMenu");
+                    });
+                } catch (NumberFormatException ex) {
+                    showError("Please enter a valid amount");
+                }
+            });
+        });
+
+        backBtn.addActionListener(e -> {
+            pinField.setText("");
+            billerField.setText("");
+            amountField.setText("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        formPanel.add(pinLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(pinField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        formPanel.add(billerLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(billerField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        formPanel.add(amountLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(amountField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 3;
+        formPanel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(payBtn, gbc);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(formPanel, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "BillPayment");
+    }
+
+    // Bulk Disbursement: pays out a CSV of phone,amount[,description] rows
+    private void createBulkDisbursementPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Bulk Disbursement", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel formPanel = new JPanel(new GridBagLayout());
+        formPanel.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(10, 15, 10, 15);
+
+        JLabel pinLabel = new JLabel("Enter PIN:");
+        pinLabel.setFont(new Font("Arial", Font.PLAIN, 16));
+        JPasswordField pinField = new JPasswordField(15);
+        pinField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        JLabel fileLabel = new JLabel("No file chosen");
+        fileLabel.setFont(new Font("Arial", Font.PLAIN, 14));
+        JButton chooseBtn = createStyledButton("Choose CSV...", new Color(121, 134, 203), 14);
+        JCheckBox atomicBox = new JCheckBox("All or nothing");
+        atomicBox.setBackground(new Color(240, 248, 255));
+        atomicBox.setFont(new Font("Arial", Font.PLAIN, 14));
+
+        JProgressBar progress = new JProgressBar();
+        progress.setStringPainted(true);
+        progress.setString("");
+        JTextArea results = new JTextArea(10, 50);
+        results.setEditable(false);
+        results.setFont(new Font("Monospaced", Font.PLAIN, 13));
+
+        JButton runBtn = createStyledButton("Disburse", new Color(0, 121, 107), 16);
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+
+        File[] chosen = new File[1];
+        chooseBtn.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            chosen[0] = chooser.getSelectedFile();
+            fileLabel.setText(chosen[0].getName());
+        });
+
+        runBtn.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            if (chosen[0] == null) {
+                showError("Choose a CSV file first");
+                return;
+            }
+            String pin = new String(pinField.getPassword());
+            withPin(runBtn, user, pin, "Incorrect PIN", () -> {
+                File csv = chosen[0];
+                boolean atomic = atomicBox.isSelected();
+                String key = formKey(runBtn);
+                runBtn.setEnabled(false);
+                results.setText("");
+                progress.setValue(0);
+                progress.setString("Reading " + csv.getName() + "...");
+                // parsing and applying run off the EDT; progress comes back to it
+                CompletableFuture.supplyAsync(() -> {
+                    try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8))) {
+                        return Disbursement.parse(in);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }).thenCompose(batch -> {
+                    SwingUtilities.invokeLater(() -> progress.setMaximum(Math.max(1, batch.lines())));
+                    return engine.disburse(user, batch, atomic, Disbursement.CHUNK_ROWS, n -> SwingUtilities.invokeLater(() -> {
+                        progress.setValue(n);
+                        progress.setString(n + " of " + progress.getMaximum() + " rows");
+                    }), key);
+                }).whenCompleteAsync((report, ex) -> {
+                    runBtn.setEnabled(true);
+                    runBtn.putClientProperty(FORM_KEY, null);
+                    if (ex != null) {
+                        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                        progress.setString("");
+                        showError("Could not read " + csv.getName() + ": " + cause.getMessage());
+                        return;
+                    }
+                    pinField.setText("");
+                    results.setText(describe(report));
+                    results.setCaretPosition(0);
+                    if (report.rejected == null) {
+                        Logger.log(user.getUsername() + " ran bulk disbursement " + csv.getName() + ": "
+                                + report.applied + " of " + report.rows + " rows paid");
+                    }
+                }, SwingUtilities::invokeLater);
+            });
+        });
+
+        backBtn.addActionListener(e -> {
+            pinField.setText("");
+            results.setText("");
+            progress.setValue(0);
+            progress.setString("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        gbc.gridx = 0;
+        gbc.gridy = 0;
+        formPanel.add(pinLabel, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(pinField, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 1;
+        formPanel.add(chooseBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(fileLabel, gbc);
+
+        gbc.gridx = 1;
+        gbc.gridy = 2;
+        formPanel.add(atomicBox, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 3;
+        formPanel.add(backBtn, gbc);
+
+        gbc.gridx = 1;
+        formPanel.add(runBtn, gbc);
+
+        gbc.gridx = 0;
+        gbc.gridy = 4;
+        gbc.gridwidth = 2;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        formPanel.add(progress, gbc);
+
+        JPanel center = new JPanel(new BorderLayout());
+        center.setBackground(new Color(240, 248, 255));
+        center.add(formPanel, BorderLayout.NORTH);
+        center.add(new JScrollPane(results), BorderLayout.CENTER);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(center, BorderLayout.CENTER);
+
+        cardPanel.add(panel, "BulkDisbursement");
+    }
+
+    // Summary then one line per failed row, capped so a bad file can't
+    // flood the text area
+    private static String describe(Disbursement.Report report) {
+        StringBuilder sb = new StringBuilder();
+        if (report.rejected != null) {
+            sb.append("Nothing was transferred: ").append(report.rejected).append('\n');
+        } else {
+            Money.appendTo(sb.append("Transferred BDT "), report.total)
+                    .append(" in ").append(report.applied).append(" of ").append(report.rows).append(" rows.\n");
+        }
+        Money.appendTo(sb.append("Balance: BDT "), report.balance).append('\n');
+        if (!report.failures.isEmpty()) {
+            sb.append('\n').append(report.failures.size()).append(" failed:\n");
+            int shown = Math.min(report.failures.size(), 1000);
+            for (int i = 0; i < shown; i++) sb.append(report.failures.get(i)).append('\n');
+            if (shown < report.failures.size()) sb.append("... and ").append(report.failures.size() - shown).append(" more\n");
+        }
+        return sb.toString();
+    }
+
+    // Update Info
+    private void createUpdateInfoPanel() {
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+
+        JLabel title = new JLabel("Update Information", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel form = new JPanel(new GridLayout(0, 2, 10, 10));
+        form.setBackground(new Color(240, 248, 255));
+
+        JTextField fullName = new JTextField();
+        JTextField email = new JTextField();
+        JTextField dob = new JTextField();
+        JTextField gender = new JTextField();
+        JTextField mother = new JTextField();
+        JTextField father = new JTextField();
+        JTextField nid = new JTextField();
+        JTextField birth = new JTextField();
+        JTextField permAddr = new JTextField();
+        JTextField presAddr = new JTextField();
+
+        addFormField(form, "Full Name:", fullName);
+        addFormField(form, "Email:", email);
+        addFormField(form, "Date of Birth:", dob);
+        addFormField(form, "Gender:", gender);
+        addFormField(form, "Mother's Name:", mother);
+        addFormField(form, "Father's Name:", father);
+        addFormField(form, "National ID:", nid);
+        addFormField(form, "Birth Certificate:", birth);
+        addFormField(form, "Permanent Address:", permAddr);
+        addFormField(form, "Present Address:", presAddr);
+
+        // Pre-fill on show
+        panel.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                User user = currentUser();
+                if (user != null) {
+                    fullName.setText(user.getFullName());
+                    email.setText(user.getEmail());
+                    dob.setText(user.getDob());
+                    gender.setText(user.getGender());
+                    mother.setText(user.getMotherName());
+                    father.setText(user.getFatherName());
+                    nid.setText(user.getNationalId());
+                    birth.setText(user.getBirthCertificate());
+                    permAddr.setText(user.getPermanentAddress());
+                    presAddr.setText(user.getPresentAddress());
+                }
+            }
+        });
+
+        JPanel south = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 10));
+        south.setBackground(new Color(240, 248, 255));
+        JButton back = createStyledButton("Back", new Color(158, 158, 158), 16);
+        JButton save = createStyledButton("Save Changes", new Color(121, 134, 203), 16);
+
+        save.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            String pin = JOptionPane.showInputDialog(this, "Enter PIN to confirm changes:");
+            if (pin == null) return;
+            withPin(save, user, pin, "Incorrect PIN", () -> {
+                String[] values = {fullName.getText().trim(), email.getText().trim(), dob.getText().trim(),
+                        gender.getText().trim(), mother.getText().trim(), father.getText().trim(), nid.getText().trim(),
+                        birth.getText().trim(), permAddr.getText().trim(), presAddr.getText().trim()};
+                afterWrite(save, store.updateAsync(user, () -> {
+                    user.setFullName(values[0]);
+                    user.setEmail(values[1]);
+                    user.setDob(values[2]);
+                    user.setGender(values[3]);
+                    user.setMotherName(values[4]);
+                    user.setFatherName(values[5]);
+                    user.setNationalId(values[6]);
+                    user.setBirthCertificate(values[7]);
+                    user.setPermanentAddress(values[8]);
+                    user.setPresentAddress(values[9]);
+                }), () -> {
+                    Logger.log(user.getUsername() + " updated profile information");
+                    showSuccess("Information updated successfully.");
+                    cardLayout.show(cardPanel, "UserMenu");
+                });
+            });
+        });
+
+        back.addActionListener(e -> cardLayout.show(cardPanel, "UserMenu"));
+
+        south.add(back);
+        south.add(save);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(new JScrollPane(form), BorderLayout.CENTER);
+        panel.add(south, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "UpdateInfo");
+    }
+
+    // Change PIN
+    private void createChangePinPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Change PIN", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JPanel form = new JPanel(new GridBagLayout());
+        form.setBackground(new Color(240, 248, 255));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(12, 12, 12, 12);
+        gbc.gridx = 0; gbc.gridy = 0;
+
+        JLabel oldLbl = new JLabel("Old PIN:");
+        JPasswordField oldPin = new JPasswordField(15);
+        JLabel newLbl = new JLabel("New PIN:");
+        JPasswordField newPin = new JPasswordField(15);
+        JLabel confLbl = new JLabel("Confirm New PIN:");
+        JPasswordField confPin = new JPasswordField(15);
+
+        oldLbl.setFont(new Font("Arial", Font.PLAIN, 16));
+        newLbl.setFont(new Font("Arial", Font.PLAIN, 16));
+        confLbl.setFont(new Font("Arial", Font.PLAIN, 16));
+        oldPin.setFont(new Font("Arial", Font.PLAIN, 16));
+        newPin.setFont(new Font("Arial", Font.PLAIN, 16));
+        confPin.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        form.add(oldLbl, gbc); gbc.gridx = 1; form.add(oldPin, gbc);
+        gbc.gridx = 0; gbc.gridy++; form.add(newLbl, gbc); gbc.gridx = 1; form.add(newPin, gbc);
+        gbc.gridx = 0; gbc.gridy++; form.add(confLbl, gbc); gbc.gridx = 1; form.add(confPin, gbc);
+
+        JPanel south = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 10));
+        south.setBackground(new Color(240, 248, 255));
+        JButton back = createStyledButton("Back", new Color(158, 158, 158), 16);
+        JButton save = createStyledButton("Change PIN", new Color(92, 107, 192), 16);
+
+        save.addActionListener(e -> {
+            User user = sessionUser();
+            if (user == null) return;
+            String old = new String(oldPin.getPassword());
+            String np = new String(newPin.getPassword());
+            String cp = new String(confPin.getPassword());
+
+            withPin(save, user, old, "Old PIN is incorrect", () -> {
+                if (np.length() < 4) {
+                    showError("New PIN must be at least 4 characters");
+                    return;
+                }
+                if (!Objects.equals(np, cp)) {
+                    showError("New PIN and confirmation do not match");
+                    return;
+                }
+                CompletableFuture<Void> saved = CompletableFuture.supplyAsync(() -> PinHasher.setPin(user, np, store))
+                        .thenCompose(write -> write);
+                afterWrite(save, saved, () -> {
+                    Logger.log(user.getUsername() + " changed PIN");
+                    showSuccess("PIN changed successfully.");
+                    oldPin.setText(""); newPin.setText(""); confPin.setText("");
+                    cardLayout.show(cardPanel, "UserMenu");
+                });
+            });
+        });
+
+        back.addActionListener(e -> {
+            oldPin.setText(""); newPin.setText(""); confPin.setText("");
+            cardLayout.show(cardPanel, "UserMenu");
+        });
+
+        south.add(back);
+        south.add(save);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(form, BorderLayout.CENTER);
+        panel.add(south, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "ChangePIN");
+    }
+
+    //Delete Account
+    private void createDeleteAccountPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("Delete Account", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(229, 57, 53));
+
+        JTextArea info = new JTextArea(
+                "Warning: This action will permanently delete your account and all data.\n" +
+                        "You will not be able to recover it.");
+        info.setLineWrap(true);
+        info.setWrapStyleWord(true);
+        info.setEditable(false);
+        info.setFont(new Font("Arial", Font.PLAIN, 14));
+        info.setBackground(new Color(240, 248, 255));
+
+        JPanel south = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 10));
+        south.setBackground(new Color(240, 248, 255));
+        JButton back = createStyledButton("Back", new Color(158, 158, 158), 16);
+        JButton delete = createStyledButton("Delete My Account", new Color(229, 57, 53), 16);
+
+        delete.addActionListener(e -> {
+            User removed = sessionUser();
+            if (removed == null) return;
+            int confirm = JOptionPane.showConfirmDialog(this,
+                    "Are you sure you want to permanently delete this account?",
+                    "Confirm Deletion", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (confirm != JOptionPane.YES_OPTION) return;
+
+            String pin = JOptionPane.showInputDialog(this, "Enter PIN to confirm deletion:");
+            if (pin == null) return;
+            withPin(delete, removed, pin, "Incorrect PIN", () -> {
+                sessions.closeAll(removed);
+                session = null;
+                afterWrite(delete, store.removeAsync(removed), () -> {
+                    Logger.log("Account deleted for user: " + removed.getUsername());
+                    PinHasher.forget(removed);
+                    showSuccess("Account deleted successfully.");
+                    cardLayout.show(cardPanel, "Welcome");
+                });
+            });
+        });
+
+        back.addActionListener(e -> cardLayout.show(cardPanel, "UserMenu"));
+
+        south.add(back);
+        south.add(delete);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(info, BorderLayout.CENTER);
+        panel.add(south, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "DeleteAccount");
+    }
+
+    // User Details
+    private void createUserDetailsPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(new Color(240, 248, 255));
+        panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+
+        JLabel title = new JLabel("User Details", JLabel.CENTER);
+        title.setFont(new Font("Arial", Font.BOLD, 24));
+        title.setForeground(new Color(0, 102, 204));
+
+        JTextArea details = new JTextArea();
+        details.setEditable(false);
+        details.setFont(new Font("Monospaced", Font.PLAIN, 14));
+        JScrollPane scroll = new JScrollPane(details);
+
+        panel.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                User user = currentUser();
+                if (user == null) return;
+                String fmt = ""
+                        + "Username        : %s%n"
+                        + "Full Name       : %s%n"
+                        + "Phone Number    : %s%n"
+                        + "Email           : %s%n"
+                        + "DOB             : %s%n"
+                        + "Gender          : %s%n"
+                        + "Mother's Name   : %s%n"
+                        + "Father's Name   : %s%n"
+                        + "National ID     : %s%n"
+                        + "Birth Certificate: %s%n"
+                        + "Permanent Addr  : %s%n"
+                        + "Present Addr    : %s%n"
+                        + "Balance         : BDT %s%n";
+                details.setText(String.format(fmt,
+                        user.getUsername(),
+                        user.getFullName(),
+                        user.getPhoneNumber(),
+                        nonNull(user.getEmail()),
+                        nonNull(user.getDob()),
+                        nonNull(user.getGender()),
+                        nonNull(user.getMotherName()),
+                        nonNull(user.getFatherName()),
+                        nonNull(user.getNationalId()),
+                        nonNull(user.getBirthCertificate()),
+                        nonNull(user.getPermanentAddress()),
+                        nonNull(user.getPresentAddress()),
+                        Money.format(user.getBalance())
+                ));
+            }
+        });
+
+        JButton backBtn = createStyledButton("Back", new Color(158, 158, 158), 16);
+        backBtn.addActionListener(e -> cardLayout.show(cardPanel, "UserMenu"));
+
+        JPanel south = new JPanel(new FlowLayout(FlowLayout.CENTER));
+        south.setBackground(new Color(240, 248, 255));
+        south.add(backBtn);
+
+        panel.add(title, BorderLayout.NORTH);
+        panel.add(scroll, BorderLayout.CENTER);
+        panel.add(south, BorderLayout.SOUTH);
+
+        cardPanel.add(panel, "UserDetails");
+    }
+
+    // Helpers & utilities
+
+    private static String nonNull(String s) { return (s == null ? "" : s); }
+
+    private void addFormField(JPanel parent, String label, JComponent field) {
+        JLabel l = new JLabel(label);
+        l.setFont(new Font("Arial", Font.PLAIN, 16));
+        field.setFont(new Font("Arial", Font.PLAIN, 16));
+        parent.add(l);
+        parent.add(field);
+    }
+
+    private JButton createStyledButton(String text, Color bg, int fontSize) {
+        JButton b = new JButton(text);
+        b.setFocusPainted(false);
+        b.setFont(new Font("Arial", Font.BOLD, fontSize));
+        b.setBackground(bg);
+        b.setForeground(Color.WHITE);
+        b.setBorder(BorderFactory.createEmptyBorder(10, 16, 10, 16));
+        b.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        b.addMouseListener(new MouseAdapter() {
+            @Override public void mouseEntered(MouseEvent e) { b.setBackground(b.getBackground().darker()); }
+            @Override public void mouseExited(MouseEvent e) { b.setBackground(bg); }
+        });
+        return b;
+    }
+
+    private void showError(String msg) {
+        JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    private void showSuccess(String msg) {
+        JOptionPane.showMessageDialog(this, msg, "Success", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private User findUserByPhone(String phone) {
+        return users.findByPhone(phone);
+    }
+
+    private void loadUsers() {
+        try {
+            openStore();
+        } catch (IOException e) {
+            showError("Failed to open transaction ledger: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Shared by the Swing front end and --server
+    private static void openStore() throws IOException {
+        store = ShardedStore.fromSystemProperties();
+        users = store.load();
+        engine = new PaymentEngine(store);
+        Metrics.gauge("cardpayment_pending_writes", "Commits queued or being written", store::pendingWrites);
+        Metrics.gauge("cardpayment_sessions_active", "Open login sessions", sessions::active);
+        Metrics.counter("cardpayment_log_dropped_total", "Log lines dropped while the log ring was full", Logger::droppedCount);
+        IdempotencyCache recent = engine.idempotencyCache();
+        Metrics.gauge("cardpayment_idempotency_keys", "Idempotency keys remembered", recent::size);
+        Metrics.counter("cardpayment_idempotent_replays_total", "Requests answered from an earlier call with the same key",
+                recent::replays);
+        Metrics.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                store.close();
+            } catch (IOException ignored) {}
+        }, "cardpayment-store-shutdown"));
+    }
+
+    // Disk writes finish on the persistence thread. The button stays disabled
+    // until then, and the follow-up runs on the EDT only once the write is
+    // durable.
+    private void afterWrite(JButton button, CompletableFuture<Void> write, Runnable onSaved) {
+        button.setEnabled(false);
+        write.whenCompleteAsync((ok, e) -> {
+            button.setEnabled(true);
+            if (e != null) showError("Failed to save data: " + Persistence.ioCause(e).getMessage());
+            else onSaved.run();
+        }, SwingUtilities::invokeLater);
+    }
+
+    // PBKDF2 is too slow for the EDT, so the PIN is checked on a worker with
+    // the button disabled and onVerified runs back on the EDT once it matches
+    private void withPin(JButton button, User user, String pin, String refused, Runnable onVerified) {
+        button.setEnabled(false);
+        CompletableFuture.supplyAsync(() -> PinHasher.verify(user, pin)).whenCompleteAsync((ok, e) -> {
+            button.setEnabled(true);
+            if (e != null) showError("PIN check failed: " + e.getMessage());
+            else if (ok) onVerified.run();
+            else showError(refused);
+        }, SwingUtilities::invokeLater);
+    }
+
+    private void runPayment(JButton button, CompletableFuture<PaymentEngine.Result> payment, Runnable onSuccess) {
+        button.setEnabled(false);
+        payment.whenCompleteAsync((result, e) -> {
+            button.setEnabled(true);
+            button.putClientProperty(FORM_KEY, null);
+            if (e != null) showError("Payment failed: " + Persistence.ioCause(e).getMessage());
+            else if (result.ok()) onSuccess.run();
+            else showError(result.message());
+        }, SwingUtilities::invokeLater);
+    }
+
+    // Idempotency key for the next submission of the form behind button. It
+    // stays the same until that submission settles, so a second click that
+    // gets in before the button is disabled repeats the request instead of
+    // paying twice.
+    private static String formKey(JButton button) {
+        Object key = button.getClientProperty(FORM_KEY);
+        if (key == null) {
+            key = UUID.randomUUID().toString();
+            button.putClientProperty(FORM_KEY, key);
+        }
+        return (String) key;
+    }
+
+    private void showPendingWrites() {
+        int n = store.pendingWrites();
+        saveStatus.setText(n == 0 ? "All changes saved" : "Saving " + n + (n == 1 ? " change..." : " changes..."));
+    }
+
+    // The account logged in on this terminal, or null once its session has
+    // been closed or has lapsed
+    private User currentUser() {
+        SessionManager.Session s = session == null ? null : sessions.get(session.token(), System.nanoTime());
+        return s == null ? null : s.user();
+    }
+
+    // As currentUser(), but sends the terminal back to the welcome screen
+    // when there is no live session
+    private User sessionUser() {
+        User user = currentUser();
+        if (user == null) {
+            showError(session == null ? "Please login first." : "Your session has expired. Please login again.");
+            session = null;
+            cardLayout.show(cardPanel, "Welcome");
+        }
+        return user;
+    }
+
+    // Route button clicks from the user menu
+    private class UserMenuListener implements ActionListener {
+        private final String action;
+        UserMenuListener(String action) { this.action = action; }
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            User user = sessionUser();
+            if (user == null) return;
+            switch (action) {
+                case "Show Details":           cardLayout.show(cardPanel, "UserDetails"); break;
+                case "Check Balance":          cardLayout.show(cardPanel, "Balance"); break;
+                case "Deposit Money":          cardLayout.show(cardPanel, "Deposit"); break;
+                case "Withdraw Money":         cardLayout.show(cardPanel, "Withdraw"); break;
+                case "Transfer Money":         cardLayout.show(cardPanel, "Transfer"); break;
+                case "Transaction History":    cardLayout.show(cardPanel, "TransactionHistory"); break;
+                case "Convocation Payment":    cardLayout.show(cardPanel, "Convocation"); break;
+                case "Bill Payment":           cardLayout.show(cardPanel, "BillPayment"); break;
+                case "Bulk Disbursement":      cardLayout.show(cardPanel, "BulkDisbursement"); break;
+                case "Update Information":     cardLayout.show(cardPanel, "UpdateInfo"); break;
+                case "Change PIN":             cardLayout.show(cardPanel, "ChangePIN"); break;
+                case "Delete Account":         cardLayout.show(cardPanel, "DeleteAccount"); break;
+                case "Logout":
+                    Logger.log("User logged out: " + user.getUsername());
+                    PinHasher.forget(user);
+                    sessions.close(session.token());
+                    session = null;
+                    showSuccess("Logged out successfully.");
+                    cardLayout.show(cardPanel, "Welcome");
+                    break;
+                default: break;
+            }
+        }
+    }
+
+
+    // Amounts are longs in paisa (1/100 BDT). Parsing and formatting work on
+    // the digits directly, with no double, BigDecimal or boxed values.
+    static final class Money {
+        static final long MAX_AMOUNT = 1_000_000_000_000_00L; // one trillion BDT
+        private static final long MAX_UNITS = Long.MAX_VALUE / 100 / 10;
+
+        private Money() { }
+
+        // Accepts [+-]digits[.d[d]]; digits beyond paisa must be zero
+        static long parse(CharSequence s) {
+            int start = 0;
+            int end = s.length();
+            while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+            while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+            boolean negative = false;
+            if (start < end && (s.charAt(start) == '+' || s.charAt(start) == '-')) {
+                negative = s.charAt(start) == '-';
+                start++;
+            }
+            long units = 0;
+            long paisa = 0;
+            int fractionDigits = -1;
+            boolean digits = false;
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                    continue;
+                }
+                if (c < '0' || c > '9') throw invalid(s);
+                int d = c - '0';
+                digits = true;
+                if (fractionDigits < 0) {
+                    if (units > MAX_UNITS) throw invalid(s);
+                    units = units * 10 + d;
+                } else if (fractionDigits < 2) {
+                    paisa = paisa * 10 + d;
+                    fractionDigits++;
+                } else if (d != 0) {
+                    throw invalid(s);
+                }
+            }
+            if (!digits) throw invalid(s);
+            if (fractionDigits == 1) paisa *= 10;
+            long value = units * 100 + paisa;
+            return negative ? -value : value;
+        }
+
+        static long fromDouble(double bdt) {
+            return Math.round(bdt * 100);
+        }
+
+        // Same shape as "%,.2f": 1,234,567.89
+        static String format(long paisa) {
+            return appendTo(new StringBuilder(24), paisa).toString();
+        }
+
+        static StringBuilder appendTo(StringBuilder sb, long paisa) {
+            if (paisa < 0) {
+                sb.append('-');
+                paisa = -paisa;
+            }
+            appendGrouped(sb, paisa / 100);
+            int cents = (int) (paisa % 100);
+            return sb.append('.').append((char) ('0' + cents / 10)).append((char) ('0' + cents % 10));
+        }
+
+        private static void appendGrouped(StringBuilder sb, long units) {
+            if (units < 1000) {
+                sb.append(units);
+                return;
+            }
+            appendGrouped(sb, units / 1000);
+            int rest = (int) (units % 1000);
+            sb.append(',');
+            if (rest < 100) sb.append('0');
+            if (rest < 10) sb.append('0');
+            sb.append(rest);
+        }
+
+        private static NumberFormatException invalid(CharSequence s) {
+            return new NumberFormatException("Invalid amount: " + s);
+        }
+    }
+
+    // Inner classes (Serializable)
+
+
+    static class Transaction implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private static final DateTimeFormatter TIME_FORMAT =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+        private final String type;
+        private final long amount; // paisa
+        private final String description;
+        private final String counterparty; // other account's phone, for transfers
+        private final long timestamp;
+        private long id; // numbered by Ledger.append, 0 until then
+
+        Transaction(String type, long amount, String description) {
+            this(type, amount, description, null, System.currentTimeMillis());
+        }
+
+        Transaction(String type, long amount, String description, String counterparty) {
+            this(type, amount, description, counterparty, System.currentTimeMillis());
+        }
+
+        Transaction(String type, long amount, String description, long timestamp) {
+            this(type, amount, description, parseCounterparty(type, description), timestamp);
+        }
+
+        Transaction(String type, long amount, String description, String counterparty, long timestamp) {
+            this.type = type;
+            this.amount = amount;
+            this.description = description;
+            this.counterparty = counterparty;
+            this.timestamp = timestamp;
+        }
+
+        // Older records only name the other account in the description text
+        static String parseCounterparty(String type, String description) {
+            if (description == null) return null;
+            if ("Transfer Out".equals(type) && description.startsWith("To ")) return description.substring(3).trim();
+            if ("Transfer In".equals(type) && description.startsWith("From ")) return description.substring(5).trim();
+            return null;
+        }
+
+        String time() {
+            return TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+        }
+
+        long id() { return id; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(80).append('[').append(time()).append("] ").append(type);
+            for (int i = String.valueOf(type).length(); i < 16; i++) sb.append(' ');
+            Money.appendTo(sb.append(" BDT "), amount);
+            return sb.append("  |  ").append(description).toString();
+        }
+    }
+
+    // Newest-first view of one account's ledger chain, or of search results,
+    // for the history table. Nothing is read up front: record offsets are
+    // resolved by walking the chain only as far as the rows asked for, and
+    // rows are decoded and formatted a page at a time, keeping the last few
+    // pages.
+    static class HistoryTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        private static final String[] COLUMNS = {"Date", "Type", "Amount (BDT)", "Details"};
+        private static final int PAGE_SIZE = 128;
+        private static final int CACHED_PAGES = 8;
+
+        private Ledger ledger;
+        private int rows;
+        private long[] offsets = new long[0];
+        private int resolved;
+        private final Map<Integer, String[][]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+                return size() > CACHED_PAGES;
+            }
+        };
+
+        void show(Ledger ledger, User u) {
+            this.ledger = ledger;
+            rows = u.getTransactionCount();
+            offsets = new long[Math.min(rows, PAGE_SIZE)];
+            if (rows > 0) offsets[0] = u.getLedgerHead();
+            resolved = rows > 0 ? 1 : 0;
+            pages.clear();
+            fireTableDataChanged();
+        }
+
+        // A precomputed list of offsets, newest first, from a filtered search
+        void showMatches(Ledger ledger, long[] matches) {
+            this.ledger = ledger;
+            rows = matches.length;
+            offsets = matches;
+            resolved = rows;
+            pages.clear();
+            fireTableDataChanged();
+        }
+
+        void clear() {
+            ledger = null;
+            rows = 0;
+            offsets = new long[0];
+            resolved = 0;
+            pages.clear();
+            fireTableDataChanged();
+        }
+
+        @Override public int getRowCount() { return rows; }
+        @Override public int getColumnCount() { return COLUMNS.length; }
+        @Override public String getColumnName(int column) { return COLUMNS[column]; }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            String[][] page = page(row / PAGE_SIZE);
+            int i = row % PAGE_SIZE;
+            return i < page.length ? page[i][column] : "";
+        }
+
+        private String[][] page(int index) {
+            String[][] page = pages.get(index);
+            if (page != null) return page;
+            int first = index * PAGE_SIZE;
+            int n = Math.min(PAGE_SIZE, rows - first);
+            page = new String[Math.max(0, n)][];
+            try {
+                resolve(first + n);
+                for (int i = 0; i < page.length; i++) {
+                    Transaction t = ledger.read(offsets[first + i]);
+                    page[i] = new String[] {t.time(), t.type, Money.format(t.amount), t.description};
+                }
+            } catch (IOException e) {
+                for (int i = 0; i < page.length; i++) {
+                    if (page[i] == null) page[i] = new String[] {"", "", "", "Unreadable record: " + e.getMessage()};
+                }
+            }
+            pages.put(index, page);
+            return page;
+        }
+
+        private void resolve(int count) throws IOException {
+            if (count <= resolved) return;
+            if (offsets.length < count) offsets = Arrays.copyOf(offsets, Math.min(rows, Math.max(count, offsets.length * 2)));
+            while (resolved < count) {
+                offsets[resolved] = ledger.previous(offsets[resolved - 1]);
+                resolved++;
+            }
+        }
+    }
+
+    static abstract class User implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private String username;
+        private String phoneNumber;
+        private String pin;
+        private String fullName;
+
+        private String dob;
+        private String gender;
+        private String email;
+
+        private String motherName;
+        private String fatherName;
+
+        private String nationalId;
+        private String birthCertificate;
+
+        private String permanentAddress;
+        private String presentAddress;
+
+        private volatile long balance; // paisa
+
+        // Newest record in the ledger (0 = none) and how many the chain holds
+        private long ledgerHead;
+        private int transactionCount;
+
+        // Only set while migrating data written before the ledger existed
+        List<Transaction> transactions;
+
+        public User(String username, String phoneNumber, String pin) {
+            this.username = username;
+            this.phoneNumber = phoneNumber;
+            this.pin = pin;
+            //this.fullName = fullName;
+        }
+
+        // Getters/Setters
+        public String getUsername() { return username; }
+        public String getPhoneNumber() { return phoneNumber; }
+        public String getPin() { return pin; }
+        public String getFullName() { return fullName; }
+        public String getDob() { return dob; }
+        public String getGender() { return gender; }
+        public String getEmail() { return email; }
+        public String getMotherName() { return motherName; }
+        public String getFatherName() { return fatherName; }
+        public String getNationalId() { return nationalId; }
+        public String getBirthCertificate() { return birthCertificate; }
+        public String getPermanentAddress() { return permanentAddress; }
+        public String getPresentAddress() { return presentAddress; }
+        public long getBalance() { return balance; }
+        public long getLedgerHead() { return ledgerHead; }
+        public int getTransactionCount() { return transactionCount; }
+
+        public void setPin(String pin) { this.pin = pin; }
+        public void setFullName(String s) { this.fullName = s; }
+        public void setDob(String s) { this.dob = s; }
+        public void setGender(String s) { this.gender = s; }
+        public void setEmail(String s) { this.email = s; }
+        public void setMotherName(String s) { this.motherName = s; }
+        public void setFatherName(String s) { this.fatherName = s; }
+        public void setNationalId(String s) { this.nationalId = s; }
+        public void setBirthCertificate(String s) { this.birthCertificate = s; }
+        public void setPermanentAddress(String s) { this.permanentAddress = s; }
+        public void setPresentAddress(String s) { this.presentAddress = s; }
+        public void setBalance(long b) { this.balance = b; }
+        public void setLedger(long head, int count) { this.ledgerHead = head; this.transactionCount = count; }
+    }
+
+    static class RegularUser extends User {
+        private static final long serialVersionUID = 1L;
+        public RegularUser(String username, String phoneNumber, String pin,
+                            String email,
+                           String nationalId) {
+            super(username, phoneNumber, pin);
+            //setDob(dob);
+           // setGender(gender);
+            setEmail(email);
+            //setMotherName(motherName);
+            //setFatherName(fatherName);
+            setNationalId(nationalId);
+           // setBirthCertificate(birthCertificate);
+            //setPermanentAddress(permanentAddress);
+           // setPresentAddress(presentAddress);
+        }
+    }
+
+    // All accounts, with hash indexes so lookups don't scan the list.
+    // Lookups never lock; changes to the list are synchronized.
+    // While a Loader is set the accounts are still coming in from disk: a
+    // lookup by phone has the loader bring in that account's part of the
+    // file first, and anything that needs every account waits for the rest.
+    static class UserDirectory {
+        private final List<User> list = new ArrayList<>();
+        private final Map<String, User> byPhone = new ConcurrentHashMap<>();
+        private final Map<String, User> byUsername = new ConcurrentHashMap<>();
+        private volatile Loader loader;
+
+        interface Loader {
+            void load(String phone); // returns once phone's partition is in
+            void await();            // returns once every account is in
+        }
+
+        UserDirectory() { }
+
+        UserDirectory(List<User> initial) {
+            for (User u : initial) add(u);
+        }
+
+        void loadingFrom(Loader l) { loader = l; }
+
+        // Called by the loader after the last addAll()
+        void loaded() { loader = null; }
+
+        void awaitLoaded() {
+            Loader l = loader;
+            if (l != null) l.await();
+        }
+
+        synchronized void addAll(List<User> batch) {
+            for (User u : batch) add(u);
+        }
+
+        synchronized void add(User u) {
+            list.add(u);
+            // first registration wins, same as the old linear scan
+            byPhone.putIfAbsent(u.getPhoneNumber(), u);
+            byUsername.putIfAbsent(u.getUsername(), u);
+        }
+
+        synchronized boolean remove(User u) {
+            if (!list.remove(u)) return false;
+            if (byPhone.remove(u.getPhoneNumber(), u)) reindexPhone(u.getPhoneNumber());
+            if (byUsername.remove(u.getUsername(), u)) reindexUsername(u.getUsername());
+            return true;
+        }
+
+        User findByPhone(String phone) {
+            // read the loader first: once it is cleared every account is in
+            Loader l = loader;
+            User u = byPhone.get(phone);
+            if (u != null || l == null) return u;
+            l.load(phone);
+            return byPhone.get(phone);
+        }
+
+        User findByUsername(String username) {
+            awaitLoaded();
+            return byUsername.get(username);
+        }
+
+        int size() {
+            awaitLoaded();
+            synchronized (this) {
+                return list.size();
+            }
+        }
+
+        List<User> asList() {
+            awaitLoaded();
+            synchronized (this) {
+                return new ArrayList<>(list);
+            }
+        }
+
+        // Only needed when an old data file holds duplicate keys
+        private void reindexPhone(String phone) {
+            for (User u : list) {
+                if (u.getPhoneNumber().equals(phone)) { byPhone.put(phone, u); return; }
+            }
+        }
+
+        private void reindexUsername(String username) {
+            for (User u : list) {
+                if (u.getUsername().equals(username)) { byUsername.put(username, u); return; }
+            }
+        }
+    }
+
+    // Versioned binary format for users.dat: fixed-width numbers first,
+    // then length-prefixed UTF-8 strings; known transaction types are one byte.
+    // From version 4 the accounts are packed into blocks of about 64 KB, each
+    // with its account count, length and CRC32C, and the file ends with a
+    // trailer holding the block count and a CRC32C of the header, so a torn
+    // or damaged file is caught on load instead of read as fewer accounts.
+    // The header also carries the snapshot's generation number.
+    // From version 5 accounts are grouped by a hash of their phone number
+    // into partitions, a block never spans two, and an index of partitions
+    // and block offsets follows the trailer, so one account can be found
+    // without decoding the rest of the file (see SnapshotFile).
+    static class UserCodec {
+        private static final int MAGIC = 0x43505355; // "CPSU"
+        private static final short VERSION = 5;
+        private static final int BUFFER = 1 << 16;
+        private static final int BLOCK = 1 << 16;
+        private static final int PARTITION_USERS = 256;
+        private static final byte KIND_REGULAR = 1;
+        private static final String[] TYPES = {
+                null, "Deposit", "Withdraw", "Transfer Out", "Transfer In", "Convocation Payment", "Bill Payment"
+        };
+
+        static void write(List<User> users, File f) throws IOException {
+            try (OutputStream out = new FileOutputStream(f)) {
+                write(users, out);
+            }
+        }
+
+        static void write(List<User> users, OutputStream os) throws IOException {
+            write(users, 0, os);
+        }
+
+        static void write(List<User> users, long generation, OutputStream os) throws IOException {
+            int count = users.size();
+            int partitions = partitionsFor(count);
+            int[] part = new int[count];
+            int[] start = new int[partitions + 1];
+            for (int i = 0; i < count; i++) {
+                part[i] = partition(users.get(i).getPhoneNumber(), partitions);
+                start[part[i] + 1]++;
+            }
+            for (int p = 0; p < partitions; p++) start[p + 1] += start[p];
+            // stable, so accounts keep their order within a partition
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) order[start[part[i]]++] = i;
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, BUFFER));
+            byte[] header = header(VERSION, generation, count, partitions);
+            out.write(header);
+            Block block = new Block();
+            DataOutputStream blockOut = new DataOutputStream(block);
+            CRC32C crc = new CRC32C();
+            int[] firstBlock = new int[partitions + 1];
+            long[] offsets = new long[16];
+            long offset = header.length;
+            int blocks = 0;
+            int inBlock = 0;
+            int current = -1;
+            for (int k = 0; k <= count; k++) {
+                int p = k < count ? part[order[k]] : partitions;
+                if (inBlock > 0 && (p != current || block.size() >= BLOCK)) {
+                    crc.reset();
+                    crc.update(block.bytes(), 0, block.size());
+                    if (blocks == offsets.length) offsets = Arrays.copyOf(offsets, blocks * 2);
+                    offsets[blocks++] = offset;
+                    out.writeInt(inBlock);
+                    out.writeInt(block.size());
+                    out.writeInt((int) crc.getValue());
+                    out.write(block.bytes(), 0, block.size());
+                    offset += 12 + block.size();
+                    block.reset();
+                    inBlock = 0;
+                }
+                while (current < p) firstBlock[++current] = blocks;
+                if (k == count) break;
+                writeUser(blockOut, users.get(order[k]));
+                inBlock++;
+            }
+            crc.reset();
+            crc.update(header, 0, header.length);
+            out.writeInt(0);
+            out.writeInt(blocks);
+            out.writeInt((int) crc.getValue());
+            ByteBuffer index = ByteBuffer.allocate(4 * (partitions + 1) + 8 * blocks);
+            for (int first : firstBlock) index.putInt(first);
+            for (int b = 0; b < blocks; b++) index.putLong(offsets[b]);
+            crc.reset();
+            crc.update(index.array(), 0, index.capacity());
+            out.write(index.array());
+            out.writeInt((int) crc.getValue());
+            out.writeInt(index.capacity());
+            out.flush();
+        }
+
+        // Enough partitions that each fits in about one block
+        static int partitionsFor(int count) {
+            return Integer.highestOneBit(Math.max(1, Math.min(count / PARTITION_USERS, 1 << 24)));
+        }
+
+        static int partition(String phone, int partitions) {
+            int h = (phone == null ? 0 : phone.hashCode()) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (partitions - 1);
+        }
+
+        private static byte[] header(int version, long generation, int count, int partitions) {
+            ByteBuffer header = ByteBuffer.allocate(version >= 5 ? 22 : 18);
+            header.putInt(MAGIC).putShort((short) version).putLong(generation).putInt(count);
+            if (version >= 5) header.putInt(partitions);
+            return header.array();
+        }
+
+        static List<User> read(File f) throws IOException {
+            return readSnapshot(f).users;
+        }
+
+        static List<User> read(InputStream is) throws IOException {
+            return readSnapshot(is).users;
+        }
+
+        // What a users.dat held; blocks is 0 for files from before version 4
+        static final class Snapshot {
+            final List<User> users;
+            final int version;
+            final long generation;
+            final int blocks;
+
+            Snapshot(List<User> users, int version, long generation, int blocks) {
+                this.users = users;
+                this.version = version;
+                this.generation = generation;
+                this.blocks = blocks;
+            }
+        }
+
+        static Snapshot readSnapshot(File f) throws IOException {
+            try (InputStream in = new FileInputStream(f)) {
+                return readSnapshot(in);
+            }
+        }
+
+        static Snapshot readSnapshot(InputStream is) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is, BUFFER));
+            if (in.readInt() != MAGIC) throw new IOException("Not a user data file");
+            short version = in.readShort();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported user data version " + version);
+            long generation = version >= 4 ? in.readLong() : 0;
+            int count = in.readInt();
+            if (count < 0) throw new IOException("Bad account count " + count);
+            int partitions = version >= 5 ? in.readInt() : 0;
+            List<User> users = new ArrayList<>(Math.min(count, 1 << 20));
+            if (version < 4) {
+                for (int i = 0; i < count; i++) users.add(readUser(in, version));
+                return new Snapshot(users, version, 0, 0);
+            }
+            CRC32C crc = new CRC32C();
+            byte[] bytes = new byte[BLOCK * 2];
+            int blocks = 0;
+            while (true) {
+                int inBlock = in.readInt();
+                int len = in.readInt();
+                int sum = in.readInt();
+                if (inBlock == 0) {
+                    // the version 5 index after the trailer is only for SnapshotFile
+                    byte[] header = header(version, generation, count, partitions);
+                    crc.reset();
+                    crc.update(header, 0, header.length);
+                    if (len != blocks || sum != (int) crc.getValue() || users.size() != count) {
+                        throw new IOException("Damaged user data trailer");
+                    }
+                    return new Snapshot(users, version, generation, blocks);
+                }
+                if (inBlock < 0 || len < 0 || inBlock > count - users.size()) {
+                    throw new IOException("Damaged user data block " + blocks);
+                }
+                if (len > bytes.length) bytes = new byte[len];
+                in.readFully(bytes, 0, len);
+                crc.reset();
+                crc.update(bytes, 0, len);
+                if ((int) crc.getValue() != sum) throw new IOException("Checksum mismatch in user data block " + blocks);
+                ByteArrayInputStream blockIn = new ByteArrayInputStream(bytes, 0, len);
+                DataInputStream data = new DataInputStream(blockIn);
+                for (int i = 0; i < inBlock; i++) users.add(readUser(data, version));
+                if (blockIn.available() != 0) throw new IOException("Damaged user data block " + blocks);
+                blocks++;
+            }
+        }
+
+        // Lets a block be checksummed and copied out without toByteArray()
+        private static final class Block extends ByteArrayOutputStream {
+            Block() { super(BLOCK + 4096); }
+            byte[] bytes() { return buf; }
+        }
+
+        // Random access to a version 5 users.dat. Opening reads only the
+        // header, trailer and index; verify() checks every block, and
+        // readPartition() decodes just the accounts of one partition.
+        // Reads are positional, so any number of threads may share one.
+        static final class SnapshotFile implements Closeable {
+            private static final int HEADER = 22;
+            private static final long VERIFY_WINDOW = 64L << 20;
+
+            final long generation;
+            final int count;
+            final int partitions;
+            private final FileChannel channel;
+            private final int[] firstBlock;
+            private final long[] offsets;
+            private final long trailerAt;
+
+            private SnapshotFile(FileChannel channel, long generation, int count, int partitions,
+                                 int[] firstBlock, long[] offsets, long trailerAt) {
+                this.channel = channel;
+                this.generation = generation;
+                this.count = count;
+                this.partitions = partitions;
+                this.firstBlock = firstBlock;
+                this.offsets = offsets;
+                this.trailerAt = trailerAt;
+            }
+
+            static SnapshotFile open(File f) throws IOException {
+                FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                try {
+                    long size = channel.size();
+                    if (size < HEADER + 12 + 8) throw new IOException("Damaged user data file");
+                    ByteBuffer header = read(channel, 0, HEADER);
+                    if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                        throw new IOException("Not a version " + VERSION + " user data file");
+                    }
+                    long generation = header.getLong();
+                    int count = header.getInt();
+                    int partitions = header.getInt();
+                    if (count < 0 || partitions <= 0 || Integer.bitCount(partitions) != 1) {
+                        throw new IOException("Damaged user data header");
+                    }
+                    ByteBuffer footer = read(channel, size - 8, 8);
+                    int sum = footer.getInt();
+                    int len = footer.getInt();
+                    long indexAt = size - 8 - len;
+                    if (len < 4 * (partitions + 1) || (len - 4 * (partitions + 1)) % 8 != 0 || indexAt < HEADER + 12) {
+                        throw new IOException("Damaged user data index");
+                    }
+                    ByteBuffer index = read(channel, indexAt, len);
+                    CRC32C crc = new CRC32C();
+                    crc.update(index.array(), 0, len);
+                    if ((int) crc.getValue() != sum) throw new IOException("Checksum mismatch in user data index");
+                    int blocks = (len - 4 * (partitions + 1)) / 8;
+                    ByteBuffer trailer = read(channel, indexAt - 12, 12);
+                    crc.reset();
+                    crc.update(header.array(), 0, HEADER);
+                    if (trailer.getInt() != 0 || trailer.getInt() != blocks || trailer.getInt() != (int) crc.getValue()) {
+                        throw new IOException("Damaged user data trailer");
+                    }
+                    int[] firstBlock = new int[partitions + 1];
+                    for (int p = 0; p <= partitions; p++) {
+                        firstBlock[p] = index.getInt();
+                        if (firstBlock[p] < (p == 0 ? 0 : firstBlock[p - 1])) throw new IOException("Damaged user data index");
+                    }
+                    if (firstBlock[0] != 0 || firstBlock[partitions] != blocks) throw new IOException("Damaged user data index");
+                    long[] offsets = new long[blocks];
+                    for (int b = 0; b < blocks; b++) {
+                        offsets[b] = index.getLong();
+                        if (offsets[b] < (b == 0 ? HEADER : offsets[b - 1] + 12) || offsets[b] + 12 > indexAt - 12) {
+                            throw new IOException("Damaged user data index");
+                        }
+                    }
+                    return new SnapshotFile(channel, generation, count, partitions, firstBlock, offsets, indexAt - 12);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+
+            int blocks() { return offsets.length; }
+
+            int partitionOf(String phone) { return partition(phone, partitions); }
+
+            // Checks every block against its CRC, and that together they hold
+            // the header's account count; contiguous runs of blocks are
+            // checked on up to threads tasks of the pool
+            void verify(ExecutorService pool, int threads) throws IOException {
+                int slices = Math.max(1, Math.min(threads, offsets.length));
+                List<Future<Long>> runs = new ArrayList<>(slices);
+                for (int s = 0; s < slices; s++) {
+                    int from = (int) ((long) offsets.length * s / slices);
+                    int to = (int) ((long) offsets.length * (s + 1) / slices);
+                    runs.add(pool.submit(() -> verify(from, to)));
+                }
+                long total = 0;
+                for (Future<Long> run : runs) {
+                    try {
+                        total += run.get();
+                    } catch (ExecutionException e) {
+                        throw Persistence.ioCause(e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while checking user data");
+                    }
+                }
+                if (total != count) throw new IOException("User data blocks hold " + total + " accounts, header says " + count);
+            }
+
+            // Maps the run a window at a time, so the checksums run straight
+            // over the page cache instead of through a copy
+            private long verify(int from, int to) throws IOException {
+                long accounts = 0;
+                int b = from;
+                while (b < to) {
+                    long start = offsets[b];
+                    int last = b;
+                    while (last + 1 < to && end(last + 1) - start <= VERIFY_WINDOW) last++;
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, end(last) - start);
+                    for (; b <= last; b++) {
+                        accounts += check(window.slice((int) (offsets[b] - start), (int) (end(b) - offsets[b])), b);
+                    }
+                }
+                return accounts;
+            }
+
+            List<User> readPartition(int p) throws IOException {
+                List<User> users = new ArrayList<>();
+                for (int b = firstBlock[p]; b < firstBlock[p + 1]; b++) {
+                    ByteBuffer block = read(channel, offsets[b], (int) (end(b) - offsets[b]));
+                    int inBlock = check(block.duplicate(), b);
+                    ByteArrayInputStream blockIn = new ByteArrayInputStream(block.array(), 12, block.capacity() - 12);
+                    DataInputStream data = new DataInputStream(blockIn);
+                    for (int i = 0; i < inBlock; i++) {
+                        User u = readUser(data, VERSION);
+                        if (partitionOf(u.getPhoneNumber()) != p) throw new IOException("Misplaced account in user data block " + b);
+                        users.add(u);
+                    }
+                    if (blockIn.available() != 0) throw new IOException("Damaged user data block " + b);
+                }
+                return users;
+            }
+
+            // The index says where each block ends, so a block is always
+            // read or mapped whole
+            private long end(int b) {
+                return b + 1 < offsets.length ? offsets[b + 1] : trailerAt;
+            }
+
+            // Returns the block's account count once its length and CRC match
+            private static int check(ByteBuffer block, int b) throws IOException {
+                int inBlock = block.getInt();
+                int len = block.getInt();
+                int sum = block.getInt();
+                if (inBlock <= 0 || len != block.remaining()) throw new IOException("Damaged user data block " + b);
+                CRC32C crc = new CRC32C();
+                crc.update(block);
+                if ((int) crc.getValue() != sum) throw new IOException("Checksum mismatch in user data block " + b);
+                return inBlock;
+            }
+
+            private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position + buf.position()) < 0) throw new EOFException("Truncated user data file");
+                }
+                buf.flip();
+                return buf;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        }
+
+        // Old files start with the Java serialization stream magic
+        static boolean isLegacy(File f) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+                return f.length() >= 2 && in.readShort() == (short) 0xACED;
+            }
+        }
+
+        // Version 1 kept transactions inline instead of in the ledger; versions
+        // before 3 stored amounts as double BDT rather than long paisa
+        static boolean isCurrent(File f) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+                return f.length() >= 6 && in.readInt() == MAGIC && in.readShort() == VERSION;
+            }
+        }
+
+        static List<User> readLegacy(File f) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream ois = new LegacyInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER))) {
+                Object obj = ois.readObject();
+                List<User> users = new ArrayList<>();
+                if (!(obj instanceof List<?>)) return users;
+                for (Object o : (List<?>) obj) {
+                    if (o instanceof LegacyUser) users.add(((LegacyUser) o).toUser());
+                }
+                return users;
+            }
+        }
+
+        // The old serialized classes no longer match User and Transaction, so
+        // their stream descriptors are swapped for look-alike shadow classes
+        private static class LegacyInputStream extends ObjectInputStream {
+            LegacyInputStream(InputStream in) throws IOException {
+                super(in);
+            }
+
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass desc = super.readClassDescriptor();
+                String name = desc.getName();
+                if (name.endsWith("$User")) return ObjectStreamClass.lookup(LegacyUser.class);
+                if (name.endsWith("$RegularUser")) return ObjectStreamClass.lookup(LegacyRegularUser.class);
+                if (name.endsWith("$Transaction")) return ObjectStreamClass.lookup(LegacyTransaction.class);
+                return desc;
+            }
+        }
+
+        private static class LegacyTransaction implements Serializable {
+            private static final long serialVersionUID = 1L;
+            private String type;
+            private double amount;
+            private String description;
+            private long timestamp;
+        }
+
+        private static abstract class LegacyUser implements Serializable {
+            private static final long serialVersionUID = 2L;
+            private String username, phoneNumber, pin, fullName, dob, gender, email, motherName, fatherName,
+                    nationalId, birthCertificate, permanentAddress, presentAddress;
+            private double balance;
+            private List<LegacyTransaction> transactions;
+
+            User toUser() {
+                User u = new RegularUser(username, phoneNumber, pin, email, nationalId);
+                u.setFullName(fullName);
+                u.setDob(dob);
+                u.setGender(gender);
+                u.setMotherName(motherName);
+                u.setFatherName(fatherName);
+                u.setBirthCertificate(birthCertificate);
+                u.setPermanentAddress(permanentAddress);
+                u.setPresentAddress(presentAddress);
+                u.setBalance(Money.fromDouble(balance));
+                u.transactions = new ArrayList<>();
+                if (transactions != null) {
+                    for (LegacyTransaction t : transactions) {
+                        u.transactions.add(new Transaction(t.type, Money.fromDouble(t.amount), t.description, t.timestamp));
+                    }
+                }
+                return u;
+            }
+        }
+
+        private static class LegacyRegularUser extends LegacyUser {
+            private static final long serialVersionUID = 1L;
+        }
+
+        static void writeUser(DataOutputStream out, User u) throws IOException {
+            out.writeByte(KIND_REGULAR);
+            out.writeLong(u.getBalance());
+            out.writeLong(u.getLedgerHead());
+            out.writeInt(u.getTransactionCount());
+            writeString(out, u.getPhoneNumber());
+            writeString(out, u.getUsername());
+            writeString(out, u.getPin());
+            writeString(out, u.getFullName());
+            writeString(out, u.getDob());
+            writeString(out, u.getGender());
+            writeString(out, u.getEmail());
+            writeString(out, u.getMotherName());
+            writeString(out, u.getFatherName());
+            writeString(out, u.getNationalId());
+            writeString(out, u.getBirthCertificate());
+            writeString(out, u.getPermanentAddress());
+            writeString(out, u.getPresentAddress());
+        }
+
+        static User readUser(DataInputStream in, int version) throws IOException {
+            byte kind = in.readByte();
+            if (kind != KIND_REGULAR) throw new IOException("Unknown account kind " + kind);
+            long balance = version >= 3 ? in.readLong() : Money.fromDouble(in.readDouble());
+            long ledgerHead = version >= 2 ? in.readLong() : 0;
+            int txCount = in.readInt();
+            String phone = readString(in);
+            String username = readString(in);
+            User u = new RegularUser(username, phone, readString(in), null, null);
+            u.setFullName(readString(in));
+            u.setDob(readString(in));
+            u.setGender(readString(in));
+            u.setEmail(readString(in));
+            u.setMotherName(readString(in));
+            u.setFatherName(readString(in));
+            u.setNationalId(readString(in));
+            u.setBirthCertificate(readString(in));
+            u.setPermanentAddress(readString(in));
+            u.setPresentAddress(readString(in));
+            u.setBalance(balance);
+            if (version >= 2) {
+                u.setLedger(ledgerHead, txCount);
+            } else {
+                u.transactions = new ArrayList<>(txCount);
+                for (int i = 0; i < txCount; i++) u.transactions.add(readTransaction(in, version));
+            }
+            return u;
+        }
+
+        static void writeTransaction(DataOutputStream out, Transaction t) throws IOException {
+            out.writeLong(t.timestamp);
+            out.writeLong(t.amount);
+            int code = typeCode(t.type);
+            out.writeByte(code);
+            if (code == 0) writeString(out, t.type);
+            writeString(out, t.description);
+        }
+
+        static Transaction readTransaction(DataInputStream in, int version) throws IOException {
+            long timestamp = in.readLong();
+            long amount = version >= 3 ? in.readLong() : Money.fromDouble(in.readDouble());
+            int code = in.readUnsignedByte();
+            if (code >= TYPES.length) throw new IOException("Unknown transaction type " + code);
+            String type = code == 0 ? readString(in) : TYPES[code];
+            return new Transaction(type, amount, readString(in), timestamp);
+        }
+
+        static int typeCode(String type) {
+            for (int i = 1; i < TYPES.length; i++) {
+                if (TYPES[i].equals(type)) return i;
+            }
+            return 0;
+        }
+
+        // Varint length prefix holding length + 1, so 0 marks a null string
+        static void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeByte(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+
+        static String readString(DataInputStream in) throws IOException {
+            int len = readVarInt(in) - 1;
+            if (len < 0) return null;
+            byte[] bytes = new byte[len];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+            while ((v & ~0x7F) != 0) {
+                out.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte(v);
+        }
+
+        private static int readVarInt(DataInputStream in) throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("Malformed length prefix");
+        }
+    }
+
+    // Transactions as fixed-size records in memory-mapped segments. An account
+    // only holds the offset of its newest record; each record points back to
+    // the previous one, and Transaction objects are built when history is read.
+    static class Ledger {
+        private static final int MAGIC = 0x4350534C; // "CPSL"
+        // 1 stored amounts as double BDT, 2 had no counterparty field, 3 no transaction IDs
+        private static final int VERSION = 4;
+        static final int RECORD_SIZE = 128;
+        private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
+        // Header occupies the first record slot
+        private static final int H_MAGIC = 0, H_VERSION = 4, H_RECORD_SIZE = 8, H_END = 16, H_LAST_ID = 24;
+
+        // Record layout; TEXT holds the free-text type (if any), counterparty and description
+        private static final int PREV = 0, TIME = 8, AMOUNT = 16, TYPE = 24, TYPE_LEN = 25, DESC_LEN = 26,
+                PARTY_LEN = 28, ID = 29, TEXT = 37;
+        private static final int TEXT_BYTES = RECORD_SIZE - TEXT;
+        private static final int V2_TEXT = 28, V3_TEXT = 29;
+
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private long end;
+        private long synced;
+        private long lastId;
+        private int idOffset = 0, idStride = 1;
+        // Statement aggregates and search indexes for accounts that have been queried, by phone
+        private final Map<String, AccountSummary> summaries = new ConcurrentHashMap<>();
+        private final Map<String, TransactionIndex> indexes = new ConcurrentHashMap<>();
+
+        private Ledger(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static Ledger open(File f) throws IOException {
+            FileChannel ch = FileChannel.open(f.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Ledger ledger = new Ledger(ch);
+            MappedByteBuffer head = ledger.segment(0);
+            if (head.getInt(H_MAGIC) == 0) {
+                head.putInt(H_MAGIC, MAGIC);
+                head.putInt(H_VERSION, VERSION);
+                head.putInt(H_RECORD_SIZE, RECORD_SIZE);
+                head.putLong(H_END, RECORD_SIZE);
+            } else if (head.getInt(H_MAGIC) != MAGIC || head.getInt(H_VERSION) < 1 || head.getInt(H_VERSION) > VERSION
+                    || head.getInt(H_RECORD_SIZE) != RECORD_SIZE) {
+                ch.close();
+                throw new IOException("Not a ledger file: " + f);
+            }
+            if (head.getInt(H_VERSION) < VERSION) {
+                ch.close();
+                upgrade(f);
+                return open(f);
+            }
+            ledger.end = head.getLong(H_END);
+            ledger.synced = ledger.end;
+            ledger.lastId = head.getLong(H_LAST_ID);
+            return ledger;
+        }
+
+        // Older layouts are converted in a copy that replaces the file only
+        // once it is complete and forced. Conversion can't be rerun over its
+        // own output, so a crash part way through must leave the original
+        // untouched; the next start then converts it again from scratch.
+        private static void upgrade(File f) throws IOException {
+            File temp = new File(f.getPath() + ".upgrade");
+            java.nio.file.Files.copy(f.toPath(), temp.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            Ledger copy = new Ledger(FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            try {
+                MappedByteBuffer head = copy.segment(0);
+                copy.end = head.getLong(H_END);
+                if (head.getInt(H_VERSION) == 1) copy.convertAmountsToPaisa();
+                copy.upgradeRecords(head.getInt(H_VERSION));
+            } finally {
+                copy.close();
+            }
+            java.nio.file.Files.move(temp.toPath(), f.toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // IDs from here on are the multiples of stride plus offset, so ledgers
+        // numbering with the same stride and different offsets never share one
+        synchronized void numbering(int offset, int stride) {
+            idOffset = offset;
+            idStride = stride;
+        }
+
+        // Numbers the transaction and returns its ID. IDs follow file order,
+        // so they are unique and increase with every record appended.
+        synchronized long append(User u, Transaction t) throws IOException {
+            long offset = end;
+            MappedByteBuffer seg = segment(offset);
+            int pos = (int) (offset % SEGMENT_SIZE);
+            byte[] type = null;
+            int code = UserCodec.typeCode(t.type);
+            if (code == 0 && t.type != null) type = fit(t.type.getBytes(StandardCharsets.UTF_8), TEXT_BYTES);
+            int typeLen = type == null ? 0 : type.length;
+            byte[] party = t.counterparty == null ? new byte[0]
+                    : fit(t.counterparty.getBytes(StandardCharsets.UTF_8), TEXT_BYTES - typeLen);
+            byte[] desc = t.description == null ? new byte[0]
+                    : fit(t.description.getBytes(StandardCharsets.UTF_8), TEXT_BYTES - typeLen - party.length);
+
+            long previous = u.getLedgerHead();
+            seg.putLong(pos + PREV, previous);
+            seg.putLong(pos + TIME, t.timestamp);
+            seg.putLong(pos + AMOUNT, t.amount);
+            lastId = (lastId / idStride + 1) * idStride + idOffset;
+            seg.putLong(pos + ID, lastId);
+            writeText(seg, pos, code, type, party, desc);
+
+            end = offset + RECORD_SIZE;
+            segment(0).putLong(H_END, end);
+            segment(0).putLong(H_LAST_ID, lastId);
+            u.setLedger(offset, u.getTransactionCount() + 1);
+            t.id = lastId;
+
+            String phone = u.getPhoneNumber();
+            AccountSummary summary = summaries.get(phone);
+            if (summary != null) {
+                if (summary.head == previous) summary.add(offset, t.timestamp, code, t.amount);
+                else summaries.remove(phone);
+            }
+            TransactionIndex index = indexes.get(phone);
+            if (index != null) {
+                if (index.head == previous) index.add(offset, t.timestamp, code, t.counterparty);
+                else indexes.remove(phone);
+            }
+            return t.id;
+        }
+
+        private static void writeText(MappedByteBuffer seg, int pos, int code, byte[] type, byte[] party, byte[] desc) {
+            int typeLen = type == null ? 0 : type.length;
+            seg.put(pos + TYPE, (byte) code);
+            seg.put(pos + TYPE_LEN, (byte) typeLen);
+            seg.putShort(pos + DESC_LEN, (short) desc.length);
+            seg.put(pos + PARTY_LEN, (byte) party.length);
+            if (typeLen > 0) seg.put(pos + TEXT, type, 0, typeLen);
+            seg.put(pos + TEXT + typeLen, party, 0, party.length);
+            seg.put(pos + TEXT + typeLen + party.length, desc, 0, desc.length);
+        }
+
+        // Built from the account's chain on first use and kept current by
+        // append(). Callers must hold the account's lock so the summary and
+        // the balance they read it with agree.
+        AccountSummary summary(User u) throws IOException {
+            AccountSummary summary = summaries.get(u.getPhoneNumber());
+            if (summary != null && summary.head == u.getLedgerHead()) return summary;
+            long[] chain = chain(u);
+            summary = new AccountSummary();
+            synchronized (this) {
+                for (long offset : chain) {
+                    MappedByteBuffer seg = record(offset);
+                    int pos = (int) (offset % SEGMENT_SIZE);
+                    summary.add(offset, seg.getLong(pos + TIME), seg.get(pos + TYPE) & 0xFF, seg.getLong(pos + AMOUNT));
+                }
+            }
+            summary.head = u.getLedgerHead();
+            summaries.put(u.getPhoneNumber(), summary);
+            return summary;
+        }
+
+        // Same lifecycle and locking rule as summary()
+        TransactionIndex index(User u) throws IOException {
+            TransactionIndex index = indexes.get(u.getPhoneNumber());
+            if (index != null && index.head == u.getLedgerHead()) return index;
+            long[] chain = chain(u);
+            index = new TransactionIndex(chain.length);
+            synchronized (this) {
+                for (long offset : chain) {
+                    MappedByteBuffer seg = record(offset);
+                    int pos = (int) (offset % SEGMENT_SIZE);
+                    index.add(offset, seg.getLong(pos + TIME), seg.get(pos + TYPE) & 0xFF, counterparty(seg, pos));
+                }
+            }
+            index.head = u.getLedgerHead();
+            indexes.put(u.getPhoneNumber(), index);
+            return index;
+        }
+
+        // The account's record offsets, oldest first
+        private long[] chain(User u) throws IOException {
+            long[] chain = new long[u.getTransactionCount()];
+            int n = chain.length;
+            for (long offset = u.getLedgerHead(); offset > 0 && n > 0; offset = previous(offset)) {
+                chain[--n] = offset;
+            }
+            return n == 0 ? chain : Arrays.copyOfRange(chain, n, chain.length);
+        }
+
+        private static String counterparty(MappedByteBuffer seg, int pos) {
+            int partyLen = seg.get(pos + PARTY_LEN) & 0xFF;
+            return partyLen == 0 ? null : text(seg, pos + TEXT + (seg.get(pos + TYPE_LEN) & 0xFF), partyLen);
+        }
+
+        private void convertAmountsToPaisa() throws IOException {
+            for (long offset = RECORD_SIZE; offset < end; offset += RECORD_SIZE) {
+                MappedByteBuffer seg = segment(offset);
+                int pos = (int) (offset % SEGMENT_SIZE) + AMOUNT;
+                seg.putLong(pos, Money.fromDouble(seg.getDouble(pos)));
+            }
+            segment(0).putInt(H_VERSION, 2);
+        }
+
+        // Version 2 kept the transfer counterparty only inside the description
+        // ("To 017...", "From 017..."), and neither 2 nor 3 numbered records.
+        // Each record is rewritten in the upgrade copy with the counterparty in
+        // its own field and an ID in file order; text that no longer fits is
+        // cut short.
+        private void upgradeRecords(int version) throws IOException {
+            int from = version == 2 ? V2_TEXT : V3_TEXT;
+            long id = 0;
+            for (long offset = RECORD_SIZE; offset < end; offset += RECORD_SIZE) {
+                MappedByteBuffer seg = segment(offset);
+                int pos = (int) (offset % SEGMENT_SIZE);
+                int code = seg.get(pos + TYPE) & 0xFF;
+                int typeLen = seg.get(pos + TYPE_LEN) & 0xFF;
+                int partyLen = version == 2 ? 0 : seg.get(pos + PARTY_LEN) & 0xFF;
+                int descLen = seg.getShort(pos + DESC_LEN);
+                byte[] type = new byte[typeLen];
+                byte[] party = new byte[partyLen];
+                byte[] desc = new byte[descLen];
+                seg.get(pos + from, type, 0, typeLen);
+                seg.get(pos + from + typeLen, party, 0, partyLen);
+                seg.get(pos + from + typeLen + partyLen, desc, 0, descLen);
+                if (version == 2) {
+                    String parsed = Transaction.parseCounterparty(code > 0 ? UserCodec.TYPES[code] : null,
+                            new String(desc, StandardCharsets.UTF_8));
+                    if (parsed != null) party = parsed.getBytes(StandardCharsets.UTF_8);
+                }
+                type = fit(type, TEXT_BYTES);
+                party = fit(party, TEXT_BYTES - type.length);
+                seg.putLong(pos + ID, ++id);
+                writeText(seg, pos, code, type.length == 0 ? null : type, party,
+                        fit(desc, TEXT_BYTES - type.length - party.length));
+            }
+            lastId = id;
+            segment(0).putLong(H_LAST_ID, id);
+            segment(0).putInt(H_VERSION, VERSION);
+        }
+
+        // Oldest first
+        List<Transaction> history(User u) throws IOException {
+            Transaction[] out = new Transaction[u.getTransactionCount()];
+            long offset = u.getLedgerHead();
+            int i = out.length;
+            while (i > 0 && offset > 0) {
+                out[--i] = read(offset);
+                offset = previous(offset);
+            }
+            return Arrays.asList(out).subList(i, out.length);
+        }
+
+        synchronized Transaction read(long offset) throws IOException {
+            MappedByteBuffer seg = record(offset);
+            int pos = (int) (offset % SEGMENT_SIZE);
+            int code = seg.get(pos + TYPE) & 0xFF;
+            int typeLen = seg.get(pos + TYPE_LEN) & 0xFF;
+            int descLen = seg.getShort(pos + DESC_LEN);
+            int partyLen = seg.get(pos + PARTY_LEN) & 0xFF;
+            String type = code > 0 && code < UserCodec.TYPES.length ? UserCodec.TYPES[code] : text(seg, pos + TEXT, typeLen);
+            Transaction t = new Transaction(type, seg.getLong(pos + AMOUNT), text(seg, pos + TEXT + typeLen + partyLen, descLen),
+                    partyLen == 0 ? null : text(seg, pos + TEXT + typeLen, partyLen), seg.getLong(pos + TIME));
+            t.id = seg.getLong(pos + ID);
+            return t;
+        }
+
+        synchronized long previous(long offset) throws IOException {
+            return record(offset).getLong((int) (offset % SEGMENT_SIZE) + PREV);
+        }
+
+        synchronized void force() {
+            for (MappedByteBuffer seg : segments) seg.force();
+        }
+
+        // Forces only the records appended since the last sync, plus the
+        // header. The msync runs outside the lock so appends aren't held up.
+        void sync() throws IOException {
+            long from, to;
+            MappedByteBuffer head;
+            List<MappedByteBuffer> dirty = new ArrayList<>(2);
+            synchronized (this) {
+                from = synced;
+                to = end;
+                head = segment(0);
+                for (long s = from - from % SEGMENT_SIZE; s < to; s += SEGMENT_SIZE) dirty.add(segment(s));
+            }
+            long base = from - from % SEGMENT_SIZE;
+            for (MappedByteBuffer seg : dirty) {
+                int start = (int) Math.max(0, from - base);
+                int stop = (int) Math.min(SEGMENT_SIZE, to - base);
+                if (stop > start) seg.force(start, stop - start);
+                base += SEGMENT_SIZE;
+            }
+            head.force(0, RECORD_SIZE);
+            synchronized (this) {
+                if (synced < to) synced = to;
+            }
+        }
+
+        synchronized void close() throws IOException {
+            force();
+            segments.clear();
+            channel.close();
+        }
+
+        private MappedByteBuffer record(long offset) throws IOException {
+            if (offset < RECORD_SIZE || offset >= end || offset % RECORD_SIZE != 0) {
+                throw new IOException("Bad ledger offset " + offset);
+            }
+            return segment(offset);
+        }
+
+        private MappedByteBuffer segment(long offset) throws IOException {
+            int index = (int) (offset / SEGMENT_SIZE);
+            while (segments.size() <= index) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+            }
+            return segments.get(index);
+        }
+
+        private static String text(MappedByteBuffer seg, int pos, int len) {
+            byte[] bytes = new byte[len];
+            seg.get(pos, bytes, 0, len);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Truncate UTF-8 to max bytes without splitting a character
+        private static byte[] fit(byte[] bytes, int max) {
+            if (bytes.length <= max) return bytes;
+            int n = max;
+            while (n > 0 && (bytes[n] & 0xC0) == 0x80) n--;
+            return Arrays.copyOf(bytes, n);
+        }
+    }
+
+    // Running totals for one account: a checkpoint per calendar day holding
+    // cumulative amounts and counts per transaction type. Range totals and
+    // past balances are a binary search plus a subtraction.
+    static final class AccountSummary {
+        private static final int TYPES = UserCodec.TYPES.length;
+        private static final ZoneId ZONE = ZoneId.systemDefault();
+        // Transactions with free-text types (code 0) don't move the computed balance
+        private static final long[] SIGN = new long[TYPES];
+        static {
+            for (int code = 1; code < TYPES; code++) {
+                String type = UserCodec.TYPES[code];
+                SIGN[code] = type.equals("Deposit") || type.equals("Transfer In") ? 1 : -1;
+            }
+        }
+
+        private long head;                              // newest ledger record included
+        private int days;
+        private long[] day = new long[8];               // epoch day, ascending
+        private long[] totals = new long[8 * TYPES];    // cumulative amount per type code through day[i]
+        private int[] counts = new int[8 * TYPES];
+
+        void add(long offset, long timestamp, int code, long amount) {
+            long d = Instant.ofEpochMilli(timestamp).atZone(ZONE).toLocalDate().toEpochDay();
+            // a clock step backwards lands in the latest day rather than reordering
+            if (days == 0 || d > day[days - 1]) {
+                if (days == day.length) {
+                    day = Arrays.copyOf(day, days * 2);
+                    totals = Arrays.copyOf(totals, days * 2 * TYPES);
+                    counts = Arrays.copyOf(counts, days * 2 * TYPES);
+                }
+                day[days] = d;
+                if (days > 0) {
+                    System.arraycopy(totals, (days - 1) * TYPES, totals, days * TYPES, TYPES);
+                    System.arraycopy(counts, (days - 1) * TYPES, counts, days * TYPES, TYPES);
+                }
+                days++;
+            }
+            int row = (days - 1) * TYPES + (code < TYPES ? code : 0);
+            totals[row] += amount;
+            counts[row]++;
+            head = offset;
+        }
+
+        // Balance at the end of the given day, worked back from the current one
+        long balanceAt(long currentBalance, LocalDate date) {
+            return currentBalance - net(days - 1) + net(rowAtOrBefore(date.toEpochDay()));
+        }
+
+        // Totals for transactions dated from..to inclusive
+        Statement statement(long currentBalance, LocalDate from, LocalDate to) {
+            int before = rowAtOrBefore(from.toEpochDay() - 1);
+            int last = rowAtOrBefore(to.toEpochDay());
+            long[] amount = new long[TYPES];
+            int[] count = new int[TYPES];
+            for (int code = 0; code < TYPES; code++) {
+                amount[code] = total(last, code) - total(before, code);
+                count[code] = count(last, code) - count(before, code);
+            }
+            long latest = net(days - 1);
+            return new Statement(from, to, currentBalance - latest + net(before),
+                    currentBalance - latest + net(last), amount, count);
+        }
+
+        private int rowAtOrBefore(long epochDay) {
+            int i = Arrays.binarySearch(day, 0, days, epochDay);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        private long total(int row, int code) { return row < 0 ? 0 : totals[row * TYPES + code]; }
+        private int count(int row, int code) { return row < 0 ? 0 : counts[row * TYPES + code]; }
+
+        // Net balance change through a day row
+        private long net(int row) {
+            long net = 0;
+            for (int code = 1; code < TYPES; code++) net += SIGN[code] * total(row, code);
+            return net;
+        }
+
+        static final class Statement {
+            final LocalDate from, to;
+            final long openingBalance, closingBalance;
+            private final long[] amounts;
+            private final int[] counts;
+
+            Statement(LocalDate from, LocalDate to, long openingBalance, long closingBalance, long[] amounts, int[] counts) {
+                this.from = from;
+                this.to = to;
+                this.openingBalance = openingBalance;
+                this.closingBalance = closingBalance;
+                this.amounts = amounts;
+                this.counts = counts;
+            }
+
+            long total(String type) { return amounts[UserCodec.typeCode(type)]; }
+            int count(String type) { return counts[UserCodec.typeCode(type)]; }
+        }
+    }
+
+    // Secondary index over one account's ledger records, by position oldest
+    // first: timestamps for range search, a bitmap per transaction type and a
+    // position list per counterparty
+    static final class TransactionIndex {
+        static final int ALL_TYPES = -1;
+
+        private long head;                  // newest ledger record included
+        private int size;
+        private long[] offsets;
+        private long[] times;               // kept non-decreasing; clock steps back are clamped
+        private final long[][] typeBits = new long[UserCodec.TYPES.length][];
+        private final Map<String, int[]> byParty = new HashMap<>(); // [0] holds the count
+
+        TransactionIndex(int capacity) {
+            offsets = new long[Math.max(16, capacity)];
+            times = new long[offsets.length];
+            for (int code = 0; code < typeBits.length; code++) typeBits[code] = new long[(offsets.length + 63) >>> 6];
+        }
+
+        // Bit per type code, for search()
+        static int typeMask(String type) {
+            return 1 << UserCodec.typeCode(type);
+        }
+
+        void add(long offset, long timestamp, int code, String party) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+                for (int c = 0; c < typeBits.length; c++) typeBits[c] = Arrays.copyOf(typeBits[c], (size * 2 + 63) >>> 6);
+            }
+            int i = size++;
+            offsets[i] = offset;
+            times[i] = i > 0 ? Math.max(timestamp, times[i - 1]) : timestamp;
+            typeBits[code < typeBits.length ? code : 0][i >>> 6] |= 1L << i;
+            if (party != null) {
+                int[] list = byParty.get(party);
+                if (list == null) list = new int[4];
+                else if (list[0] + 1 == list.length) list = Arrays.copyOf(list, list.length * 2);
+                list[++list[0]] = i;
+                byParty.put(party, list);
+            }
+            head = offset;
+        }
+
+        // Ledger offsets of matching records, newest first. from/to are
+        // inclusive epoch millis; party null matches any counterparty.
+        long[] search(long from, long to, int typeMask, String party) {
+            int lo = firstAtOrAfter(from);
+            int hi = firstAtOrAfter(to == Long.MAX_VALUE ? to : to + 1);
+            if (lo >= hi) return new long[0];
+            long[] out = new long[Math.min(hi - lo, 1024)];
+            int n = 0;
+            if (party != null) {
+                int[] list = byParty.get(party);
+                if (list == null) return new long[0];
+                int k = Arrays.binarySearch(list, 1, list[0] + 1, hi);
+                for (k = k >= 0 ? k - 1 : -k - 2; k >= 1 && list[k] >= lo; k--) {
+                    if (matches(list[k], typeMask)) {
+                        if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                        out[n++] = offsets[list[k]];
+                    }
+                }
+                return Arrays.copyOf(out, n);
+            }
+            long[] bits = combined(typeMask, lo, hi);
+            for (int w = (hi - 1) >>> 6; w >= lo >>> 6; w--) {
+                long word = bits[w];
+                while (word != 0) {
+                    int bit = 63 - Long.numberOfLeadingZeros(word);
+                    word &= ~(1L << bit);
+                    int i = (w << 6) + bit;
+                    if (i < lo || i >= hi) continue;
+                    if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                    out[n++] = offsets[i];
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        // Up to limit offsets older than the record at before, newest first;
+        // before 0 starts at the newest. Null if before isn't this account's.
+        long[] page(long before, int limit) {
+            int end = size;
+            if (before != 0) {
+                // an account's records are appended in order, so offsets ascend
+                end = Arrays.binarySearch(offsets, 0, size, before);
+                if (end < 0) return null;
+            }
+            int start = Math.max(0, end - limit);
+            long[] out = new long[end - start];
+            for (int i = 0; i < out.length; i++) out[i] = offsets[end - 1 - i];
+            return out;
+        }
+
+        private boolean matches(int i, int typeMask) {
+            for (int code = 0; code < typeBits.length; code++) {
+                if ((typeMask & (1 << code)) != 0 && (typeBits[code][i >>> 6] & (1L << i)) != 0) return true;
+            }
+            return false;
+        }
+
+        // OR of the selected type bitmaps over the words covering lo..hi
+        private long[] combined(int typeMask, int lo, int hi) {
+            long[] bits = new long[(hi + 63) >>> 6];
+            for (int code = 0; code < typeBits.length; code++) {
+                if ((typeMask & (1 << code)) == 0) continue;
+                long[] b = typeBits[code];
+                for (int w = lo >>> 6; w < bits.length; w++) bits[w] |= b[w];
+            }
+            return bits;
+        }
+
+        private int firstAtOrAfter(long time) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] < time) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    // Saves accounts either as a full snapshot on every change, or as an
+    // append-only journal of the changed accounts plus periodic snapshots.
+    // Disk writes happen on one background thread; the async methods return
+    // futures that complete once the data has been forced to disk.
+    // Commits are grouped: whatever has queued up while the writer was busy,
+    // up to cardpayment.groupCommit.maxRecords, goes out with one write and
+    // one force (or one snapshot). cardpayment.groupCommit.waitMicros makes
+    // the writer linger for more company before writing a short group.
+    // Snapshots are written to a temp file, forced and renamed into place;
+    // the one they replace is kept as users.dat.prev, and the journal that
+    // followed it as users.journal.prev. Each journal starts with a marker
+    // naming the snapshot generation it follows, so if users.dat fails its
+    // checksums, load falls back to the previous generation and replays both
+    // journals on top of it.
+    static class Persistence {
+        enum Mode { SNAPSHOT, JOURNAL }
+
+        private static final byte OP_USER = 1;      // pre-ledger record carrying new transactions
+        private static final byte OP_DELETE = 2;
+        private static final byte OP_ACCOUNT = 3;   // balance as double BDT
+        private static final byte OP_ACCOUNT_PAISA = 4;
+        private static final byte OP_GENERATION = 5; // first frame of a journal
+        // Cross-shard transfers; see ShardedStore
+        private static final byte OP_PREPARE = 6;    // payee shard: credits promised
+        private static final byte OP_DECIDE = 7;     // payer shard: the transfer committed
+        private static final byte OP_END = 8;        // payee shard: credits applied, or dropped
+        private static final int MAX_FRAME = 16 * 1024 * 1024;
+
+        private final File dataFile;
+        private final File journalFile;
+        private final File ledgerFile;
+        private final File prevDataFile;
+        private final File prevJournalFile;
+        private final File tempDataFile;
+        private final Mode mode;
+        private final int snapshotEvery;
+        private final int shard;
+        private final int shards;
+
+        private UserDirectory users = new UserDirectory();
+        private Ledger ledger;
+        private FileOutputStream journalFileOut;
+        private DataOutputStream journal;
+        private int journalRecords;
+        private long generation;
+        private Recovery recovery;
+        private BackgroundLoad background;
+        private boolean indexUnreadable;
+        private final CRC32 crc = new CRC32();
+        private volatile Thread writerThread;
+        private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cardpayment-persistence");
+            t.setDaemon(true);
+            writerThread = t;
+            return t;
+        });
+        // Threads that check and decode users.dat at startup; 0 loads every
+        // account before load() returns
+        private final int loadThreads =
+                Math.max(0, Integer.getInteger("cardpayment.load.threads", Runtime.getRuntime().availableProcessors()));
+        private final int groupMaxRecords = Math.max(1, Integer.getInteger("cardpayment.groupCommit.maxRecords", 1024));
+        private final long groupWaitNanos =
+                TimeUnit.MICROSECONDS.toNanos(Long.getLong("cardpayment.groupCommit.waitMicros", 0L));
+        // Commits waiting for the writer, and whether a flush is already on
+        // its way to pick them up
+        private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile IntConsumer pendingListener = n -> { };
+        // Mutations hold the read side; snapshots take the write side so they
+        // never capture half of a transfer
+        private final ReadWriteLock barrier = new ReentrantReadWriteLock();
+        // Cross-shard transfers this store's journal has records of that are
+        // still open: prepared here and not yet ended, and decided here with
+        // a payee that may not have ended yet. A new journal starts with a
+        // copy of them, so they never go with the journal they were in.
+        private final Map<Long, Prepare> prepared = new ConcurrentHashMap<>();
+        private final Set<Long> decided = ConcurrentHashMap.newKeySet();
+
+        Persistence(File dataFile, File journalFile, File ledgerFile, Mode mode, int snapshotEvery) {
+            this(dataFile, journalFile, ledgerFile, mode, snapshotEvery, 0, 1);
+        }
+
+        // Shard shard of shards; their ledgers hand out IDs from disjoint sets
+        Persistence(File dataFile, File journalFile, File ledgerFile, Mode mode, int snapshotEvery, int shard, int shards) {
+            this.dataFile = dataFile;
+            this.journalFile = journalFile;
+            this.ledgerFile = ledgerFile;
+            this.prevDataFile = new File(dataFile.getPath() + ".prev");
+            this.prevJournalFile = new File(journalFile.getPath() + ".prev");
+            this.tempDataFile = new File(dataFile.getPath() + ".tmp");
+            this.mode = mode;
+            this.snapshotEvery = Math.max(1, snapshotEvery);
+            this.shard = shard;
+            this.shards = shards;
+        }
+
+        // What load() found and how long it took
+        static final class Recovery {
+            String source;          // file the accounts came from, null on a fresh store
+            String fallbackReason;  // why users.dat was passed over, if it was
+            long generation;
+            int version;
+            int accounts;
+            int blocks;
+            long snapshotBytes;
+            long snapshotNanos;
+            int journalFrames;
+            long journalNanos;
+            long totalNanos;        // until load() returned and logins could start
+            boolean background;     // accounts were still loading after that
+            long loadedNanos;       // until the last account was in
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder("Recovered ").append(accounts).append(" accounts");
+                if (source == null) sb.append(" (new store)");
+                else sb.append(" from ").append(source).append(" generation ").append(generation)
+                        .append(" (v").append(version).append(", ").append(snapshotBytes / 1024).append(" KB, ")
+                        .append(blocks).append(" blocks verified) in ").append(snapshotNanos / 1_000_000).append(" ms");
+                sb.append(", replayed ").append(journalFrames).append(" journal records in ")
+                        .append(journalNanos / 1_000_000).append(" ms; total ").append(totalNanos / 1_000_000).append(" ms");
+                if (background) {
+                    sb.append(loadedNanos == 0 ? ", accounts loading in the background"
+                            : ", all loaded after " + loadedNanos / 1_000_000 + " ms");
+                }
+                if (fallbackReason != null) sb.append(". Fell back to the previous generation: ").append(fallbackReason);
+                return sb.toString();
+            }
+        }
+
+        UserDirectory load() throws IOException {
+            long start = System.nanoTime();
+            recovery = new Recovery();
+            ledger = Ledger.open(ledgerFile);
+            ledger.numbering(shard, shards);
+            tempDataFile.delete(); // an unfinished snapshot
+            if (loadInBackground(start)) return users;
+            UserCodec.Snapshot snap = readSnapshot();
+            List<User> loaded = snap.users;
+            generation = snap.generation;
+            recovery.generation = snap.generation;
+            recovery.version = snap.version;
+            recovery.accounts = loaded.size();
+            recovery.blocks = snap.blocks;
+            recovery.snapshotNanos = System.nanoTime() - start;
+            boolean migrated = false;
+            for (User u : loaded) {
+                if (u.transactions == null) continue;
+                for (Transaction t : u.transactions) ledger.append(u, t);
+                u.transactions = null;
+                migrated = true;
+            }
+            users = new UserDirectory(loaded);
+            long replayStart = System.nanoTime();
+            // journals older than the snapshot are already folded into it
+            replayJournal(prevJournalFile, snap.generation, false, users, null);
+            boolean current = replayJournal(journalFile, snap.generation, true, users, null);
+            recovery.journalFrames = journalRecords;
+            recovery.journalNanos = System.nanoTime() - replayStart;
+            if (migrated) {
+                // rewrite once the histories are safely in the ledger
+                ledger.force();
+                File backup = new File(dataFile.getPath() + ".legacy");
+                if (backup.exists() || dataFile.renameTo(backup)) snapshot();
+            } else if (recovery.fallbackReason != null) {
+                // set the damaged file aside; two snapshots leave both
+                // generations good and each with its own journal
+                File damaged = new File(dataFile.getPath() + ".damaged-" + System.currentTimeMillis());
+                if (dataFile.exists() && !dataFile.renameTo(damaged)) throw new IOException("Cannot move aside " + dataFile);
+                snapshot();
+                snapshot();
+            } else if ((snap.version < UserCodec.VERSION || indexUnreadable) && !loaded.isEmpty()) {
+                // no checksums or no usable partition index; rewrite in the
+                // current format so the next start can take the fast path
+                snapshot();
+            } else if (mode == Mode.SNAPSHOT && journalRecords > 0) {
+                // left over from a journal-mode run; fold it into the snapshot
+                try {
+                    snapshot();
+                } catch (IOException ignored) {}
+            } else if (!current) {
+                // the journal predates the snapshot (a crash between the two
+                // renames), so new records must start a fresh one
+                rotateJournal();
+            }
+            recovery.totalNanos = System.nanoTime() - start;
+            Metrics.LOAD.record(recovery.totalNanos);
+            Logger.log(recovery.toString());
+            return users;
+        }
+
+        // The fast path for a sound, current users.dat: its blocks are
+        // checked, the journals are replayed into a side directory, and the
+        // accounts themselves are decoded by background threads, or on
+        // demand when a lookup gets there first. Returns false, having
+        // changed nothing, when the full load has to run instead.
+        private boolean loadInBackground(long start) throws IOException {
+            if (loadThreads == 0 || !dataFile.exists() || !UserCodec.isCurrent(dataFile)
+                    || !startsWithMarker(prevJournalFile) || !startsWithMarker(journalFile)) {
+                return false;
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(loadThreads, r -> {
+                Thread t = new Thread(r, "cardpayment-loader");
+                t.setDaemon(true);
+                return t;
+            });
+            UserCodec.SnapshotFile file = null;
+            try {
+                try {
+                    file = UserCodec.SnapshotFile.open(dataFile);
+                    file.verify(pool, loadThreads);
+                } catch (IOException | RuntimeException e) {
+                    indexUnreadable = true;
+                    throw e;
+                }
+                recovery.snapshotNanos = System.nanoTime() - start;
+                long replayStart = System.nanoTime();
+                UserDirectory journaled = new UserDirectory();
+                Set<String> deleted = new HashSet<>();
+                generation = file.generation;
+                replayJournal(prevJournalFile, file.generation, false, journaled, deleted);
+                boolean current = replayJournal(journalFile, file.generation, true, journaled, deleted);
+                if (mode == Mode.SNAPSHOT && journalRecords > 0) {
+                    // folding the journal in needs every account
+                    throw new IOException("Journal left over from journal mode");
+                }
+                recovery.journalNanos = System.nanoTime() - replayStart;
+                recovery.journalFrames = journalRecords;
+                recovery.source = dataFile.getName();
+                recovery.snapshotBytes = dataFile.length();
+                recovery.generation = file.generation;
+                recovery.version = UserCodec.VERSION;
+                recovery.accounts = file.count;
+                recovery.blocks = file.blocks();
+                recovery.background = true;
+                if (!current) rotateJournal();
+                users = new UserDirectory();
+                background = new BackgroundLoad(file, pool, journaled, deleted, start);
+                users.loadingFrom(background);
+                background.start(loadThreads);
+                recovery.totalNanos = System.nanoTime() - start;
+                Metrics.LOAD.record(recovery.totalNanos);
+                Logger.log(recovery.toString());
+                return true;
+            } catch (IOException | RuntimeException e) {
+                // the full load reports the problem, or falls back to users.dat.prev
+                if (file != null) file.close();
+                pool.shutdown();
+                generation = 0;
+                journalRecords = 0;
+                prepared.clear();
+                decided.clear();
+                return false;
+            }
+        }
+
+        // Journals written since snapshots carried generations start with a
+        // marker frame; anything older goes through the full load
+        private static boolean startsWithMarker(File file) throws IOException {
+            if (!file.exists() || file.length() == 0) return true;
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (file.length() < 17 || in.readInt() != 9) return false;
+                in.readInt();
+                return in.readByte() == OP_GENERATION;
+            }
+        }
+
+        // Decodes users.dat a partition at a time on the loader threads. The
+        // journal was replayed into its own directory, so an account it
+        // touched replaces the snapshot's copy as its partition comes in.
+        private final class BackgroundLoad implements UserDirectory.Loader {
+            private final UserCodec.SnapshotFile file;
+            private final ExecutorService pool;
+            private final UserDirectory journaled;
+            private final Set<String> deleted;
+            private final Map<Integer, List<User>> journaledByPartition = new HashMap<>();
+            private final AtomicReferenceArray<CompletableFuture<Void>> partitions;
+            private final AtomicInteger next = new AtomicInteger();
+            private final CompletableFuture<Void> done = new CompletableFuture<>();
+            private final long start;
+            private volatile boolean stopped;
+            private volatile boolean closed;
+
+            BackgroundLoad(UserCodec.SnapshotFile file, ExecutorService pool, UserDirectory journaled,
+                           Set<String> deleted, long start) {
+                this.file = file;
+                this.pool = pool;
+                this.journaled = journaled;
+                this.deleted = deleted;
+                this.start = start;
+                this.partitions = new AtomicReferenceArray<>(file.partitions);
+                for (User u : journaled.asList()) {
+                    journaledByPartition.computeIfAbsent(file.partitionOf(u.getPhoneNumber()), p -> new ArrayList<>()).add(u);
+                }
+            }
+
+            void start(int threads) {
+                AtomicInteger running = new AtomicInteger(threads);
+                for (int t = 0; t < threads; t++) {
+                    pool.execute(() -> {
+                        try {
+                            int p;
+                            while (!stopped && (p = next.getAndIncrement()) < file.partitions) loadPartition(p);
+                        } catch (RuntimeException e) {
+                            stopped = true;
+                        } finally {
+                            if (running.decrementAndGet() == 0) finish();
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void load(String phone) {
+                loadPartition(file.partitionOf(phone));
+            }
+
+            @Override
+            public void await() {
+                try {
+                    done.join();
+                } catch (CompletionException e) {
+                    throw new UncheckedIOException(ioCause(e));
+                }
+            }
+
+            // Each partition is decoded once, by whichever thread claims it
+            // first; the others wait for that
+            private void loadPartition(int p) {
+                CompletableFuture<Void> loading = partitions.get(p);
+                if (loading == null) {
+                    CompletableFuture<Void> mine = new CompletableFuture<>();
+                    if (partitions.compareAndSet(p, null, mine)) {
+                        try {
+                            users.addAll(decode(p));
+                            mine.complete(null);
+                        } catch (IOException | RuntimeException e) {
+                            mine.completeExceptionally(e);
+                        }
+                    }
+                    loading = partitions.get(p);
+                }
+                try {
+                    loading.join();
+                } catch (CompletionException e) {
+                    throw new UncheckedIOException(ioCause(e));
+                }
+            }
+
+            private List<User> decode(int p) throws IOException {
+                List<User> batch = file.readPartition(p);
+                batch.removeIf(u -> deleted.contains(u.getPhoneNumber()) || journaled.findByPhone(u.getPhoneNumber()) != null);
+                batch.addAll(journaledByPartition.getOrDefault(p, Collections.emptyList()));
+                return batch;
+            }
+
+            private void finish() {
+                IOException failure = null;
+                for (int p = 0; p < file.partitions && failure == null; p++) {
+                    CompletableFuture<Void> loading = partitions.get(p);
+                    if (loading != null && loading.isCompletedExceptionally()) failure = ioCause(loading.handle((ok, e) -> e).join());
+                }
+                if (failure == null && stopped) failure = new IOException("Store closed before all accounts were loaded");
+                try {
+                    file.close();
+                } catch (IOException ignored) {}
+                pool.shutdown();
+                if (failure != null) {
+                    if (!closed) Logger.log("Loading accounts from " + dataFile.getName() + " failed: " + failure);
+                    done.completeExceptionally(failure);
+                    return;
+                }
+                recovery.loadedNanos = System.nanoTime() - start;
+                users.loaded();
+                done.complete(null);
+                Logger.log(recovery.toString());
+            }
+
+            void stop() {
+                closed = true;
+                stopped = true;
+            }
+        }
+
+        Recovery recovery() { return recovery; }
+
+        void commit(User... changed) throws IOException {
+            await(commitAsync(changed));
+        }
+
+        void delete(User removed) throws IOException {
+            await(deleteAsync(removed));
+        }
+
+        // The accounts are encoded on the calling thread, so call this while
+        // they can't change; records queued for one account keep their order
+        CompletableFuture<Void> commitAsync(User... changed) {
+            return enqueueAccounts(changed, (byte) 0, 0);
+        }
+
+        // The accounts, followed by op for txid unless op is 0
+        private CompletableFuture<Void> enqueueAccounts(User[] changed, byte op, long txid) {
+            if (mode == Mode.SNAPSHOT) return enqueue(null);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * changed.length + 16);
+            DataOutputStream record = new DataOutputStream(bytes);
+            try {
+                for (User u : changed) writeAccount(record, u);
+                if (op != 0) {
+                    record.writeByte(op);
+                    record.writeLong(txid);
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            // replay stops at an oversized frame, so never write one
+            if (bytes.size() > MAX_FRAME) {
+                return CompletableFuture.failedFuture(new IOException("Journal record of " + bytes.size() + " bytes is too large"));
+            }
+            return enqueue(bytes.toByteArray());
+        }
+
+        CompletableFuture<Void> deleteAsync(User removed) {
+            if (mode == Mode.SNAPSHOT) return enqueue(null);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream record = new DataOutputStream(bytes);
+            try {
+                record.writeByte(OP_DELETE);
+                record.writeUTF(removed.getPhoneNumber());
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return enqueue(bytes.toByteArray());
+        }
+
+        // Credits a payee shard is asked to have ready for a cross-shard
+        // transfer, by the payer's shard, coordinator
+        static final class Prepare {
+            final long txid;
+            final int coordinator;
+            final List<Credit> credits;
+
+            Prepare(long txid, int coordinator, List<Credit> credits) {
+                this.txid = txid;
+                this.coordinator = coordinator;
+                this.credits = credits;
+            }
+        }
+
+        static final class Credit {
+            final String phone;
+            final long amount;
+            final String description;
+            final String counterparty;
+            final long timestamp;
+
+            Credit(String phone, long amount, String description, String counterparty, long timestamp) {
+                this.phone = phone;
+                this.amount = amount;
+                this.description = description;
+                this.counterparty = counterparty;
+                this.timestamp = timestamp;
+            }
+        }
+
+        // Payee shard, first phase: the transfer's credits, which stay in
+        // doubt until endAsync. Changes no account.
+        CompletableFuture<Void> prepareAsync(Prepare p) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * p.credits.size());
+            try {
+                writePrepare(new DataOutputStream(bytes), p);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            if (bytes.size() > MAX_FRAME) {
+                return CompletableFuture.failedFuture(new IOException("Journal record of " + bytes.size() + " bytes is too large"));
+            }
+            prepared.put(p.txid, p);
+            return enqueue(bytes.toByteArray());
+        }
+
+        // Payer shard, the commit point: the debited accounts with the
+        // decision, in one record. As with commitAsync, call this while they
+        // can't change.
+        CompletableFuture<Void> decideAsync(long txid, User... changed) {
+            decided.add(txid);
+            return enqueueAccounts(changed, OP_DECIDE, txid);
+        }
+
+        // Payee shard: the credited accounts with the end of the transfer,
+        // or no accounts when it was called off
+        CompletableFuture<Void> endAsync(long txid, User... changed) {
+            prepared.remove(txid);
+            return enqueueAccounts(changed, OP_END, txid);
+        }
+
+        // The payer's side is done with txid once every payee has ended it
+        void settled(long txid) { decided.remove(txid); }
+
+        // After load: prepared transfers without an END, and whether this
+        // shard decided one
+        List<Prepare> inDoubt() { return new ArrayList<>(prepared.values()); }
+
+        // Whether a prepared transfer still owes phone a credit
+        boolean owes(String phone) {
+            for (Prepare p : prepared.values()) {
+                for (Credit c : p.credits) {
+                    if (c.phone.equals(phone)) return true;
+                }
+            }
+            return false;
+        }
+        boolean decided(long txid) { return decided.contains(txid); }
+
+        // After load, once every shard's doubts are settled
+        void forgetDecisions() { decided.clear(); }
+
+        Mode mode() { return mode; }
+        Ledger ledger() { return ledger; }
+        Lock mutationLock() { return barrier.readLock(); }
+
+        // Writes queued or in progress
+        int pendingWrites() { return pending.get(); }
+
+        // Called on the writer thread, or the submitting thread, whenever the
+        // pending count changes
+        void onPendingChange(IntConsumer listener) { pendingListener = listener; }
+
+        // Waits for queued writes, then closes the files
+        void close() throws IOException {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (background != null) background.stop();
+            synchronized (this) {
+                if (journal != null) journal.close();
+                journal = null;
+                if (ledger != null) ledger.close();
+            }
+        }
+
+        synchronized void snapshot() throws IOException {
+            writeSnapshot();
+            rotateJournal();
+        }
+
+        // The next append starts a new journal, marked with the current
+        // generation; the old one is kept for falling back
+        private synchronized void rotateJournal() throws IOException {
+            if (journal != null) journal.close();
+            journal = null;
+            if (journalFile.exists()) {
+                java.nio.file.Files.move(journalFile.toPath(), prevJournalFile.toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            }
+            journalRecords = 0;
+        }
+
+        static IOException ioCause(Throwable e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+
+        // A queued commit: an encoded journal record, or null in snapshot mode
+        private static final class Frame {
+            final byte[] payload;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            final long queuedAt = System.nanoTime();
+
+            Frame(byte[] payload) { this.payload = payload; }
+        }
+
+        private CompletableFuture<Void> enqueue(byte[] payload) {
+            Frame frame = new Frame(payload);
+            changePending(1);
+            frames.add(frame);
+            if (queued.incrementAndGet() >= groupMaxRecords && groupWaitNanos > 0) LockSupport.unpark(writerThread);
+            if (flushScheduled.compareAndSet(false, true)) {
+                try {
+                    writer.execute(this::flush);
+                } catch (RejectedExecutionException e) {
+                    // closed; unless a flush still running took it, it fails here
+                    if (frames.remove(frame)) {
+                        queued.decrementAndGet();
+                        changePending(-1);
+                        frame.done.completeExceptionally(new IOException("Storage is closed"));
+                    }
+                }
+            }
+            return frame.done;
+        }
+
+        // Writer thread: drains the queue a group at a time. A commit that
+        // arrives after the flag is cleared schedules another flush, which
+        // finds the queue empty if this one already took it.
+        private void flush() {
+            if (groupWaitNanos > 0 && !frames.isEmpty()) {
+                long deadline = System.nanoTime() + groupWaitNanos;
+                long left;
+                while (queued.get() < groupMaxRecords && (left = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, left);
+                }
+            }
+            flushScheduled.set(false);
+            List<Frame> group = new ArrayList<>(Math.min(groupMaxRecords, 64));
+            while (true) {
+                Frame f;
+                while (group.size() < groupMaxRecords && (f = frames.poll()) != null) group.add(f);
+                if (group.isEmpty()) return;
+                queued.addAndGet(-group.size());
+                long taken = System.nanoTime();
+                for (Frame q : group) Metrics.QUEUE.record(taken - q.queuedAt);
+                Metrics.GROUP.record(group.size());
+                IOException failure = null;
+                try {
+                    if (mode == Mode.SNAPSHOT) writeSnapshot();
+                    else appendFrames(group);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException(e);
+                }
+                // pending drops before callbacks run, so they see it settled
+                changePending(-group.size());
+                long settled = System.nanoTime();
+                for (Frame done : group) {
+                    Metrics.COMMIT.record(settled - done.queuedAt);
+                    if (failure == null) done.done.complete(null);
+                    else done.done.completeExceptionally(failure);
+                }
+                group.clear();
+            }
+        }
+
+        private void changePending(int delta) {
+            pendingListener.accept(pending.addAndGet(delta));
+        }
+
+        private static void await(CompletableFuture<Void> write) throws IOException {
+            try {
+                write.join();
+            } catch (CompletionException e) {
+                throw ioCause(e);
+            }
+        }
+
+        // users.dat, or the previous generation if it is missing or fails
+        // its checks. Never quietly starts empty: if a data file exists but
+        // nothing readable does, loading fails.
+        private UserCodec.Snapshot readSnapshot() throws IOException {
+            String problem;
+            if (dataFile.exists()) {
+                try {
+                    // old Java serialization files are migrated by load()
+                    UserCodec.Snapshot snap = UserCodec.isLegacy(dataFile)
+                            ? new UserCodec.Snapshot(UserCodec.readLegacy(dataFile), 0, 0, 0)
+                            : UserCodec.readSnapshot(dataFile);
+                    recovery.source = dataFile.getName();
+                    recovery.snapshotBytes = dataFile.length();
+                    return snap;
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    problem = dataFile.getName() + ": " + e;
+                }
+            } else if (prevDataFile.exists()) {
+                problem = dataFile.getName() + " is missing";
+            } else {
+                return new UserCodec.Snapshot(new ArrayList<>(), UserCodec.VERSION, 0, 0);
+            }
+            if (!prevDataFile.exists()) throw new IOException("Cannot read " + problem);
+            try {
+                UserCodec.Snapshot snap = UserCodec.readSnapshot(prevDataFile);
+                recovery.source = prevDataFile.getName();
+                recovery.snapshotBytes = prevDataFile.length();
+                recovery.fallbackReason = problem;
+                return snap;
+            } catch (IOException | RuntimeException e) {
+                throw new IOException("Cannot read " + problem + ", nor " + prevDataFile.getName() + ": " + e, e);
+            }
+        }
+
+        private synchronized void writeSnapshot() throws IOException {
+            try {
+                users.awaitLoaded();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+            long next = generation + 1;
+            barrier.writeLock().lock();
+            try {
+                // With mutations held off, the queue holds the record of
+                // every change the snapshot will capture that isn't on disk
+                // yet; writing it to the outgoing journal first keeps a
+                // snapshot from getting ahead of its journal, which recovery
+                // of cross-shard transfers relies on
+                if (mode == Mode.JOURNAL) writeQueued();
+                UserCodec.write(users.asList(), next, bytes);
+            } finally {
+                barrier.writeLock().unlock();
+            }
+            // the snapshot points at ledger records, so those go to disk first
+            ledger.sync();
+            try (FileOutputStream out = new FileOutputStream(tempDataFile)) {
+                bytes.writeTo(out);
+                out.getFD().sync();
+            }
+            // a crash between the two moves leaves only users.dat.prev, which
+            // load then takes along with the journal still beside it
+            if (dataFile.exists()) {
+                java.nio.file.Files.move(dataFile.toPath(), prevDataFile.toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            }
+            java.nio.file.Files.move(tempDataFile.toPath(), dataFile.toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            generation = next;
+            Metrics.SNAPSHOT.record(System.nanoTime() - start);
+        }
+
+        // Makes the renames themselves durable; not every platform can open
+        // a directory for this, and there it is skipped
+        private void syncDirectory() {
+            File dir = dataFile.getAbsoluteFile().getParentFile();
+            try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException ignored) {}
+        }
+
+        // Frame layout: payload length, CRC32 of payload, payload. A group
+        // keeps one frame per commit, so replay and torn-tail recovery are
+        // unchanged; only the flush and force are shared.
+        private synchronized void appendFrames(List<Frame> group) throws IOException {
+            writeGroup(group);
+            journalRecords += group.size();
+            if (journalRecords >= snapshotEvery) snapshot();
+        }
+
+        private void writeGroup(List<Frame> group) throws IOException {
+            long start = System.nanoTime();
+            ledger.sync();
+            long synced = System.nanoTime();
+            if (journal == null) {
+                boolean fresh = journalFile.length() == 0;
+                journalFileOut = new FileOutputStream(journalFile, true);
+                journal = new DataOutputStream(new BufferedOutputStream(journalFileOut, 64 * 1024));
+                if (fresh) {
+                    byte[] marker = ByteBuffer.allocate(9).put(OP_GENERATION).putLong(generation).array();
+                    writeFrame(marker);
+                    carryOpenTransfers();
+                }
+            }
+            for (Frame f : group) writeFrame(f.payload);
+            journal.flush();
+            long written = System.nanoTime();
+            journalFileOut.getChannel().force(false);
+            Metrics.WRITE.record(written - synced);
+            Metrics.FORCE.record(synced - start + System.nanoTime() - written);
+        }
+
+        // Writes out what is queued, for writeSnapshot
+        private void writeQueued() throws IOException {
+            List<Frame> late = new ArrayList<>();
+            Frame f;
+            while ((f = frames.poll()) != null) late.add(f);
+            if (late.isEmpty()) return;
+            queued.addAndGet(-late.size());
+            IOException failure = null;
+            try {
+                writeGroup(late);
+            } catch (IOException e) {
+                failure = e;
+            }
+            changePending(-late.size());
+            long settled = System.nanoTime();
+            for (Frame done : late) {
+                Metrics.COMMIT.record(settled - done.queuedAt);
+                if (failure == null) done.done.complete(null);
+                else done.done.completeExceptionally(failure);
+            }
+            if (failure != null) throw failure;
+        }
+
+        // Copies of the records of transfers still open, after the marker
+        private void carryOpenTransfers() throws IOException {
+            for (Prepare p : prepared.values()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * p.credits.size());
+                writePrepare(new DataOutputStream(bytes), p);
+                writeFrame(bytes.toByteArray());
+            }
+            if (decided.isEmpty()) return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 * decided.size());
+            DataOutputStream record = new DataOutputStream(bytes);
+            for (long txid : decided) {
+                record.writeByte(OP_DECIDE);
+                record.writeLong(txid);
+            }
+            writeFrame(bytes.toByteArray());
+        }
+
+        private void writeFrame(byte[] payload) throws IOException {
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            journal.writeInt(payload.length);
+            journal.writeInt((int) crc.getValue());
+            journal.write(payload);
+        }
+
+        // Everything is written whole, so replaying a record twice is harmless
+        private static void writeAccount(DataOutputStream frame, User u) throws IOException {
+            frame.writeByte(OP_ACCOUNT_PAISA);
+            frame.writeUTF(u.getPhoneNumber());
+            writeNullable(frame, u.getUsername());
+            writeNullable(frame, u.getPin());
+            writeNullable(frame, u.getFullName());
+            writeNullable(frame, u.getDob());
+            writeNullable(frame, u.getGender());
+            writeNullable(frame, u.getEmail());
+            writeNullable(frame, u.getMotherName());
+            writeNullable(frame, u.getFatherName());
+            writeNullable(frame, u.getNationalId());
+            writeNullable(frame, u.getBirthCertificate());
+            writeNullable(frame, u.getPermanentAddress());
+            writeNullable(frame, u.getPresentAddress());
+            frame.writeLong(u.getBalance());
+            frame.writeLong(u.getLedgerHead());
+            frame.writeInt(u.getTransactionCount());
+        }
+
+        private static void writeNullable(DataOutputStream frame, String s) throws IOException {
+            frame.writeBoolean(s != null);
+            if (s != null) frame.writeUTF(s);
+        }
+
+        // Applies the journal unless its marker says it follows an older
+        // snapshot than the one loaded; journals from before markers always
+        // apply. Returns false if it was skipped as stale, though records of
+        // cross-shard transfers are taken from it even then. trim cuts off a
+        // torn tail so appends continue from the last good frame.
+        // Frames are applied to into; deleted, if given, collects the phone
+        // numbers of deleted accounts.
+        private boolean replayJournal(File file, long since, boolean trim, UserDirectory into, Set<String> deleted) {
+            if (!file.exists()) return true;
+            long valid = 0;
+            boolean first = true;
+            boolean stale = false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (EOFException end) {
+                        break;
+                    }
+                    int sum = in.readInt();
+                    if (len < 0 || len > MAX_FRAME) break;
+                    byte[] payload = new byte[len];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, len);
+                    if ((int) crc.getValue() != sum) break;
+                    valid += 8 + len;
+                    if (first && len == 9 && payload[0] == OP_GENERATION) {
+                        long base = ByteBuffer.wrap(payload, 1, 8).getLong();
+                        generation = Math.max(generation, base);
+                        if (base < since) {
+                            // its accounts are in the snapshot; a scratch
+                            // directory takes them
+                            stale = true;
+                            into = new UserDirectory();
+                            deleted = null;
+                        }
+                        first = false;
+                        continue;
+                    }
+                    first = false;
+                    applyFrame(new DataInputStream(new ByteArrayInputStream(payload)), into, deleted);
+                    if (!stale) journalRecords++;
+                }
+            } catch (IOException ignored) {
+                // torn tail from a crash mid-append; every frame before it was applied
+            }
+            if (stale) return false;
+            if (trim && file.length() > valid) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                } catch (IOException ignored) {}
+            }
+            return true;
+        }
+
+        private void applyFrame(DataInputStream in, UserDirectory into, Set<String> deleted) throws IOException {
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                if (op == OP_DELETE) {
+                    String phone = in.readUTF();
+                    User u = into.findByPhone(phone);
+                    if (u != null) into.remove(u);
+                    if (deleted != null) deleted.add(phone);
+                } else if (op == OP_USER || op == OP_ACCOUNT || op == OP_ACCOUNT_PAISA) {
+                    applyUser(in, op, into);
+                } else if (op == OP_PREPARE) {
+                    Prepare p = readPrepare(in);
+                    prepared.put(p.txid, p);
+                } else if (op == OP_DECIDE) {
+                    decided.add(in.readLong());
+                } else if (op == OP_END) {
+                    prepared.remove(in.readLong());
+                } else {
+                    throw new IOException("Unknown journal record " + op);
+                }
+            }
+        }
+
+        private void applyUser(DataInputStream in, byte op, UserDirectory into) throws IOException {
+            String phone = in.readUTF();
+            String username = readNullable(in);
+            String pin = readNullable(in);
+            User u = into.findByPhone(phone);
+            if (u == null) {
+                u = new RegularUser(username, phone, pin, null, null);
+                into.add(u);
+            }
+            u.setPin(pin);
+            u.setFullName(readNullable(in));
+            u.setDob(readNullable(in));
+            u.setGender(readNullable(in));
+            u.setEmail(readNullable(in));
+            u.setMotherName(readNullable(in));
+            u.setFatherName(readNullable(in));
+            u.setNationalId(readNullable(in));
+            u.setBirthCertificate(readNullable(in));
+            u.setPermanentAddress(readNullable(in));
+            u.setPresentAddress(readNullable(in));
+            u.setBalance(op == OP_ACCOUNT_PAISA ? in.readLong() : Money.fromDouble(in.readDouble()));
+            if (op != OP_USER) {
+                u.setLedger(in.readLong(), in.readInt());
+                return;
+            }
+            // base count lets replay skip transactions the snapshot already has
+            int base = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Transaction t = new Transaction(readNullable(in), Money.fromDouble(in.readDouble()), readNullable(in), in.readLong());
+                if (u.getTransactionCount() <= base + i) ledger.append(u, t);
+            }
+        }
+
+        private static String readNullable(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private static void writePrepare(DataOutputStream out, Prepare p) throws IOException {
+            out.writeByte(OP_PREPARE);
+            out.writeLong(p.txid);
+            out.writeInt(p.coordinator);
+            out.writeInt(p.credits.size());
+            for (Credit c : p.credits) {
+                out.writeUTF(c.phone);
+                out.writeLong(c.amount);
+                writeNullable(out, c.description);
+                writeNullable(out, c.counterparty);
+                out.writeLong(c.timestamp);
+            }
+        }
+
+        private static Prepare readPrepare(DataInputStream in) throws IOException {
+            long txid = in.readLong();
+            int coordinator = in.readInt();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_FRAME / 16) throw new IOException("Bad credit count " + count);
+            List<Credit> credits = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                credits.add(new Credit(in.readUTF(), in.readLong(), readNullable(in), readNullable(in), in.readLong()));
+            }
+            return new Prepare(txid, coordinator, credits);
+        }
+    }
+
+    // A ring of preallocated events between any number of publishing
+    // threads and one consumer thread, after the LMAX Disruptor. A publisher
+    // claims the next sequence number, fills that slot in place and marks it
+    // published; the consumer takes published slots strictly in sequence,
+    // with no locks and nothing allocated per event. A full ring holds
+    // publishers back until the consumer catches up, except a consumer
+    // thread, which could be what the ring is waiting for: it offers an
+    // event of its own instead. An idle consumer spins briefly, then parks
+    // until a publisher wakes it.
+    static final class Sequencer<E> {
+        interface Handler<E> {
+            void onEvent(E event);
+        }
+
+        private static final long FENCE = Long.MAX_VALUE / 2; // claimed once the consumer has stopped
+        private static final int SPINS = 100;
+
+        private final E[] slots;
+        private final int mask;
+        private final int shift;
+        // per slot, the round (sequence / size) last published into it
+        private final AtomicIntegerArray published;
+        private final AtomicLong claimed = new AtomicLong(-1);
+        private final AtomicLong consumed = new AtomicLong(-1);
+        private final Queue<E> offered = new ConcurrentLinkedQueue<>();
+        private final Handler<E> handler;
+        private final Consumer consumer;
+        private volatile boolean sleeping;
+        private volatile boolean closed;
+        private volatile boolean stopped;
+
+        private static final class Consumer extends Thread {
+            Consumer(Runnable loop, String name) { super(loop, name); }
+        }
+
+        @SuppressWarnings("unchecked")
+        Sequencer(String name, int size, Supplier<E> factory, Handler<E> handler) {
+            int n = Integer.highestOneBit(Math.max(2, size));
+            this.slots = (E[]) new Object[n];
+            for (int i = 0; i < n; i++) slots[i] = factory.get();
+            this.mask = n - 1;
+            this.shift = Integer.numberOfTrailingZeros(n);
+            this.published = new AtomicIntegerArray(n);
+            for (int i = 0; i < n; i++) published.set(i, -1);
+            this.handler = handler;
+            this.consumer = new Consumer(this::consume, name);
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        // Whether the caller is some sequencer's consumer, which must offer
+        // rather than claim
+        static boolean onConsumer() { return Thread.currentThread() instanceof Consumer; }
+
+        // The next sequence, whose slot belongs to the caller until publish
+        long claim() {
+            if (closed) throw new RejectedExecutionException("Sequencer is closed");
+            long seq = claimed.incrementAndGet();
+            if (seq >= FENCE) throw new RejectedExecutionException("Sequencer is closed");
+            while (seq - slots.length > consumed.get()) LockSupport.parkNanos(1_000);
+            return seq;
+        }
+
+        E slot(long seq) { return slots[(int) seq & mask]; }
+
+        void publish(long seq) {
+            published.set((int) seq & mask, (int) (seq >>> shift));
+            if (sleeping) LockSupport.unpark(consumer);
+        }
+
+        // Queues an event outside the ring, handled between ring events
+        void offer(E event) {
+            if (closed) throw new RejectedExecutionException("Sequencer is closed");
+            offered.add(event);
+            // the consumer sets stopped before its last drain
+            if (stopped && offered.remove(event)) throw new RejectedExecutionException("Sequencer is closed");
+            if (sleeping) LockSupport.unpark(consumer);
+        }
+
+        // Handles what is already published or offered, then stops the consumer
+        void close() {
+            closed = true;
+            LockSupport.unpark(consumer);
+        }
+
+        boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            consumer.join(Math.max(1, unit.toMillis(timeout)));
+            return !consumer.isAlive();
+        }
+
+        private void consume() {
+            long next = 0;
+            int idle = 0;
+            while (true) {
+                int i = (int) next & mask;
+                E extra = offered.poll();
+                if (extra != null) handle(extra);
+                if (published.get(i) == (int) (next >>> shift)) {
+                    handle(slots[i]);
+                    consumed.lazySet(next++);
+                    idle = 0;
+                } else if (extra != null) {
+                    idle = 0;
+                } else if (closed && claimed.compareAndSet(next - 1, FENCE)) {
+                    stopped = true;
+                    while ((extra = offered.poll()) != null) handle(extra);
+                    return;
+                } else if (idle < SPINS) {
+                    idle++;
+                    Thread.onSpinWait();
+                } else {
+                    // the flag is set before the last look and publishers
+                    // check it after publishing, so no wakeup falls between
+                    sleeping = true;
+                    if (published.get(i) != (int) (next >>> shift) && offered.isEmpty() && !closed) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+
+        private void handle(E event) {
+            try {
+                handler.onEvent(event);
+            } catch (RuntimeException | Error e) {
+                Logger.log(consumer.getName() + ": " + e);
+            }
+        }
+    }
+
+    // Accounts split by phone number across shards. Each shard is a
+    // Persistence of its own (files, ledger, writer) plus one thread that
+    // makes every change to its accounts, so shards share no locks and
+    // spread over cores. cardpayment.shards (1) sets the count: one shard is
+    // the plain store in the working directory, more live in shards/<n>/.
+    // The shard thread takes its work from an executor's queue, or with
+    // cardpayment.sequencer=ring from a Sequencer of
+    // cardpayment.sequencer.ringSize (4096) preallocated events. Either way
+    // that queue is the only way to a shard's accounts: single-account
+    // payments are commands, filled into a ring slot in place; transfers,
+    // registration, profile and PIN edits, deletes, reads and loads are
+    // tasks on the same queue. The snapshot barrier is the one lock left.
+    // An account's shard follows from its phone number, so a store is only
+    // ever opened with the count it was made with.
+    // Transfers between shards are two-phase commits coordinated by the
+    // payer's shard (see PaymentEngine.move), recorded in the shards'
+    // journals. After a crash, credits a payee shard prepared but never
+    // ended are applied if the payer's shard recorded its decision and
+    // dropped if not; the decision went to disk with the debit, so either
+    // both happened or neither did.
+    static final class ShardedStore {
+        private final Shard[] shards;
+        private final File dir; // null for a store loaded by the caller
+        private UserDirectory users;
+
+        private ShardedStore(File dir, int ringSize, Persistence... parts) {
+            this.dir = dir;
+            this.shards = new Shard[parts.length];
+            for (int i = 0; i < parts.length; i++) shards[i] = new Shard(i, parts[i], ringSize);
+        }
+
+        static ShardedStore fromSystemProperties() {
+            Persistence.Mode mode = "snapshot".equalsIgnoreCase(System.getProperty("cardpayment.persistence"))
+                    ? Persistence.Mode.SNAPSHOT : Persistence.Mode.JOURNAL;
+            int ringSize = "ring".equalsIgnoreCase(System.getProperty("cardpayment.sequencer"))
+                    ? Integer.getInteger("cardpayment.sequencer.ringSize", 4096) : 0;
+            return open(new File("."), Integer.getInteger("cardpayment.shards", 1), mode,
+                    Integer.getInteger("cardpayment.snapshotEvery", 1000), ringSize);
+        }
+
+        static ShardedStore open(File dir, int count, Persistence.Mode mode, int snapshotEvery) {
+            return open(dir, count, mode, snapshotEvery, 0);
+        }
+
+        // count shards in dir: the plain files for one, shards/<n>/ for
+        // more. ringSize 0 runs the shards on executors, otherwise on rings
+        // of that size.
+        static ShardedStore open(File dir, int count, Persistence.Mode mode, int snapshotEvery, int ringSize) {
+            count = Math.max(1, count);
+            Persistence[] parts = new Persistence[count];
+            for (int i = 0; i < count; i++) {
+                File home = count == 1 ? dir : new File(new File(dir, "shards"), String.valueOf(i));
+                parts[i] = new Persistence(new File(home, DATA_FILE), new File(home, JOURNAL_FILE),
+                        new File(home, LEDGER_FILE), mode, snapshotEvery, i, count);
+            }
+            return new ShardedStore(dir, ringSize, parts);
+        }
+
+        // A single shard over a store the caller has loaded
+        static ShardedStore of(Persistence loaded, UserDirectory users) {
+            ShardedStore store = new ShardedStore(null, 0, loaded);
+            store.shards[0].users = users;
+            store.users = users;
+            return store;
+        }
+
+        // The shards load side by side, each on its own thread
+        UserDirectory load() throws IOException {
+            if (dir != null) checkLayout();
+            List<Future<UserDirectory>> loads = new ArrayList<>(shards.length);
+            for (Shard s : shards) {
+                FutureTask<UserDirectory> load = new FutureTask<>(s.store::load);
+                try {
+                    s.execute(load);
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("Storage is closed");
+                }
+                loads.add(load);
+            }
+            for (Shard s : shards) s.users = Shard.get(loads.get(s.index));
+            resolveInDoubt();
+            users = shards.length == 1 ? shards[0].users : new Directory(this);
+            return users;
+        }
+
+        private void checkLayout() throws IOException {
+            File countFile = new File(new File(dir, "shards"), "count");
+            int existing;
+            try {
+                existing = countFile.exists()
+                        ? Integer.parseInt(new String(java.nio.file.Files.readAllBytes(countFile.toPath()), StandardCharsets.US_ASCII).trim())
+                        : new File(dir, DATA_FILE).exists() || new File(dir, JOURNAL_FILE).exists() ? 1 : 0;
+            } catch (NumberFormatException e) {
+                throw new IOException("Unreadable shard count in " + countFile);
+            }
+            if (existing != 0 && existing != shards.length) {
+                throw new IOException("The store has " + existing + (existing == 1 ? " shard" : " shards") + ", not "
+                        + shards.length + "; start with -Dcardpayment.shards=" + existing);
+            }
+            if (shards.length == 1) return;
+            // the transfer records live in the journals
+            if (shards[0].store.mode() != Persistence.Mode.JOURNAL) throw new IOException("Sharded stores need journal persistence");
+            for (int i = 0; i < shards.length; i++) new File(new File(dir, "shards"), String.valueOf(i)).mkdirs();
+            if (existing == 0) {
+                java.nio.file.Files.write(countFile.toPath(), (shards.length + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+
+        // Settles the transfers a crash left open, as described above. The
+        // credits go to disk with their END, as they would have.
+        private void resolveInDoubt() throws IOException {
+            List<CompletableFuture<Void>> ends = new ArrayList<>();
+            for (Shard s : shards) {
+                for (Persistence.Prepare p : s.store.inDoubt()) {
+                    boolean commit = p.coordinator >= 0 && p.coordinator < shards.length
+                            && shards[p.coordinator].store.decided(p.txid);
+                    Set<User> credited = new LinkedHashSet<>();
+                    if (commit) {
+                        for (Persistence.Credit c : p.credits) {
+                            User to = s.users.findByPhone(c.phone);
+                            if (to == null) {
+                                Logger.log("Credit of BDT " + Money.format(c.amount) + " to deleted account " + c.phone + " dropped");
+                                continue;
+                            }
+                            s.credit(to, c);
+                            credited.add(to);
+                        }
+                    }
+                    ends.add(s.store.endAsync(p.txid, credited.toArray(new User[0])));
+                    Logger.log((commit ? "Completed" : "Called off") + " cross-shard transfer "
+                            + Long.toHexString(p.txid) + " on shard " + s.index);
+                }
+            }
+            for (CompletableFuture<Void> end : ends) Persistence.await(end);
+            for (Shard s : shards) s.store.forgetDecisions();
+        }
+
+        int count() { return shards.length; }
+        UserDirectory users() { return users; }
+
+        void snapshot() throws IOException {
+            for (Shard s : shards) s.store.snapshot();
+        }
+
+        Shard shard(User u) { return shard(u.getPhoneNumber()); }
+
+        Shard shard(String phone) {
+            if (shards.length == 1) return shards[0];
+            // the top bits of the scrambled hash, scaled to the count;
+            // UserCodec.partition takes the low bits of the same hash with its
+            // upper half folded in, so the two are independent until a file
+            // has enough partitions for that fold to reach the top bits
+            int h = phone.hashCode() * 0x9E3779B9;
+            return shards[(int) (((h & 0xFFFFFFFFL) * shards.length) >>> 32)];
+        }
+
+        Ledger ledger(User u) { return shard(u).ledger(); }
+
+        // Registration, profile and PIN edits, and deletion run on the
+        // account's shard thread under the snapshot barrier, as payments do,
+        // so a snapshot never holds half an edit and the record queues
+        // behind the account's earlier changes
+        CompletableFuture<Void> addAsync(User u) { return shard(u).add(u); }
+
+        CompletableFuture<Void> updateAsync(User u, Runnable change) { return shard(u).update(u, change); }
+
+        CompletableFuture<Void> removeAsync(User u) { return shard(u).remove(u); }
+
+        int pendingWrites() {
+            int n = 0;
+            for (Shard s : shards) n += s.store.pendingWrites();
+            return n;
+        }
+
+        // Called with the total across shards
+        void onPendingChange(IntConsumer listener) {
+            for (Shard s : shards) s.store.onPendingChange(n -> listener.accept(pendingWrites()));
+        }
+
+        // Lets the shard threads finish, then closes each store
+        void close() throws IOException {
+            for (Shard s : shards) s.shutdown();
+            IOException failure = null;
+            for (Shard s : shards) {
+                try {
+                    s.awaitTermination(1, TimeUnit.MINUTES);
+                    s.store.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        static final class Shard implements Executor {
+            // for a delete waiting out a transfer
+            private static final Executor RETRY = CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS);
+
+            final int index;
+            final Persistence store;
+            UserDirectory users;
+            // one or the other runs the shard's thread
+            private final ExecutorService thread;
+            private final Sequencer<Event> ring;
+            // Funds set aside for cross-shard transfers in their first
+            // phase, by payer; shard thread only
+            private final Map<User, Long> held = new HashMap<>();
+
+            // A ring slot: a payment command from one account, or any task
+            private static final class Event {
+                Runnable task;
+                User user;
+                String logLine;
+                PaymentEngine.Mutation mutation;
+                CompletableFuture<PaymentEngine.Result> result;
+            }
+
+            Shard(int index, Persistence store, int ringSize) {
+                this.index = index;
+                this.store = store;
+                String name = "cardpayment-shard-" + index;
+                if (ringSize > 0) {
+                    this.thread = null;
+                    this.ring = new Sequencer<>(name, ringSize, Event::new, this::handle);
+                } else {
+                    this.ring = null;
+                    this.thread = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+
+            Ledger ledger() { return store.ledger(); }
+
+            @Override
+            public void execute(Runnable task) {
+                if (ring == null) {
+                    thread.execute(task);
+                } else if (Sequencer.onConsumer()) {
+                    Event e = new Event();
+                    e.task = task;
+                    ring.offer(e);
+                } else {
+                    long seq = ring.claim();
+                    ring.slot(seq).task = task;
+                    ring.publish(seq);
+                }
+            }
+
+            // Applies mutation to user's account on the shard's thread and
+            // completes result; on a ring, without allocating a task
+            void command(User user, String logLine, PaymentEngine.Mutation mutation,
+                         CompletableFuture<PaymentEngine.Result> result) {
+                try {
+                    if (ring == null) {
+                        thread.execute(() -> PaymentEngine.apply(this, user, logLine, mutation, result));
+                        return;
+                    }
+                    boolean offer = Sequencer.onConsumer();
+                    long seq = offer ? -1 : ring.claim();
+                    Event e = offer ? new Event() : ring.slot(seq);
+                    e.user = user;
+                    e.logLine = logLine;
+                    e.mutation = mutation;
+                    e.result = result;
+                    if (offer) ring.offer(e);
+                    else ring.publish(seq);
+                } catch (RejectedExecutionException e) {
+                    result.complete(PaymentEngine.Result.saveFailed(new IOException("Storage is closed")));
+                }
+            }
+
+            private void handle(Event e) {
+                try {
+                    if (e.task != null) e.task.run();
+                    else PaymentEngine.apply(this, e.user, e.logLine, e.mutation, e.result);
+                } finally {
+                    e.task = null;
+                    e.user = null;
+                    e.logLine = null;
+                    e.mutation = null;
+                    e.result = null;
+                }
+            }
+
+            void shutdown() {
+                if (ring == null) thread.shutdown();
+                else ring.close();
+            }
+
+            boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                return ring == null ? thread.awaitTermination(timeout, unit) : ring.awaitTermination(timeout, unit);
+            }
+
+            // Runs task on the shard's thread, where every change to its
+            // accounts is made, and follows the future it returns. A task
+            // must never wait for another shard, which may be waiting for it.
+            <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+                try {
+                    return CompletableFuture.supplyAsync(task, this).thenCompose(f -> f);
+                } catch (RejectedExecutionException e) {
+                    return CompletableFuture.failedFuture(new IOException("Storage is closed"));
+                }
+            }
+
+            // Runs read on the shard's thread and waits for it
+            <T> T call(Callable<T> read) throws IOException {
+                FutureTask<T> task = new FutureTask<>(read);
+                try {
+                    execute(task);
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("Storage is closed");
+                }
+                return get(task);
+            }
+
+            private static <T> T get(Future<T> f) throws IOException {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw Persistence.ioCause(e.getCause());
+                }
+            }
+
+            // Whether u is still this shard's account, and not one deleted
+            // since the caller looked it up; shard thread only
+            boolean has(User u) { return users.findByPhone(u.getPhoneNumber()) == u; }
+
+            CompletableFuture<Void> add(User u) {
+                return submit(() -> {
+                    Lock barrier = store.mutationLock();
+                    barrier.lock();
+                    try {
+                        if (users.findByPhone(u.getPhoneNumber()) != null) {
+                            return CompletableFuture.failedFuture(new IOException("Phone number already registered"));
+                        }
+                        users.add(u);
+                        return store.commitAsync(u);
+                    } finally {
+                        barrier.unlock();
+                    }
+                });
+            }
+
+            CompletableFuture<Void> update(User u, Runnable change) {
+                return submit(() -> {
+                    if (!has(u)) return CompletableFuture.failedFuture(new IOException("Account no longer exists"));
+                    Lock barrier = store.mutationLock();
+                    barrier.lock();
+                    try {
+                        change.run();
+                        return store.commitAsync(u);
+                    } finally {
+                        barrier.unlock();
+                    }
+                });
+            }
+
+            // Waits out cross-shard transfers from or to u, so no credit or
+            // debit can be journaled after the delete and bring it back
+            CompletableFuture<Void> remove(User u) {
+                return submit(() -> {
+                    if (held.containsKey(u) || store.owes(u.getPhoneNumber())) {
+                        return CompletableFuture.supplyAsync(() -> remove(u), RETRY).thenCompose(f -> f);
+                    }
+                    Lock barrier = store.mutationLock();
+                    barrier.lock();
+                    try {
+                        if (!users.remove(u)) return CompletableFuture.completedFuture(null);
+                        return store.deleteAsync(u);
+                    } finally {
+                        barrier.unlock();
+                    }
+                });
+            }
+
+            // Balance less what is held; shard thread only
+            long available(User u) {
+                Long h = held.get(u);
+                return h == null ? u.getBalance() : u.getBalance() - h;
+            }
+
+            void hold(User u, long amount) { held.merge(u, amount, Long::sum); }
+
+            void release(User u, long amount) { held.computeIfPresent(u, (k, h) -> h == amount ? null : h - amount); }
+
+            // Applies a prepared credit
+            void credit(User to, Persistence.Credit c) throws IOException {
+                ledger().append(to, new Transaction("Transfer In", c.amount, c.description, c.counterparty, c.timestamp));
+                to.setBalance(to.getBalance() + c.amount);
+            }
+        }
+
+        // The shards' directories as one; lookups by phone go straight to
+        // the account's shard, by username to each in turn
+        private static final class Directory extends UserDirectory {
+            private final ShardedStore store;
+
+            Directory(ShardedStore store) { this.store = store; }
+
+            @Override
+            void awaitLoaded() {
+                for (Shard s : store.shards) s.users.awaitLoaded();
+            }
+
+            @Override
+            void addAll(List<User> batch) {
+                for (User u : batch) add(u);
+            }
+
+            @Override
+            void add(User u) { store.shard(u).users.add(u); }
+
+            @Override
+            boolean remove(User u) { return store.shard(u).users.remove(u); }
+
+            @Override
+            User findByPhone(String phone) { return store.shard(phone).users.findByPhone(phone); }
+
+            @Override
+            User findByUsername(String username) {
+                for (Shard s : store.shards) {
+                    User u = s.users.findByUsername(username);
+                    if (u != null) return u;
+                }
+                return null;
+            }
+
+            @Override
+            int size() {
+                int n = 0;
+                for (Shard s : store.shards) n += s.users.size();
+                return n;
+            }
+
+            @Override
+            List<User> asList() {
+                List<User> all = new ArrayList<>();
+                for (Shard s : store.shards) all.addAll(s.users.asList());
+                return all;
+            }
+        }
+    }
+
+    // Money movement without Swing: validation, the minimum balance rule,
+    // balance updates, ledger records, persistence and the audit log.
+    // Safe to call from any thread: every change runs on the thread of the
+    // shard holding the account (see ShardedStore), so no account is ever
+    // changed by two threads and there are no locks to take. A transfer
+    // between shards is a two-phase commit; see move.
+    // Results are delivered through futures that complete once the change is
+    // on disk; rejected operations complete immediately.
+    // Each call may carry an idempotency key, unique per attempt at an
+    // operation from the client's side (null for none): a repeat of the key
+    // on the same account within the cache's lifetime gets the first call's
+    // result back, marked as replayed, without running again.
+    static class PaymentEngine {
+        private final ShardedStore store;
+        private final IdempotencyCache recent;
+
+        // A single shard over a store the caller has loaded
+        PaymentEngine(UserDirectory users, Persistence store) {
+            this(ShardedStore.of(store, users));
+        }
+
+        PaymentEngine(ShardedStore store) {
+            this(store, IdempotencyCache.fromSystemProperties());
+        }
+
+        PaymentEngine(ShardedStore store, IdempotencyCache recent) {
+            this.store = store;
+            this.recent = recent;
+        }
+
+        ShardedStore store() { return store; }
+        IdempotencyCache idempotencyCache() { return recent; }
+
+        CompletableFuture<Result> deposit(User user, long amount) {
+            return deposit(user, amount, null);
+        }
+
+        CompletableFuture<Result> deposit(User user, long amount, String key) {
+            return once(user, key, "deposit", amount, null, () -> timed(Metrics.DEPOSIT, () -> {
+                if (!validAmount(amount)) return done(Result.invalidAmount());
+                return local(user, user.getUsername() + " deposited BDT " + Money.format(amount), shard -> {
+                    long id = shard.ledger().append(user, new Transaction("Deposit", amount, "Cash deposit"));
+                    user.setBalance(user.getBalance() + amount);
+                    return Result.ok(user.getBalance(), id);
+                });
+            }));
+        }
+
+        CompletableFuture<Result> withdraw(User user, long amount) {
+            return withdraw(user, amount, null);
+        }
+
+        CompletableFuture<Result> withdraw(User user, long amount, String key) {
+            return once(user, key, "withdraw", amount, null, () -> timed(Metrics.WITHDRAW, () -> {
+                if (!validAmount(amount)) return done(Result.invalidAmount());
+                return local(user, user.getUsername() + " withdrew BDT " + Money.format(amount), shard -> {
+                    if (shard.available(user) - amount < MIN_BALANCE) {
+                        return Result.insufficient("Withdrawal denied. Minimum balance BDT " + Money.format(MIN_BALANCE) + " required");
+                    }
+                    long id = shard.ledger().append(user, new Transaction("Withdraw", amount, "Self withdrawal"));
+                    user.setBalance(user.getBalance() - amount);
+                    return Result.ok(user.getBalance(), id);
+                });
+            }));
+        }
+
+        CompletableFuture<Result> transfer(User sender, String receiverPhone, long amount) {
+            return transfer(sender, receiverPhone, amount, null);
+        }
+
+        CompletableFuture<Result> transfer(User sender, String receiverPhone, long amount, String key) {
+            return once(sender, key, "transfer", amount, receiverPhone, () -> timed(Metrics.TRANSFER, () -> {
+                if (!validAmount(amount)) return done(Result.invalidAmount());
+                User receiver = store.users().findByPhone(receiverPhone);
+                if (receiver == null) return done(new Result(Result.Status.RECIPIENT_NOT_FOUND, "Recipient not found", 0));
+                if (receiver.getPhoneNumber().equals(sender.getPhoneNumber())) {
+                    return done(new Result(Result.Status.SELF_TRANSFER, "Cannot transfer to yourself", 0));
+                }
+                Leg leg = new Leg(sender, receiver, amount, null);
+                return move(sender, Collections.singletonList(leg), true).thenApply(m -> {
+                    if (m.closed) return Result.closed();
+                    if (leg.gone) return new Result(Result.Status.RECIPIENT_NOT_FOUND, "Recipient not found", 0);
+                    if (m.rejected) return Result.insufficient("Transfer denied. Keep at least BDT " + Money.format(MIN_BALANCE));
+                    if (m.failure != null) return Result.saveFailed(m.failure);
+                    Logger.log(sender.getUsername() + " transferred BDT " + Money.format(amount) + " to " + receiver.getUsername());
+                    return Result.ok(m.balance, leg.id);
+                });
+            }));
+        }
+
+        CompletableFuture<Result> payBill(User user, String biller, long amount) {
+            return payBill(user, biller, amount, null);
+        }
+
+        CompletableFuture<Result> payBill(User user, String biller, long amount, String key) {
+            return once(user, key, "bill", amount, biller, () -> timed(Metrics.BILL, () -> pay(user, amount,
+                    "Bill Payment", "Biller: " + biller, " paid bill (" + biller + ") BDT ")));
+        }
+
+        CompletableFuture<Result> payConvocation(User user, long amount) {
+            return payConvocation(user, amount, null);
+        }
+
+        CompletableFuture<Result> payConvocation(User user, long amount, String key) {
+            return once(user, key, "convocation", amount, null, () -> timed(Metrics.CONVOCATION, () -> pay(user, amount,
+                    "Convocation Payment", "University convocation fee", " paid convocation fee BDT ")));
+        }
+
+        private CompletableFuture<Result> pay(User user, long amount, String type, String description, String logText) {
+            if (!validAmount(amount)) return done(Result.invalidAmount());
+            return local(user, user.getUsername() + logText + Money.format(amount), shard -> {
+                if (shard.available(user) - amount < MIN_BALANCE) {
+                    return Result.insufficient("Payment denied. Keep at least BDT " + Money.format(MIN_BALANCE));
+                }
+                long id = shard.ledger().append(user, new Transaction(type, amount, description));
+                user.setBalance(user.getBalance() - amount);
+                return Result.ok(user.getBalance(), id);
+            });
+        }
+
+        // Balance at the end of the given day
+        long balanceAsOf(User user, LocalDate date) throws IOException {
+            ShardedStore.Shard shard = store.shard(user);
+            return shard.call(() -> shard.ledger().summary(user).balanceAt(user.getBalance(), date));
+        }
+
+        // Ledger offsets newest first; see TransactionIndex.search
+        long[] search(User user, long from, long to, int typeMask, String counterparty) throws IOException {
+            ShardedStore.Shard shard = store.shard(user);
+            return shard.call(() -> shard.ledger().index(user).search(from, to, typeMask, counterparty));
+        }
+
+        // See TransactionIndex.page
+        long[] recent(User user, long before, int limit) throws IOException {
+            ShardedStore.Shard shard = store.shard(user);
+            return shard.call(() -> shard.ledger().index(user).page(before, limit));
+        }
+
+        AccountSummary.Statement statement(User user, LocalDate from, LocalDate to) throws IOException {
+            ShardedStore.Shard shard = store.shard(user);
+            return shard.call(() -> shard.ledger().summary(user).statement(user.getBalance(), from, to));
+        }
+
+        // Bulk transfer from payer. Every row is validated and its recipient
+        // resolved in one pass before anything moves. Valid rows then go in
+        // chunks of chunkRows, each one move: the payer's debits for a chunk
+        // and every credit on the payer's shard are saved as one journal
+        // record, and the credits on other shards follow its decision, so a
+        // chunk is durable all together or not at all. Rows the balance
+        // can't cover fail individually. With atomic, a batch with any bad
+        // row, or that the balance can't cover in full, is refused outright;
+        // otherwise it goes in as a single chunk.
+        // progress gets the number of rows settled so far, on whichever
+        // thread settles them.
+        CompletableFuture<Disbursement.Report> disburse(User payer, Disbursement batch, boolean atomic,
+                                                        int chunkRows, IntConsumer progress) {
+            return disburse(payer, batch, atomic, chunkRows, progress, null);
+        }
+
+        // A replayed batch reports the first run's outcome; progress isn't
+        // called for it
+        CompletableFuture<Disbursement.Report> disburse(User payer, Disbursement batch, boolean atomic,
+                                                        int chunkRows, IntConsumer progress, String key) {
+            if (key == null) return timedDisburse(payer, batch, atomic, chunkRows, progress);
+            String fingerprint = "disburse " + atomic + ' ' + batch.fingerprint();
+            CompletableFuture<Disbursement.Report> pending = new CompletableFuture<>();
+            IdempotencyCache.Entry prior = claim(payer, key, fingerprint, pending,
+                    () -> timedDisburse(payer, batch, atomic, chunkRows, progress), r -> r.rejected == null);
+            if (prior == null) return pending;
+            if (!prior.matches(fingerprint)) {
+                return CompletableFuture.completedFuture(new Disbursement.Report(batch.lines(), 0, 0, payer.getBalance(),
+                        new ArrayList<>(), Result.KEY_REUSED));
+            }
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Disbursement.Report> earlier = (CompletableFuture<Disbursement.Report>) prior.result();
+            return earlier;
+        }
+
+        private CompletableFuture<Disbursement.Report> timedDisburse(User payer, Disbursement batch, boolean atomic,
+                                                                     int chunkRows, IntConsumer progress) {
+            long start = System.nanoTime();
+            CompletableFuture<Disbursement.Report> report = disburseNow(payer, batch, atomic, chunkRows, progress);
+            report.whenComplete((r, e) -> Metrics.DISBURSE.record(e != null ? Metrics.Batch.FAILED
+                    : r.rejected != null ? Metrics.Batch.REJECTED
+                    : r.failures.isEmpty() ? Metrics.Batch.OK : Metrics.Batch.PARTIAL, System.nanoTime() - start));
+            return report;
+        }
+
+        private CompletableFuture<Disbursement.Report> disburseNow(User payer, Disbursement batch, boolean atomic,
+                                                                   int chunkRows, IntConsumer progress) {
+            List<Disbursement.Row> valid = new ArrayList<>(batch.rows().size());
+            List<Disbursement.Failure> failures = new ArrayList<>(batch.failures());
+            for (Disbursement.Row row : batch.rows()) {
+                User recipient = store.users().findByPhone(row.phone);
+                if (!validAmount(row.amount)) {
+                    failures.add(row.fail(Result.Status.INVALID_AMOUNT, "Amount must be positive"));
+                } else if (recipient == null) {
+                    failures.add(row.fail(Result.Status.RECIPIENT_NOT_FOUND, "Recipient not found"));
+                } else if (recipient == payer) {
+                    failures.add(row.fail(Result.Status.SELF_TRANSFER, "Cannot transfer to yourself"));
+                } else {
+                    row.recipient = recipient;
+                    valid.add(row);
+                }
+            }
+            if (atomic && (!failures.isEmpty() || valid.size() > Disbursement.MAX_ATOMIC_ROWS)) {
+                failures.sort(Comparator.comparingInt(f -> f.line));
+                String why = !failures.isEmpty()
+                        ? failures.size() + " of " + batch.lines() + " rows are invalid; nothing was transferred"
+                        : "All-or-nothing batches are limited to " + Disbursement.MAX_ATOMIC_ROWS + " rows";
+                return CompletableFuture.completedFuture(
+                        new Disbursement.Report(batch.lines(), 0, 0, payer.getBalance(), failures, why));
+            }
+            AtomicInteger settled = new AtomicInteger(failures.size());
+            if (progress != null) progress.accept(settled.get());
+            int size = atomic ? Math.max(1, valid.size()) : Math.max(1, chunkRows);
+            List<CompletableFuture<Chunk>> chunks = new ArrayList<>();
+            for (int from = 0; from < valid.size(); from += size) {
+                List<Disbursement.Row> part = valid.subList(from, Math.min(valid.size(), from + size));
+                CompletableFuture<Chunk> chunk = applyChunk(payer, part, atomic);
+                if (progress != null) chunk = chunk.whenComplete((c, e) -> progress.accept(settled.addAndGet(part.size())));
+                chunks.add(chunk);
+            }
+            return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                int applied = 0;
+                long total = 0;
+                String rejected = null;
+                for (CompletableFuture<Chunk> f : chunks) {
+                    Chunk c = f.join();
+                    applied += c.applied;
+                    total += c.total;
+                    failures.addAll(c.failures);
+                    if (c.rejected != null) rejected = c.rejected;
+                }
+                failures.sort(Comparator.comparingInt(f -> f.line));
+                return new Disbursement.Report(batch.lines(), applied, total, payer.getBalance(), failures, rejected);
+            });
+        }
+
+        private static final class Chunk {
+            int applied;
+            long total;
+            final List<Disbursement.Failure> failures = new ArrayList<>();
+            String rejected;
+        }
+
+        private CompletableFuture<Chunk> applyChunk(User payer, List<Disbursement.Row> part, boolean atomic) {
+            List<Leg> legs = new ArrayList<>(part.size());
+            for (Disbursement.Row row : part) legs.add(new Leg(payer, row.recipient, row.amount, row));
+            return move(payer, legs, atomic).thenApply(m -> {
+                Chunk chunk = new Chunk();
+                if (m.closed) {
+                    chunk.rejected = "Account no longer exists";
+                    return chunk;
+                }
+                boolean gone = false;
+                for (Leg leg : legs) {
+                    if (!leg.gone) continue;
+                    gone = true;
+                    chunk.failures.add(leg.row.fail(Result.Status.RECIPIENT_NOT_FOUND, "Recipient not found"));
+                }
+                if (atomic && gone) {
+                    chunk.rejected = chunk.failures.size() + " recipients no longer exist; nothing was transferred";
+                    return chunk;
+                }
+                if (m.rejected) {
+                    long needed = 0;
+                    for (Disbursement.Row row : part) needed += row.amount;
+                    chunk.rejected = "Batch of BDT " + Money.format(needed) + " denied. Keep at least BDT "
+                            + Money.format(MIN_BALANCE);
+                    return chunk;
+                }
+                for (Leg leg : legs) {
+                    if (leg.gone) continue;
+                    if (!leg.covered) {
+                        chunk.failures.add(leg.row.fail(Result.Status.INSUFFICIENT_BALANCE,
+                                "Insufficient balance for BDT " + Money.format(leg.amount)));
+                    } else if (m.failure != null) {
+                        // as a single operation reports SAVE_FAILED
+                        chunk.failures.add(leg.row.fail(Result.Status.SAVE_FAILED, "Failed to save data: " + m.failure.getMessage()));
+                    } else {
+                        chunk.applied++;
+                        chunk.total += leg.amount;
+                    }
+                }
+                if (chunk.applied > 0) {
+                    Logger.log(payer.getUsername() + " disbursed BDT " + Money.format(chunk.total) + " to "
+                            + chunk.applied + (chunk.applied == 1 ? " recipient" : " recipients"));
+                }
+                return chunk;
+            });
+        }
+
+        // One credit of a move; covered and id are set on the payer's shard
+        private static final class Leg {
+            final User to;
+            final long amount;
+            final Disbursement.Row row; // null for a plain transfer
+            final Persistence.Credit credit;
+            boolean covered;
+            boolean gone; // the payee, on the payer's shard, was deleted
+            long id; // the payer's ledger record
+
+            Leg(User payer, User to, long amount, Disbursement.Row row) {
+                this.to = to;
+                this.amount = amount;
+                this.row = row;
+                String inText = row != null && row.description != null ? row.description : "From " + payer.getPhoneNumber();
+                this.credit = new Persistence.Credit(to.getPhoneNumber(), amount, inText, payer.getPhoneNumber(),
+                        System.currentTimeMillis());
+            }
+
+            String outText() {
+                return row != null && row.description != null ? row.description : "To " + to.getPhoneNumber();
+            }
+        }
+
+        // The accounts a move changes, as they were before, to put back if
+        // the change can't be recorded
+        private static final class Undo {
+            // balance and ledger head and count before; balance and head after
+            private final Map<User, long[]> saved = new LinkedHashMap<>();
+
+            // Before the move's first change to u
+            void save(User u) {
+                saved.putIfAbsent(u, new long[] {u.getBalance(), u.getLedgerHead(), u.getTransactionCount(), 0, 0});
+            }
+
+            // After the move's last change
+            void done() {
+                for (Map.Entry<User, long[]> e : saved.entrySet()) {
+                    e.getValue()[3] = e.getKey().getBalance();
+                    e.getValue()[4] = e.getKey().getLedgerHead();
+                }
+            }
+
+            // Straight after a change failed part way: every account goes
+            // back as it was, and the rows appended are left unreachable, as
+            // a failed append leaves its own
+            void rollBack() {
+                for (Map.Entry<User, long[]> e : saved.entrySet()) {
+                    long[] s = e.getValue();
+                    e.getKey().setBalance(s[0]);
+                    e.getKey().setLedger(s[1], (int) s[2]);
+                }
+            }
+
+            // Later, when other changes may have followed: an account
+            // nothing has touched since done() is rolled back; one that has
+            // moved on gets a row reversing the move's net effect instead.
+            // Returns the accounts, to be written.
+            User[] restore(Ledger ledger) throws IOException {
+                for (Map.Entry<User, long[]> e : saved.entrySet()) {
+                    User u = e.getKey();
+                    long[] s = e.getValue();
+                    long back = s[0] - s[3];
+                    if (u.getLedgerHead() == s[4]) {
+                        u.setBalance(s[0]);
+                        u.setLedger(s[1], (int) s[2]);
+                    } else if (back != 0) {
+                        ledger.append(u, new Transaction(back > 0 ? "Transfer In" : "Transfer Out", Math.abs(back),
+                                "Reversal of a failed transfer"));
+                        u.setBalance(u.getBalance() + back);
+                    }
+                }
+                return saved.keySet().toArray(new User[0]);
+            }
+        }
+
+        private static final class Move {
+            final List<Leg> legs;
+            boolean rejected; // atomic, and the balance can't cover every leg
+            boolean closed;   // the payer was deleted
+            IOException failure;
+            long balance;     // the payer's, after
+
+            Move(List<Leg> legs) { this.legs = legs; }
+        }
+
+        // Debits payer for every leg it can cover and credits the payees,
+        // wherever their shards are. Funds are checked on the payer's shard:
+        // with atomic every leg or none, otherwise each leg against what the
+        // ones before it left. Credits on the payer's shard are applied and
+        // saved with the debits in one record. Credits on other shards take
+        // two phases:
+        //  1. the payer's shard holds the funds, and each payee shard
+        //     journals a PREPARE listing its credits;
+        //  2. once every PREPARE is on disk, the payer's shard applies the
+        //     debits and journals them with a DECIDE, the commit point; then
+        //     each payee shard applies its credits and journals them with an
+        //     END.
+        // If a PREPARE fails the hold is released, the payee shards are sent
+        // an END without credits and nothing moves; so too if the debits
+        // can't be recorded or the DECIDE can't be written, once they are
+        // undone. No step waits for another shard's thread, only chains on
+        // its futures.
+        private CompletableFuture<Move> move(User payer, List<Leg> legs, boolean atomic) {
+            ShardedStore.Shard home = store.shard(payer);
+            Move move = new Move(legs);
+            return home.submit(() -> {
+                if (!home.has(payer)) {
+                    move.closed = true;
+                    return CompletableFuture.completedFuture(move);
+                }
+                boolean gone = false;
+                for (Leg leg : legs) {
+                    if (store.shard(leg.to) == home && !home.has(leg.to)) leg.gone = gone = true;
+                }
+                if (atomic && gone) return CompletableFuture.completedFuture(move);
+                long left = home.available(payer);
+                if (atomic) {
+                    long needed = 0;
+                    for (Leg leg : legs) needed += leg.amount;
+                    if (left - needed < MIN_BALANCE) {
+                        move.rejected = true;
+                        return CompletableFuture.completedFuture(move);
+                    }
+                }
+                Map<ShardedStore.Shard, List<Leg>> remote = new LinkedHashMap<>();
+                for (Leg leg : legs) {
+                    if (leg.gone || left - leg.amount < MIN_BALANCE) continue;
+                    left -= leg.amount;
+                    leg.covered = true;
+                    ShardedStore.Shard to = store.shard(leg.to);
+                    if (to != home) remote.computeIfAbsent(to, s -> new ArrayList<>()).add(leg);
+                }
+                if (remote.isEmpty()) return decide(home, payer, move, 0, remote);
+                long held = home.available(payer) - left;
+                long txid = newTxid();
+                home.hold(payer, held);
+                List<CompletableFuture<Void>> prepares = new ArrayList<>(remote.size());
+                remote.forEach((shard, part) -> {
+                    List<Persistence.Credit> credits = new ArrayList<>(part.size());
+                    for (Leg leg : part) credits.add(leg.credit);
+                    prepares.add(shard.store.prepareAsync(new Persistence.Prepare(txid, home.index, credits)));
+                });
+                return CompletableFuture.allOf(prepares.toArray(new CompletableFuture<?>[0]))
+                        .handle((ok, e) -> e)
+                        .thenCompose(e -> home.submit(() -> {
+                            home.release(payer, held);
+                            if (e == null) return decide(home, payer, move, txid, remote);
+                            callOff(remote, txid);
+                            move.failure = Persistence.ioCause(e);
+                            return CompletableFuture.completedFuture(move);
+                        }));
+            }).exceptionally(e -> {
+                move.failure = Persistence.ioCause(e);
+                return move;
+            });
+        }
+
+        // Phase two, on the payer's shard. Once the DECIDE is on disk the
+        // credits go ahead. A ledger append failing part way undoes the legs
+        // applied so far. A DECIDE that fails to be written is undone too,
+        // and the undone accounts written after it, so a DECIDE that reached
+        // the disk regardless is superseded; only then are the payee shards
+        // sent an END, and if that write fails too the transfer is left in
+        // doubt for the next start to settle. Without payee shards a failed
+        // write leaves the debits standing in memory, to go out with the
+        // payer's next write, as for any single-shard change.
+        private CompletableFuture<Move> decide(ShardedStore.Shard home, User payer, Move move, long txid,
+                                               Map<ShardedStore.Shard, List<Leg>> remote) {
+            Set<User> changed = new LinkedHashSet<>();
+            changed.add(payer);
+            Undo undo = new Undo();
+            undo.save(payer);
+            boolean any = false;
+            Lock barrier = home.store.mutationLock();
+            CompletableFuture<Void> decided;
+            barrier.lock();
+            try {
+                for (Leg leg : move.legs) {
+                    if (!leg.covered) continue;
+                    any = true;
+                    leg.id = home.ledger().append(payer, new Transaction("Transfer Out", leg.amount, leg.outText(),
+                            leg.to.getPhoneNumber()));
+                    payer.setBalance(payer.getBalance() - leg.amount);
+                    if (store.shard(leg.to) == home) {
+                        undo.save(leg.to);
+                        home.credit(leg.to, leg.credit);
+                        changed.add(leg.to);
+                    }
+                }
+                move.balance = payer.getBalance();
+                if (!any) return CompletableFuture.completedFuture(move);
+                undo.done();
+                User[] accounts = changed.toArray(new User[0]);
+                decided = remote.isEmpty() ? home.store.commitAsync(accounts) : home.store.decideAsync(txid, accounts);
+            } catch (IOException e) {
+                undo.rollBack();
+                move.balance = payer.getBalance();
+                move.failure = e;
+                callOff(remote, txid);
+                return CompletableFuture.completedFuture(move);
+            } finally {
+                barrier.unlock();
+            }
+            if (remote.isEmpty()) {
+                return decided.handle((ok, e) -> {
+                    if (e != null) move.failure = Persistence.ioCause(e);
+                    return move;
+                });
+            }
+            return decided.handle((ok, e) -> e).thenCompose(e -> {
+                if (e != null) {
+                    move.failure = Persistence.ioCause(e);
+                    return home.submit(() -> undoDecide(home, payer, move, txid, remote, undo));
+                }
+                List<CompletableFuture<Void>> ends = new ArrayList<>(remote.size());
+                remote.forEach((shard, part) -> ends.add(credit(shard, txid, part)));
+                return CompletableFuture.allOf(ends.toArray(new CompletableFuture<?>[0])).handle((ok, e2) -> {
+                    if (e2 != null) move.failure = Persistence.ioCause(e2);
+                    else home.store.settled(txid);
+                    return move;
+                });
+            });
+        }
+
+        // Payer's shard, after the DECIDE failed to be written
+        private static CompletableFuture<Move> undoDecide(ShardedStore.Shard home, User payer, Move move, long txid,
+                                                          Map<ShardedStore.Shard, List<Leg>> remote, Undo undo) {
+            home.store.settled(txid);
+            Lock barrier = home.store.mutationLock();
+            CompletableFuture<Void> restored;
+            barrier.lock();
+            try {
+                restored = home.store.commitAsync(undo.restore(home.ledger()));
+            } catch (IOException e) {
+                restored = CompletableFuture.failedFuture(e);
+            } finally {
+                barrier.unlock();
+            }
+            move.balance = payer.getBalance();
+            return restored.handle((ok, e) -> {
+                if (e == null) {
+                    callOff(remote, txid);
+                } else {
+                    Logger.log("Transfer " + Long.toHexString(txid) + " left in doubt until the next start: "
+                            + Persistence.ioCause(e).getMessage());
+                }
+                return move;
+            });
+        }
+
+        // Sends each payee shard an END without credits, on its own thread
+        private static void callOff(Map<ShardedStore.Shard, List<Leg>> remote, long txid) {
+            for (ShardedStore.Shard shard : remote.keySet()) shard.submit(() -> shard.store.endAsync(txid));
+        }
+
+        // Phase two on a payee shard. An append failing part way undoes the
+        // credits applied so far and leaves the PREPARE without an END, in
+        // doubt, rather than ending the transfer with only some of its
+        // credits; the next start redoes them all.
+        private static CompletableFuture<Void> credit(ShardedStore.Shard shard, long txid, List<Leg> legs) {
+            return shard.submit(() -> {
+                Set<User> changed = new LinkedHashSet<>();
+                Undo undo = new Undo();
+                Lock barrier = shard.store.mutationLock();
+                barrier.lock();
+                try {
+                    for (Leg leg : legs) {
+                        // deleted while the PREPARE was on its way, as on recovery
+                        if (!shard.has(leg.to)) {
+                            Logger.log("Credit of BDT " + Money.format(leg.amount) + " to deleted account "
+                                    + leg.to.getPhoneNumber() + " dropped");
+                            continue;
+                        }
+                        undo.save(leg.to);
+                        shard.credit(leg.to, leg.credit);
+                        changed.add(leg.to);
+                    }
+                    return shard.store.endAsync(txid, changed.toArray(new User[0]));
+                } catch (IOException e) {
+                    undo.rollBack();
+                    Logger.log("Transfer " + Long.toHexString(txid) + " left in doubt until the next start: " + e.getMessage());
+                    return CompletableFuture.failedFuture(e);
+                } finally {
+                    barrier.unlock();
+                }
+            });
+        }
+
+        // Random, so IDs from different shards and runs don't collide; never 0
+        private static long newTxid() {
+            long id;
+            do id = ThreadLocalRandom.current().nextLong(); while (id == 0);
+            return id;
+        }
+
+        interface Mutation {
+            Result apply(ShardedStore.Shard shard) throws IOException;
+        }
+
+        // Runs mutation on the account's shard thread, and encodes and queues
+        // the journal record there too, so records for an account reach the
+        // disk in the order its changes were made
+        private CompletableFuture<Result> local(User user, String logLine, Mutation mutation) {
+            CompletableFuture<Result> result = new CompletableFuture<>();
+            store.shard(user).command(user, logLine, mutation, result);
+            return result;
+        }
+
+        // Shard thread: the body of a command
+        static void apply(ShardedStore.Shard shard, User user, String logLine, Mutation mutation,
+                          CompletableFuture<Result> result) {
+            if (!shard.has(user)) {
+                result.complete(Result.closed());
+                return;
+            }
+            Lock barrier = shard.store.mutationLock();
+            Result applied;
+            CompletableFuture<Void> written;
+            barrier.lock();
+            try {
+                applied = mutation.apply(shard);
+                if (!applied.ok()) {
+                    result.complete(applied);
+                    return;
+                }
+                written = shard.store.commitAsync(user);
+            } catch (IOException | RuntimeException e) {
+                result.complete(Result.saveFailed(Persistence.ioCause(e)));
+                return;
+            } finally {
+                barrier.unlock();
+            }
+            written.whenComplete((ok, e) -> {
+                if (e != null) {
+                    result.complete(Result.saveFailed(Persistence.ioCause(e)));
+                } else {
+                    Logger.log(logLine);
+                    result.complete(applied);
+                }
+            });
+        }
+
+        private static CompletableFuture<Result> done(Result result) {
+            return CompletableFuture.completedFuture(result);
+        }
+
+        // Runs operation once per key. The fingerprint is built only when
+        // there is a key, from what has to match for a repeat to count as
+        // the same request.
+        private CompletableFuture<Result> once(User user, String key, String op, long amount, String to,
+                                               Supplier<CompletableFuture<Result>> operation) {
+            if (key == null) return operation.get();
+            String fingerprint = op + ' ' + amount + ' ' + to;
+            CompletableFuture<Result> pending = new CompletableFuture<>();
+            IdempotencyCache.Entry prior = claim(user, key, fingerprint, pending, operation,
+                    r -> r.ok() || r.status() == Result.Status.SAVE_FAILED);
+            if (prior == null) return pending;
+            if (!prior.matches(fingerprint)) return done(new Result(Result.Status.KEY_REUSED, Result.KEY_REUSED, 0));
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Result> earlier = (CompletableFuture<Result>) prior.result();
+            return earlier.thenApply(Result::replayed);
+        }
+
+        // Returns the entry already holding the key, or null once operation
+        // has been started with its outcome going to pending. Outcomes that
+        // moved money are kept, failed saves included: their change stays
+        // applied in memory and goes out with the account's next write, so
+        // running the call again could move the money twice. Refusals that
+        // changed nothing (keep false) free the key once settled, so a retry
+        // after a top-up is tried afresh.
+        private <T> IdempotencyCache.Entry claim(User user, String key, String fingerprint, CompletableFuture<T> pending,
+                                                 Supplier<CompletableFuture<T>> operation,
+                                                 java.util.function.Predicate<T> keep) {
+            IdempotencyCache.Entry prior = recent.claim(user.getPhoneNumber(), key, fingerprint, pending, System.nanoTime());
+            if (prior != null) return prior;
+            CompletableFuture<T> result;
+            try {
+                result = operation.get();
+            } catch (RuntimeException e) {
+                recent.forget(user.getPhoneNumber(), key, pending);
+                pending.completeExceptionally(e);
+                throw e;
+            }
+            result.whenComplete((r, e) -> {
+                if (e != null) {
+                    pending.completeExceptionally(e);
+                    return;
+                }
+                if (!keep.test(r)) recent.forget(user.getPhoneNumber(), key, pending);
+                pending.complete(r);
+            });
+            return null;
+        }
+
+        // Times an operation from the call until its result is settled,
+        // durable write included, and counts the outcome; one that fails
+        // outright counts as SAVE_FAILED
+        private static CompletableFuture<Result> timed(Metrics.Operation<Result.Status> op,
+                                                       Supplier<CompletableFuture<Result>> operation) {
+            long start = System.nanoTime();
+            CompletableFuture<Result> result;
+            try {
+                result = operation.get();
+            } catch (RuntimeException e) {
+                op.record(Result.Status.SAVE_FAILED, System.nanoTime() - start);
+                throw e;
+            }
+            result.whenComplete((r, e) -> op.record(e != null ? Result.Status.SAVE_FAILED : r.status(),
+                    System.nanoTime() - start));
+            return result;
+        }
+
+        private static boolean validAmount(long amount) {
+            return amount > 0 && amount <= Money.MAX_AMOUNT;
+        }
+
+        static final class Result {
+            enum Status {
+                OK, INVALID_AMOUNT, INVALID_ROW, INSUFFICIENT_BALANCE, RECIPIENT_NOT_FOUND, SELF_TRANSFER, SAVE_FAILED,
+                KEY_REUSED, ACCOUNT_CLOSED
+            }
+
+            static final String KEY_REUSED = "Idempotency key was already used for a different request";
+
+            private final Status status;
+            private final String message;
+            private final long balance;
+            private final long transactionId;
+            private final boolean replayed;
+
+            Result(Status status, String message, long balance) {
+                this(status, message, balance, 0, false);
+            }
+
+            private Result(Status status, String message, long balance, long transactionId, boolean replayed) {
+                this.status = status;
+                this.message = message;
+                this.balance = balance;
+                this.transactionId = transactionId;
+                this.replayed = replayed;
+            }
+
+            static Result ok(long balance, long transactionId) { return new Result(Status.OK, "", balance, transactionId, false); }
+            static Result invalidAmount() { return new Result(Status.INVALID_AMOUNT, "Amount must be positive", 0); }
+            static Result insufficient(String message) { return new Result(Status.INSUFFICIENT_BALANCE, message, 0); }
+            static Result closed() { return new Result(Status.ACCOUNT_CLOSED, "Account no longer exists", 0); }
+            static Result saveFailed(IOException e) {
+                return new Result(Status.SAVE_FAILED, "Failed to save data: " + e.getMessage(), 0);
+            }
+
+            boolean ok() { return status == Status.OK; }
+            Status status() { return status; }
+            String message() { return message; }
+            // Payer's balance after the operation
+            long balance() { return balance; }
+            // The payer's ledger record, 0 if nothing was recorded
+            long transactionId() { return transactionId; }
+            // Whether this is an earlier call's result, returned for a repeated key
+            boolean isReplayed() { return replayed; }
+
+            Result replayed() { return new Result(status, message, balance, transactionId, true); }
+        }
+    }
+
+    // A bulk transfer run from one account, e.g. payroll or refunds. Rows are
+    // CSV lines of phone,amount[,description]; blank lines are skipped, as is
+    // a first line whose amount column reads "amount". Fields may be quoted.
+    // Lines that don't parse are kept as failures so the report covers every
+    // line of the input.
+    static final class Disbursement {
+        static final int MAX_ROWS = Integer.getInteger("cardpayment.bulk.maxRows", 100_000);
+        static final int CHUNK_ROWS = Integer.getInteger("cardpayment.bulk.chunkRows", 500);
+        // An all-or-nothing batch is one journal record, which must stay
+        // well under the replay limit on frame size
+        static final int MAX_ATOMIC_ROWS = Integer.getInteger("cardpayment.bulk.maxAtomicRows", 10_000);
+
+        private final List<Row> rows;
+        private final List<Failure> failures;
+
+        private Disbursement(List<Row> rows, List<Failure> failures) {
+            this.rows = rows;
+            this.failures = failures;
+        }
+
+        static final class Row {
+            final int line;
+            final String phone;
+            final long amount;
+            final String description;
+            User recipient; // set by the engine once resolved
+
+            Row(int line, String phone, long amount, String description) {
+                this.line = line;
+                this.phone = phone;
+                this.amount = amount;
+                this.description = description;
+            }
+
+            Failure fail(PaymentEngine.Result.Status status, String message) {
+                return new Failure(line, phone, status, message);
+            }
+        }
+
+        static final class Failure {
+            final int line;
+            final String phone;
+            final PaymentEngine.Result.Status status;
+            final String message;
+
+            Failure(int line, String phone, PaymentEngine.Result.Status status, String message) {
+                this.line = line;
+                this.phone = phone;
+                this.status = status;
+                this.message = message;
+            }
+
+            @Override
+            public String toString() {
+                return "Line " + line + " (" + phone + "): " + message;
+            }
+        }
+
+        // Outcome of a run. rejected is set when an all-or-nothing batch was
+        // refused as a whole, in which case nothing was applied.
+        static final class Report {
+            final int rows;
+            final int applied;
+            final long total;
+            final long balance;
+            final List<Failure> failures;
+            final String rejected;
+
+            Report(int rows, int applied, long total, long balance, List<Failure> failures, String rejected) {
+                this.rows = rows;
+                this.applied = applied;
+                this.total = total;
+                this.balance = balance;
+                this.failures = failures;
+                this.rejected = rejected;
+            }
+        }
+
+        static Disbursement parse(Reader reader) throws IOException {
+            BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+            List<Row> rows = new ArrayList<>();
+            List<Failure> failures = new ArrayList<>();
+            List<String> fields = new ArrayList<>(3);
+            String text;
+            int line = 0;
+            while ((text = in.readLine()) != null) {
+                line++;
+                if (text.isBlank()) continue;
+                if (rows.size() + failures.size() >= MAX_ROWS) {
+                    throw new IllegalArgumentException("More than " + MAX_ROWS + " rows in one batch");
+                }
+                fields.clear();
+                if (!split(text, fields)) {
+                    failures.add(new Failure(line, "", PaymentEngine.Result.Status.INVALID_ROW, "Unterminated quote"));
+                    continue;
+                }
+                String phone = fields.get(0).trim();
+                String amount = fields.size() > 1 ? fields.get(1).trim() : "";
+                if (line == 1 && amount.equalsIgnoreCase("amount")) continue;
+                if (fields.size() < 2 || fields.size() > 3 || phone.isEmpty()) {
+                    failures.add(new Failure(line, phone, PaymentEngine.Result.Status.INVALID_ROW,
+                            "Expected phone,amount[,description]"));
+                    continue;
+                }
+                try {
+                    String description = fields.size() > 2 && !fields.get(2).isBlank() ? fields.get(2).trim() : null;
+                    rows.add(new Row(line, phone, Money.parse(amount), description));
+                } catch (NumberFormatException e) {
+                    failures.add(new Failure(line, phone, PaymentEngine.Result.Status.INVALID_AMOUNT,
+                            "Invalid amount '" + amount + "'"));
+                }
+            }
+            return new Disbursement(rows, failures);
+        }
+
+        List<Row> rows() { return rows; }
+        List<Failure> failures() { return failures; }
+        int lines() { return rows.size() + failures.size(); }
+
+        // Line count and a hash of the rows, to tell a resubmitted batch from
+        // a different one under the same idempotency key
+        String fingerprint() {
+            long h = 17;
+            for (Row r : rows) {
+                h = h * 31 + r.line;
+                h = h * 31 + r.phone.hashCode();
+                h = h * 31 + r.amount;
+                h = h * 31 + Objects.hashCode(r.description);
+            }
+            for (Failure f : failures) h = h * 31 + f.line;
+            return lines() + ":" + Long.toHexString(h);
+        }
+
+        // Comma-separated fields, double-quoted where they hold commas or
+        // quotes ("" inside quotes is a literal quote); false on a dangling quote
+        private static boolean split(String text, List<String> out) {
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quoted) {
+                    if (c != '"') field.append(c);
+                    else if (i + 1 < text.length() && text.charAt(i + 1) == '"') field.append(text.charAt(i++));
+                    else quoted = false;
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    out.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            out.add(field.toString());
+            return !quoted;
+        }
+    }
+
+    // Recent requests by idempotency key, so a double-clicked button or a
+    // retried HTTP call gets the first attempt's result instead of moving the
+    // money again. Keys are scoped to the account; a key that comes back with
+    // different parameters is refused rather than answered. A retry while
+    // the first attempt is still in flight waits on the same future. Entries
+    // lapse after ttl and the oldest settled ones go first once the cache is
+    // full; one still in flight is never evicted, or its retry would pay
+    // again.
+    // A repeat is one map read; only a new key takes the lock, to queue the
+    // entry for eviction.
+    static final class IdempotencyCache {
+        static final int MAX_KEY_LENGTH = 255;
+
+        private final long ttlNanos;
+        private final int capacity;
+        private final ConcurrentHashMap<Id, Entry> entries = new ConcurrentHashMap<>();
+        private final ArrayDeque<Entry> order = new ArrayDeque<>(); // oldest first
+        private final LongAdder replays = new LongAdder();
+
+        // Account and key, without copying either into one string
+        private static final class Id {
+            final String phone;
+            final String key;
+            final int hash;
+
+            Id(String phone, String key) {
+                this.phone = phone;
+                this.key = key;
+                this.hash = phone.hashCode() * 31 + key.hashCode();
+            }
+
+            @Override
+            public int hashCode() { return hash; }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Id)) return false;
+                Id other = (Id) o;
+                return hash == other.hash && key.equals(other.key) && phone.equals(other.phone);
+            }
+        }
+
+        static final class Entry {
+            final Id id;
+            final String fingerprint;
+            final long created; // nanoTime
+            final CompletableFuture<?> result;
+
+            Entry(Id id, String fingerprint, long created, CompletableFuture<?> result) {
+                this.id = id;
+                this.fingerprint = fingerprint;
+                this.created = created;
+                this.result = result;
+            }
+
+            boolean matches(String fingerprint) { return this.fingerprint.equals(fingerprint); }
+            CompletableFuture<?> result() { return result; }
+        }
+
+        IdempotencyCache(long ttlMillis, int capacity) {
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ttlMillis));
+            this.capacity = Math.max(1, capacity);
+        }
+
+        static IdempotencyCache fromSystemProperties() {
+            return new IdempotencyCache(
+                    TimeUnit.SECONDS.toMillis(Long.getLong("cardpayment.idempotency.ttlSeconds", 86_400L)),
+                    Integer.getInteger("cardpayment.idempotency.max", 100_000));
+        }
+
+        // Records pending as the outcome for the account's key and returns
+        // null, unless a live entry already holds the key, which is returned
+        Entry claim(String phone, String key, String fingerprint, CompletableFuture<?> pending, long now) {
+            Id id = new Id(phone, key);
+            Entry prior = entries.get(id);
+            if (prior != null && now - prior.created < ttlNanos) {
+                replays.increment();
+                return prior;
+            }
+            // absent or lapsed; another thread may be claiming it too
+            Entry fresh = new Entry(id, fingerprint, now, pending);
+            while (prior == null ? (prior = entries.putIfAbsent(id, fresh)) != null : !entries.replace(id, prior, fresh)) {
+                prior = entries.get(id);
+                if (prior != null && now - prior.created < ttlNanos) {
+                    replays.increment();
+                    return prior;
+                }
+            }
+            synchronized (order) {
+                order.addLast(fresh);
+                // in-flight entries go round to the back, each looked at once
+                for (int n = order.size(); n > 0 && (order.size() > capacity
+                        || now - order.peekFirst().created >= ttlNanos); n--) {
+                    Entry old = order.pollFirst();
+                    if (old.result.isDone()) entries.remove(old.id, old);
+                    else order.addLast(old);
+                }
+            }
+            return null;
+        }
+
+        // Frees the key if pending still holds it, for a call that failed
+        // before it could do anything
+        void forget(String phone, String key, CompletableFuture<?> pending) {
+            Entry e = entries.get(new Id(phone, key));
+            if (e != null && e.result == pending) entries.remove(e.id, e);
+        }
+
+        int size() { return entries.size(); }
+        long replays() { return replays.sum(); }
+    }
+
+    // HTTP/JSON front end for POS and mobile clients, sharing the engine,
+    // in-memory accounts and sessions with the Swing UI. Every endpoint is a
+    // POST taking a flat JSON object. "login" takes phone and pin and returns
+    // a session token; the rest take that token, and the ones that move money
+    // out of the account want the pin again, as the UI does. Amounts are
+    // decimal BDT strings or numbers. Each exchange runs on its own virtual
+    // thread when the runtime has them (JDK 21+), otherwise on a cached pool.
+    static class PaymentServer {
+        private static final int MAX_BODY = 16 * 1024;
+        private static final int MAX_BULK_BODY = 8 * 1024 * 1024;
+        private static final int MAX_HISTORY = 500;
+        private static final boolean METRICS_REMOTE = Boolean.getBoolean("cardpayment.metrics.remote");
+
+        private final UserDirectory users;
+        private final ShardedStore store;
+        private final PaymentEngine engine;
+        private final LoginThrottle throttle;
+        private final SessionManager sessions;
+        private final LongAdder errors = new LongAdder();
+        private com.sun.net.httpserver.HttpServer http;
+        private ExecutorService executor;
+        private String threading;
+
+        PaymentServer(UserDirectory users, ShardedStore store, PaymentEngine engine,
+                      LoginThrottle throttle, SessionManager sessions) {
+            this.users = users;
+            this.store = store;
+            this.engine = engine;
+            this.throttle = throttle;
+            this.sessions = sessions;
+        }
+
+        void start(java.net.InetSocketAddress address) throws IOException {
+            // The JDK server drops kept-alive connections beyond 200 idle ones,
+            // which clients see as resets when they reuse them; read once at
+            // class init, so it must be set before the first create()
+            if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+                System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+            }
+            http =com.sun.net.httpserver.HttpServer.create(address, 1024);
+            executor = perRequestExecutor();
+            http.setExecutor(executor);
+            Metrics.counter("cardpayment_http_errors_total", "API requests answered with an internal error",
+                    errors::sum);
+            http.createContext("/api/", exchange -> {
+                try (exchange) {
+                    handle(exchange);
+                }
+            });
+            http.createContext("/metrics", exchange -> {
+                try (exchange) {
+                    metrics(exchange);
+                }
+            });
+            http.start();
+        }
+
+        void stop() {
+            if (http != null) http.stop(0);
+            if (executor != null) executor.shutdown();
+        }
+
+        int port() { return http.getAddress().getPort(); }
+        String threading() { return threading; }
+
+        private ExecutorService perRequestExecutor() {
+            try {
+                ExecutorService virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                threading = "virtual threads";
+                return virtual;
+            } catch (ReflectiveOperationException e) {
+                threading = "platform thread pool";
+                AtomicInteger n = new AtomicInteger();
+                return Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "cardpayment-http-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        // Anything unexpected, a failed read or a payment future completed
+        // exceptionally, is logged and answered with a 500 unless a reply
+        // has already gone out
+        private void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            try {
+                serve(exchange);
+            } catch (IOException | RuntimeException e) {
+                errors.increment();
+                Logger.log("HTTP " + exchange.getRequestURI().getPath() + " failed: " + Persistence.ioCause(e).getMessage());
+                if (exchange.getResponseCode() == -1) reply(exchange, 500, error("INTERNAL", "Internal error, try again"));
+            }
+        }
+
+        private void serve(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405, error("METHOD_NOT_ALLOWED", "Use POST"));
+                return;
+            }
+            String op = exchange.getRequestURI().getPath().substring("/api/".length());
+            Map<String, String> req;
+            try {
+                int limit = op.equals("disburse") ? MAX_BULK_BODY : MAX_BODY;
+                byte[] body = exchange.getRequestBody().readNBytes(limit + 1);
+                if (body.length > limit) throw new IllegalArgumentException("Request too large");
+                req = Json.parseObject(new String(body, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                reply(exchange, 400, error("BAD_REQUEST", e.getMessage()));
+                return;
+            }
+            User user;
+            if (op.equals("login")) {
+                user = authenticate(exchange, req.getOrDefault("phone", ""), req.get("pin"), true);
+                if (user == null) return;
+                PinHasher.upgrade(user, req.get("pin"), store);
+                SessionManager.Session session = sessions.open(user, System.nanoTime());
+                Logger.log("User logged in over HTTP: " + user.getUsername());
+                reply(exchange, 200, account(user, session.token()));
+                return;
+            }
+            long token = token(req.get("token"));
+            SessionManager.Session session = sessions.get(token, System.nanoTime());
+            if (session == null) {
+                reply(exchange, 401, error("SESSION_EXPIRED", "Unknown or expired session, login again"));
+                return;
+            }
+            user = session.user();
+            if (needsPin(op) && authenticate(exchange, user.getPhoneNumber(), req.get("pin"), false) == null) return;
+            try {
+                String key = idempotencyKey(exchange, req);
+                switch (op) {
+                    case "logout":
+                        sessions.close(token);
+                        reply(exchange, 200, "{\"ok\":true}");
+                        break;
+                    case "balance":
+                        reply(exchange, 200, account(user, 0));
+                        break;
+                    case "deposit":
+                        reply(exchange, engine.deposit(user, amount(req), key).join());
+                        break;
+                    case "withdraw":
+                        reply(exchange, engine.withdraw(user, amount(req), key).join());
+                        break;
+                    case "transfer":
+                        reply(exchange, engine.transfer(user, req.getOrDefault("to", ""), amount(req), key).join());
+                        break;
+                    case "bill":
+                        reply(exchange, engine.payBill(user, req.getOrDefault("biller", ""), amount(req), key).join());
+                        break;
+                    case "convocation":
+                        reply(exchange, engine.payConvocation(user, amount(req), key).join());
+                        break;
+                    case "history":
+                        reply(exchange, 200, history(user, req));
+                        break;
+                    case "disburse":
+                        disburse(exchange, user, req, key);
+                        break;
+                    default:
+                        reply(exchange, 404, error("NOT_FOUND", "Unknown operation " + op));
+                }
+            } catch (NumberFormatException e) {
+                reply(exchange, 400, error("INVALID_AMOUNT", "Please enter a valid amount"));
+            } catch (IllegalArgumentException e) {
+                reply(exchange, 400, error("BAD_REQUEST", e.getMessage()));
+            }
+        }
+
+        // Prometheus scrape target. Only answered on loopback unless
+        // cardpayment.metrics.remote is true, since it shows traffic levels.
+        private void metrics(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            if (!METRICS_REMOTE && !exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                reply(exchange, 403, error("FORBIDDEN", "Metrics are only served locally"));
+                return;
+            }
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405, error("METHOD_NOT_ALLOWED", "Use GET"));
+                return;
+            }
+            byte[] bytes = Metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+
+        // Throttled PIN check; replies 429 or 401 and returns null on failure.
+        // login says whether it counts as a login or a PIN re-check.
+        private User authenticate(com.sun.net.httpserver.HttpExchange exchange, String phone, String pin, boolean login)
+                throws IOException {
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            long wait = throttle.check(phone, now);
+            if (wait > 0) {
+                if (login) Metrics.LOGIN.record(Metrics.Login.THROTTLED, System.nanoTime() - start);
+                exchange.getResponseHeaders().set("Retry-After", Long.toString((wait + 999) / 1000));
+                reply(exchange, 429, error("TOO_MANY_ATTEMPTS", "Too many attempts, retry later"));
+                return null;
+            }
+            User user = users.findByPhone(phone);
+            if (!PinHasher.verify(user, pin)) {
+                if (login) Metrics.LOGIN.record(Metrics.Login.REFUSED, System.nanoTime() - start);
+                throttle.failed(phone, now);
+                reply(exchange, 401, error("UNAUTHORIZED", "Invalid phone number or PIN"));
+                return null;
+            }
+            if (login) Metrics.LOGIN.record(Metrics.Login.OK, System.nanoTime() - start);
+            throttle.succeeded(phone);
+            return user;
+        }
+
+        private static boolean needsPin(String op) {
+            switch (op) {
+                case "withdraw":
+                case "transfer":
+                case "bill":
+                case "convocation":
+                case "disburse":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        // Tokens travel as unsigned hex; anything unparsable is no session
+        private static long token(String hex) {
+            if (hex == null) return 0;
+            try {
+                return Long.parseUnsignedLong(hex, 16);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        // From the Idempotency-Key header, or an "idempotencyKey" field for
+        // clients that can't set headers; null if neither is given
+        private static String idempotencyKey(com.sun.net.httpserver.HttpExchange exchange, Map<String, String> req) {
+            String key = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+            if (key == null) key = req.get("idempotencyKey");
+            if (key == null || key.isEmpty()) return null;
+            if (key.length() > IdempotencyCache.MAX_KEY_LENGTH) {
+                throw new IllegalArgumentException("Idempotency key is longer than " + IdempotencyCache.MAX_KEY_LENGTH);
+            }
+            return key;
+        }
+
+        private static long amount(Map<String, String> req) {
+            String amount = req.get("amount");
+            if (amount == null) throw new NumberFormatException("missing amount");
+            return Money.parse(amount);
+        }
+
+        // token is included when non-zero
+        private static String account(User u, long token) {
+            StringBuilder sb = new StringBuilder(160).append("{\"ok\":true,");
+            if (token != 0) sb.append("\"token\":\"").append(Long.toHexString(token)).append("\",");
+            sb.append("\"username\":");
+            Json.quote(sb, u.getUsername()).append(",\"phone\":");
+            Json.quote(sb, u.getPhoneNumber()).append(",\"balance\":\"");
+            return Money.appendTo(sb, u.getBalance()).append("\"}").toString();
+        }
+
+        // Newest first; "limit" caps the page, "before" continues from the
+        // "next" cursor of the previous page
+        private String history(User u, Map<String, String> req) throws IOException {
+            int limit;
+            long before;
+            try {
+                limit = Math.max(1, Math.min(MAX_HISTORY, Integer.parseInt(req.getOrDefault("limit", "50"))));
+                before = req.get("before") == null ? 0 : Long.parseLong(req.get("before"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("limit and before must be integers");
+            }
+            long[] page = engine.recent(u, before, limit);
+            if (page == null) throw new IllegalArgumentException("Unknown history cursor");
+            Ledger ledger = store.ledger(u);
+            StringBuilder sb = new StringBuilder(64 + limit * 128).append("{\"ok\":true,\"transactions\":[");
+            for (int i = 0; i < page.length; i++) {
+                Transaction t = ledger.read(page[i]);
+                if (i > 0) sb.append(',');
+                sb.append("{\"id\":").append(t.id()).append(",\"time\":").append(t.timestamp).append(",\"type\":");
+                Json.quote(sb, t.type).append(",\"amount\":\"");
+                Money.appendTo(sb, t.amount).append("\",\"description\":");
+                Json.quote(sb, t.description).append(",\"counterparty\":");
+                Json.quote(sb, t.counterparty).append('}');
+            }
+            sb.append("],\"next\":");
+            // a short page means the oldest record has been reached
+            return (page.length == limit ? sb.append(page[page.length - 1]) : sb.append("null")).append('}').toString();
+        }
+
+        // "csv" holds the rows, "atomic": true makes the batch all-or-nothing.
+        // Replies 200 with the per-row failures whenever anything could be
+        // attempted, 409 when an all-or-nothing batch was refused.
+        private void disburse(com.sun.net.httpserver.HttpExchange exchange, User user, Map<String, String> req, String key)
+                throws IOException {
+            String csv = req.get("csv");
+            if (csv == null) throw new IllegalArgumentException("csv is required");
+            Disbursement batch = Disbursement.parse(new StringReader(csv));
+            Disbursement.Report report = engine.disburse(user, batch, "true".equals(req.get("atomic")),
+                    Disbursement.CHUNK_ROWS, null, key).join();
+            StringBuilder sb = new StringBuilder(128 + report.failures.size() * 96)
+                    .append("{\"ok\":").append(report.rejected == null);
+            if (report.rejected != null) {
+                sb.append(",\"status\":\"REJECTED\",\"error\":");
+                Json.quote(sb, report.rejected);
+            }
+            sb.append(",\"rows\":").append(report.rows).append(",\"applied\":").append(report.applied);
+            Money.appendTo(sb.append(",\"total\":\""), report.total);
+            Money.appendTo(sb.append("\",\"balance\":\""), report.balance).append("\",\"failures\":[");
+            for (int i = 0; i < report.failures.size(); i++) {
+                Disbursement.Failure f = report.failures.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"line\":").append(f.line).append(",\"phone\":");
+                Json.quote(sb, f.phone).append(",\"status\":\"").append(f.status.name()).append("\",\"error\":");
+                Json.quote(sb, f.message).append('}');
+            }
+            reply(exchange, report.rejected == null ? 200 : 409, sb.append("]}").toString());
+        }
+
+        private static String error(String status, String message) {
+            StringBuilder sb = new StringBuilder(96).append("{\"ok\":false,\"status\":");
+            Json.quote(sb, status).append(",\"error\":");
+            return Json.quote(sb, message).append('}').toString();
+        }
+
+        private static void reply(com.sun.net.httpserver.HttpExchange exchange, PaymentEngine.Result result) throws IOException {
+            if (result.isReplayed()) exchange.getResponseHeaders().set("Idempotent-Replayed", "true");
+            if (result.ok()) {
+                StringBuilder sb = new StringBuilder(80).append("{\"ok\":true,\"balance\":\"");
+                Money.appendTo(sb, result.balance()).append("\",\"transaction\":").append(result.transactionId());
+                reply(exchange, 200, sb.append(result.isReplayed() ? ",\"replayed\":true}" : "}").toString());
+                return;
+            }
+            int code;
+            switch (result.status()) {
+                case RECIPIENT_NOT_FOUND: code = 404; break;
+                case INSUFFICIENT_BALANCE: code = 409; break;
+                case KEY_REUSED: code = 422; break;
+                case ACCOUNT_CLOSED: code = 410; break;
+                case SAVE_FAILED: code = 500; break;
+                default: code = 400; break;
+            }
+            reply(exchange, code, error(result.status().name(), result.message()));
+        }
+
+        private static void reply(com.sun.net.httpserver.HttpExchange exchange, int code, String json) throws IOException {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+
+        // Just enough JSON for flat request objects: string, number, boolean
+        // and null values, no nesting
+        static final class Json {
+            private Json() { }
+
+            static Map<String, String> parseObject(String s) {
+                Map<String, String> out = new HashMap<>();
+                int[] pos = {skip(s, 0)};
+                expect(s, pos, '{');
+                if (peek(s, pos) == '}') {
+                    pos[0]++;
+                    return out;
+                }
+                while (true) {
+                    String key = string(s, pos);
+                    expect(s, pos, ':');
+                    out.put(key, value(s, pos));
+                    char c = peek(s, pos);
+                    pos[0]++;
+                    if (c == '}') return out;
+                    if (c != ',') throw new IllegalArgumentException("Malformed JSON at " + (pos[0] - 1));
+                }
+            }
+
+            static StringBuilder quote(StringBuilder sb, String s) {
+                if (s == null) return sb.append("null");
+                sb.append('"');
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c == '"' || c == '\\') sb.append('\\').append(c);
+                    else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+                return sb.append('"');
+            }
+
+            private static String value(String s, int[] pos) {
+                char c = peek(s, pos);
+                if (c == '"') return string(s, pos);
+                int start = pos[0];
+                while (pos[0] < s.length() && ",}] \t\r\n".indexOf(s.charAt(pos[0])) < 0) pos[0]++;
+                String literal = s.substring(start, pos[0]);
+                if (literal.isEmpty() || literal.equals("[") || literal.startsWith("{")) {
+                    throw new IllegalArgumentException("Unsupported JSON value at " + start);
+                }
+                return literal.equals("null") ? null : literal;
+            }
+
+            private static String string(String s, int[] pos) {
+                expect(s, pos, '"');
+                StringBuilder sb = new StringBuilder();
+                while (pos[0] < s.length()) {
+                    char c = s.charAt(pos[0]++);
+                    if (c == '"') return sb.toString();
+                    if (c != '\\') {
+                        sb.append(c);
+                        continue;
+                    }
+                    if (pos[0] >= s.length()) break;
+                    char e = s.charAt(pos[0]++);
+                    switch (e) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if (pos[0] + 4 > s.length()) throw new IllegalArgumentException("Bad escape");
+                            sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+                            pos[0] += 4;
+                            break;
+                        default: sb.append(e);
+                    }
+                }
+                throw new IllegalArgumentException("Unterminated string");
+            }
+
+            private static char peek(String s, int[] pos) {
+                pos[0] = skip(s, pos[0]);
+                if (pos[0] >= s.length()) throw new IllegalArgumentException("Unexpected end of JSON");
+                return s.charAt(pos[0]);
+            }
+
+            private static void expect(String s, int[] pos, char c) {
+                if (peek(s, pos) != c) throw new IllegalArgumentException("Expected '" + c + "' at " + pos[0]);
+                pos[0]++;
+            }
+
+            private static int skip(String s, int i) {
+                while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+                return i;
+            }
+        }
+    }
+
+    // Login attempt limits, checked before any PIN work. Each phone gets a
+    // sliding-window failure count plus a backoff that doubles with every
+    // failure past the limit; failures across all phones share a per-second
+    // cap so a spray across many phones can't burn unbounded CPU on the KDF.
+    // Counters are lock-free; the per-phone map is bounded and sheds stale
+    // entries first when it fills.
+    static final class LoginThrottle {
+        private final int maxFailures;
+        private final long windowMillis;
+        private final long baseBackoffMillis;
+        private final long maxBackoffMillis;
+        private final int maxTracked;
+        private final int globalLimit;
+        private final SlidingWindow global;
+        private final ConcurrentHashMap<String, Entry> phones = new ConcurrentHashMap<>();
+        private final AtomicBoolean sweeping = new AtomicBoolean();
+
+        private static final class Entry {
+            final SlidingWindow failures;
+            final AtomicInteger consecutive = new AtomicInteger();
+            final AtomicLong blockedUntil = new AtomicLong();
+            volatile long lastSeen;
+
+            Entry(long windowMillis) { failures = new SlidingWindow(windowMillis); }
+        }
+
+        LoginThrottle(int maxFailures, long windowMillis, int globalFailuresPerSecond,
+                      long baseBackoffMillis, long maxBackoffMillis, int maxTracked) {
+            this.maxFailures = Math.max(1, maxFailures);
+            this.windowMillis = Math.max(1, windowMillis);
+            this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+            this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+            this.maxTracked = Math.max(16, maxTracked);
+            this.global = new SlidingWindow(1000);
+            this.globalLimit = Math.max(1, globalFailuresPerSecond);
+        }
+
+        static LoginThrottle fromSystemProperties() {
+            return new LoginThrottle(
+                    Integer.getInteger("cardpayment.login.maxFailures", 5),
+                    TimeUnit.SECONDS.toMillis(Long.getLong("cardpayment.login.windowSeconds", 300L)),
+                    Integer.getInteger("cardpayment.login.globalFailuresPerSecond", 50),
+                    Long.getLong("cardpayment.login.backoffMillis", 1000L),
+                    TimeUnit.SECONDS.toMillis(Long.getLong("cardpayment.login.maxBackoffSeconds", 900L)),
+                    Integer.getInteger("cardpayment.login.maxTracked", 100_000));
+        }
+
+        // 0 if the attempt may go ahead, otherwise millis until it may
+        long check(String phone, long now) {
+            Entry e = phones.get(phone);
+            if (e != null) {
+                long wait = e.blockedUntil.get() - now;
+                if (wait > 0) return wait;
+            }
+            if (global.estimate(now) >= globalLimit) return 1000 - now % 1000;
+            return 0;
+        }
+
+        // Returns how long the phone is now blocked for, 0 if it isn't
+        long failed(String phone, long now) {
+            Entry e = phones.get(phone);
+            if (e == null) {
+                if (phones.size() >= maxTracked) sweep(now);
+                Entry fresh = new Entry(windowMillis);
+                e = phones.putIfAbsent(phone, fresh);
+                if (e == null) e = fresh;
+            }
+            e.lastSeen = now;
+            global.add(now);
+            int consecutive = e.consecutive.incrementAndGet();
+            if (e.failures.add(now) < maxFailures) return 0;
+            int over = Math.min(30, Math.max(0, consecutive - maxFailures));
+            long until = now + Math.min(maxBackoffMillis, baseBackoffMillis << over);
+            return e.blockedUntil.accumulateAndGet(until, Math::max) - now;
+        }
+
+        void succeeded(String phone) {
+            phones.remove(phone);
+        }
+
+        int tracked() { return phones.size(); }
+
+        // One thread at a time drops entries that are neither blocked nor
+        // recently seen; if that isn't enough, the oldest-looking ones go
+        private void sweep(long now) {
+            if (!sweeping.compareAndSet(false, true)) return;
+            try {
+                phones.values().removeIf(e -> e.blockedUntil.get() <= now && now - e.lastSeen > windowMillis);
+                Iterator<Entry> it = phones.values().iterator();
+                while (phones.size() >= maxTracked && it.hasNext()) {
+                    Entry e = it.next();
+                    if (e.blockedUntil.get() <= now) it.remove();
+                }
+            } finally {
+                sweeping.set(false);
+            }
+        }
+
+        // Approximate sliding-window counter in one AtomicLong: window index
+        // (32 bits), previous window's count (16) and current count (16). The
+        // estimate weights the previous window by how much of it still
+        // overlaps the sliding window.
+        static final class SlidingWindow {
+            private static final long COUNT_MASK = 0xFFFF;
+            private final long windowMillis;
+            private final AtomicLong state = new AtomicLong();
+
+            SlidingWindow(long windowMillis) { this.windowMillis = windowMillis; }
+
+            long estimate(long now) {
+                long cur = state.get();
+                long window = (now / windowMillis) & 0xFFFFFFFFL;
+                long w = cur >>> 32;
+                long count = cur & COUNT_MASK;
+                if (w == window) return count + ((cur >>> 16) & COUNT_MASK) * (windowMillis - now % windowMillis) / windowMillis;
+                if (w == ((window - 1) & 0xFFFFFFFFL)) return count * (windowMillis - now % windowMillis) / windowMillis;
+                return 0;
+            }
+
+            // Counts one event and returns the estimate including it
+            long add(long now) {
+                long window = now / windowMillis;
+                while (true) {
+                    long cur = state.get();
+                    long w = cur >>> 32;
+                    long prev = (cur >>> 16) & COUNT_MASK;
+                    long count = cur & COUNT_MASK;
+                    if (w == (window & 0xFFFFFFFFL)) {
+                        count = Math.min(COUNT_MASK, count + 1);
+                    } else {
+                        prev = w == ((window - 1) & 0xFFFFFFFFL) ? count : 0;
+                        count = 1;
+                    }
+                    long next = ((window & 0xFFFFFFFFL) << 32) | (prev << 16) | count;
+                    if (state.compareAndSet(cur, next)) {
+                        long elapsed = now % windowMillis;
+                        return count + prev * (windowMillis - elapsed) / windowMillis;
+                    }
+                }
+            }
+        }
+    }
+
+    // Logged-in sessions, so any number of terminals and HTTP clients can
+    // share one process. A session is named by a random 64-bit token and
+    // lapses after sitting idle. Tokens sit in an open-addressing table of
+    // primitive longs, so a lookup is a few array reads under an optimistic
+    // stamp and allocates nothing; opening, closing and sweeping take the
+    // write lock. The table is bounded: when full, expired sessions are swept
+    // and then the least recently used one is dropped.
+    static final class SessionManager {
+        private final long idleNanos;
+        private final long touchNanos;
+        private final int maxSessions;
+        private final StampedLock lock = new StampedLock();
+        private final SecureRandom random = new SecureRandom();
+        private Table table = new Table(64);
+        private int size;
+        private long lastSweep = System.nanoTime();
+
+        // Keys and values swap together on resize, so an optimistic reader
+        // never pairs arrays of different lengths
+        private static final class Table {
+            final long[] tokens;     // 0 marks a free slot
+            final Session[] sessions;
+
+            Table(int capacity) {
+                tokens = new long[capacity];
+                sessions = new Session[capacity];
+            }
+        }
+
+        static final class Session {
+            final long token;
+            final User user;
+            private volatile long lastUsed; // nanoTime
+
+            Session(long token, User user, long now) {
+                this.token = token;
+                this.user = user;
+                this.lastUsed = now;
+            }
+
+            long token() { return token; }
+            User user() { return user; }
+        }
+
+        SessionManager(long idleMillis, int maxSessions) {
+            this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleMillis));
+            this.touchNanos = Math.min(TimeUnit.SECONDS.toNanos(1), idleNanos / 16);
+            this.maxSessions = Math.max(1, maxSessions);
+        }
+
+        static SessionManager fromSystemProperties() {
+            return new SessionManager(
+                    TimeUnit.SECONDS.toMillis(Long.getLong("cardpayment.session.idleSeconds", 900L)),
+                    Integer.getInteger("cardpayment.session.max", 100_000));
+        }
+
+        Session open(User user, long now) {
+            long stamp = lock.writeLock();
+            try {
+                if (size >= maxSessions || now - lastSweep > idleNanos) {
+                    lastSweep = now;
+                    removeIf(s -> now - s.lastUsed > idleNanos);
+                }
+                if (size >= maxSessions) evictLeastRecent();
+                if ((size + 1) * 2 > table.tokens.length) resize(table.tokens.length * 2);
+                long token;
+                do {
+                    token = random.nextLong();
+                } while (token == 0 || probe(table, token) != null);
+                Session s = new Session(token, user, now);
+                long[] tokens = table.tokens;
+                int mask = tokens.length - 1;
+                int i = slot(token, mask);
+                while (tokens[i] != 0) i = (i + 1) & mask;
+                table.sessions[i] = s;
+                tokens[i] = token;
+                size++;
+                return s;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // The live session for the token, marked as used; null if there is
+        // none or it has been idle too long
+        Session get(long token, long now) {
+            if (token == 0) return null;
+            Session s;
+            long stamp = lock.tryOptimisticRead();
+            s = probe(table, token);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    s = probe(table, token);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (s == null || now - s.lastUsed > idleNanos) return null;
+            // Refreshing the idle stamp at most once a second keeps busy
+            // sessions from bouncing its cache line between request threads
+            if (now - s.lastUsed > touchNanos) s.lastUsed = now;
+            return s;
+        }
+
+        void close(long token) {
+            long stamp = lock.writeLock();
+            try {
+                removeIf(s -> s.token == token);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Ends every session on the account, e.g. once it has been deleted
+        void closeAll(User user) {
+            long stamp = lock.writeLock();
+            try {
+                removeIf(s -> s.user == user);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int active() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private static int slot(long token, int mask) {
+            return (int) ((token * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        // Bounded by the table length so a torn optimistic read can't spin
+        private static Session probe(Table t, long token) {
+            long[] tokens = t.tokens;
+            int mask = tokens.length - 1;
+            for (int i = slot(token, mask), n = 0; n <= mask; i = (i + 1) & mask, n++) {
+                long k = tokens[i];
+                if (k == token) return t.sessions[i];
+                if (k == 0) return null;
+            }
+            return null;
+        }
+
+        private void resize(int capacity) {
+            Table old = table;
+            Table grown = new Table(capacity);
+            int mask = capacity - 1;
+            for (int j = 0; j < old.tokens.length; j++) {
+                long k = old.tokens[j];
+                if (k == 0) continue;
+                int i = slot(k, mask);
+                while (grown.tokens[i] != 0) i = (i + 1) & mask;
+                grown.tokens[i] = k;
+                grown.sessions[i] = old.sessions[j];
+            }
+            table = grown;
+        }
+
+        // Caller holds the write lock. Deleting shifts later entries of the
+        // probe run back, so slot i is looked at again after a removal.
+        private void removeIf(java.util.function.Predicate<Session> drop) {
+            Session[] sessions = table.sessions;
+            for (int i = 0; i < sessions.length; ) {
+                Session s = sessions[i];
+                if (s != null && drop.test(s)) removeAt(i);
+                else i++;
+            }
+        }
+
+        private void evictLeastRecent() {
+            Session[] sessions = table.sessions;
+            int oldest = -1;
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i] != null && (oldest < 0 || sessions[i].lastUsed - sessions[oldest].lastUsed < 0)) oldest = i;
+            }
+            if (oldest >= 0) removeAt(oldest);
+        }
+
+        private void removeAt(int i) {
+            long[] tokens = table.tokens;
+            Session[] sessions = table.sessions;
+            int mask = tokens.length - 1;
+            for (int j = (i + 1) & mask; tokens[j] != 0; j = (j + 1) & mask) {
+                int home = slot(tokens[j], mask);
+                boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (reachable) continue;
+                tokens[i] = tokens[j];
+                sessions[i] = sessions[j];
+                i = j;
+            }
+            tokens[i] = 0;
+            sessions[i] = null;
+            size--;
+        }
+    }
+
+    // PINs are stored as "pbkdf2-sha256$iterations$salt$hash" and compared in
+    // constant time. Older accounts still hold the plain PIN until their next
+    // successful login rehashes it. A verified PIN is remembered for a few
+    // minutes as an HMAC under a per-process key, so repeat prompts in one
+    // session skip the KDF; changing the PIN invalidates the entry.
+    static final class PinHasher {
+        private static final String PREFIX = "pbkdf2-sha256$";
+        private static final int SALT_BYTES = 16;
+        private static final int HASH_BITS = 256;
+        static final int ITERATIONS = Math.max(1, Integer.getInteger("cardpayment.pin.iterations", 210_000));
+        private static final long CACHE_TTL_NANOS =
+                TimeUnit.SECONDS.toNanos(Long.getLong("cardpayment.pin.cacheSeconds", 300L));
+        private static final int CACHE_SIZE = Integer.getInteger("cardpayment.pin.cacheSize", 1024);
+
+        private static final SecureRandom RANDOM = new SecureRandom();
+        private static final Base64.Encoder B64 = Base64.getEncoder().withoutPadding();
+        private static final byte[] SESSION_KEY = new byte[32];
+        // Burned on unknown phones so a miss takes as long as a wrong PIN
+        private static final String DUMMY;
+
+        private static final class Verified {
+            final String stored;
+            final byte[] mac;
+            final long expires;
+
+            Verified(String stored, byte[] mac, long expires) {
+                this.stored = stored;
+                this.mac = mac;
+                this.expires = expires;
+            }
+        }
+
+        private static final Map<String, Verified> verified = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        static {
+            RANDOM.nextBytes(SESSION_KEY);
+            DUMMY = hash("0000");
+        }
+
+        private PinHasher() { }
+
+        static String hash(String pin) {
+            return hash(pin, ITERATIONS);
+        }
+
+        static String hash(String pin, int iterations) {
+            byte[] salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+            return PREFIX + iterations + "$" + B64.encodeToString(salt) + "$" + B64.encodeToString(derive(pin, salt, iterations));
+        }
+
+        // u may be null, in which case this fails after the same amount of work
+        static boolean verify(User u, String pin) {
+            long start = System.nanoTime();
+            boolean ok = check(u, pin);
+            Metrics.PIN_CHECK.record(ok ? Metrics.PinCheck.OK : u == null || u.getPin() == null
+                    ? Metrics.PinCheck.UNKNOWN_ACCOUNT : Metrics.PinCheck.INCORRECT, System.nanoTime() - start);
+            return ok;
+        }
+
+        private static boolean check(User u, String pin) {
+            if (pin == null) return false;
+            String stored = u == null ? null : u.getPin();
+            if (stored == null) {
+                matches(DUMMY, pin);
+                return false;
+            }
+            String key = u.getPhoneNumber();
+            byte[] mac = sessionMac(key, pin);
+            long now = System.nanoTime();
+            Verified hit;
+            synchronized (verified) {
+                hit = verified.get(key);
+            }
+            if (hit != null && hit.stored == stored && now - hit.expires < 0) return MessageDigest.isEqual(hit.mac, mac);
+
+            if (!matches(stored, pin)) return false;
+            synchronized (verified) {
+                verified.put(key, new Verified(stored, mac, now + CACHE_TTL_NANOS));
+            }
+            return true;
+        }
+
+        // Hashes a new PIN on the caller's thread, then applies and saves it
+        // on the account's shard thread, cached as verified since the caller
+        // just proved it
+        static CompletableFuture<Void> setPin(User u, String pin, ShardedStore store) {
+            String stored = hash(pin);
+            Verified v = new Verified(stored, sessionMac(u.getPhoneNumber(), pin), System.nanoTime() + CACHE_TTL_NANOS);
+            return store.updateAsync(u, () -> {
+                u.setPin(stored);
+                synchronized (verified) {
+                    verified.put(u.getPhoneNumber(), v);
+                }
+            });
+        }
+
+        // After a successful login: plain or outdated hashes are redone now
+        // that the PIN is known, and saved in the background
+        static void upgrade(User u, String pin, ShardedStore store) {
+            if (!needsRehash(u.getPin())) return;
+            setPin(u, pin, store).exceptionally(ex -> {
+                Logger.log("PIN rehash for " + u.getUsername() + " not saved: " + ex.getMessage());
+                return null;
+            });
+        }
+
+        // Plain PINs and hashes made with other cost settings
+        static boolean needsRehash(String stored) {
+            return stored == null || !stored.startsWith(PREFIX + ITERATIONS + "$");
+        }
+
+        static void forget(User u) {
+            synchronized (verified) {
+                verified.remove(u.getPhoneNumber());
+            }
+        }
+
+        static boolean matches(String stored, String pin) {
+            if (!stored.startsWith(PREFIX)) {
+                return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), pin.getBytes(StandardCharsets.UTF_8));
+            }
+            String[] parts = stored.substring(PREFIX.length()).split("\\$");
+            if (parts.length != 3) return false;
+            try {
+                int iterations = Integer.parseInt(parts[0]);
+                byte[] salt = Base64.getDecoder().decode(parts[1]);
+                byte[] expected = Base64.getDecoder().decode(parts[2]);
+                return MessageDigest.isEqual(expected, derive(pin, salt, iterations));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        private static byte[] derive(String pin, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("PBKDF2WithHmacSHA256 unavailable", e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        private static byte[] sessionMac(String phone, String pin) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(SESSION_KEY, "HmacSHA256"));
+                mac.update(phone.getBytes(StandardCharsets.UTF_8));
+                mac.update((byte) 0);
+                return mac.doFinal(pin.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 unavailable", e);
+            }
+        }
+    }
+
+    // Counters and latency histograms for the payment operations, logins,
+    // PIN checks and the persistence phases. Static, like Logger, so every
+    // layer records without being handed a registry; recording takes no
+    // locks and allocates nothing. Read through JMX (cardpayment:type=Metrics),
+    // the server's GET /metrics in Prometheus text format, or a dump
+    // rewritten every cardpayment.metrics.dumpSeconds to the file named by
+    // cardpayment.metrics.file.
+    static final class Metrics {
+        enum Login { OK, REFUSED, THROTTLED }
+        enum PinCheck { OK, INCORRECT, UNKNOWN_ACCOUNT }
+        enum Batch { OK, PARTIAL, REJECTED, FAILED }
+
+        private static final List<Operation<?>> operations = new ArrayList<>();
+        private static final Map<String, Histogram> phases = new LinkedHashMap<>();
+        private static final Map<String, Sampled> sampled = new LinkedHashMap<>();
+
+        static final Operation<PaymentEngine.Result.Status> DEPOSIT = operation("deposit", PaymentEngine.Result.Status.class);
+        static final Operation<PaymentEngine.Result.Status> WITHDRAW = operation("withdraw", PaymentEngine.Result.Status.class);
+        static final Operation<PaymentEngine.Result.Status> TRANSFER = operation("transfer", PaymentEngine.Result.Status.class);
+        static final Operation<PaymentEngine.Result.Status> BILL = operation("bill", PaymentEngine.Result.Status.class);
+        static final Operation<PaymentEngine.Result.Status> CONVOCATION =
+                operation("convocation", PaymentEngine.Result.Status.class);
+        static final Operation<Batch> DISBURSE = operation("disburse", Batch.class);
+        static final Operation<Login> LOGIN = operation("login", Login.class);
+        static final Operation<PinCheck> PIN_CHECK = operation("pin_check", PinCheck.class);
+
+        static final Histogram COMMIT = phase("commit");     // queued until durable
+        static final Histogram QUEUE = phase("queue");       // queued until the writer took it
+        static final Histogram WRITE = phase("write");       // a group written and flushed
+        static final Histogram FORCE = phase("force");       // ledger and journal fsyncs of a group
+        static final Histogram SNAPSHOT = phase("snapshot");
+        static final Histogram LOAD = phase("load");         // until logins could start
+        // records per group commit; a count, not a time
+        static final Histogram GROUP = new Histogram();
+
+        private static boolean started;
+
+        private Metrics() { }
+
+        private static <E extends Enum<E>> Operation<E> operation(String name, Class<E> outcomes) {
+            Operation<E> op = new Operation<>(name, outcomes.getEnumConstants());
+            operations.add(op);
+            return op;
+        }
+
+        private static Histogram phase(String name) {
+            Histogram h = new Histogram();
+            phases.put(name, h);
+            return h;
+        }
+
+        // Read when the metrics are; counters only ever go up
+        static synchronized void gauge(String name, String help, LongSupplier value) {
+            sampled.put(name, new Sampled(help, "gauge", value));
+        }
+
+        static synchronized void counter(String name, String help, LongSupplier value) {
+            sampled.put(name, new Sampled(help, "counter", value));
+        }
+
+        private static final class Sampled {
+            final String help;
+            final String type;
+            final LongSupplier value;
+
+            Sampled(String help, String type, LongSupplier value) {
+                this.help = help;
+                this.type = type;
+                this.value = value;
+            }
+        }
+
+        // Registers the MBean and starts the dump file, if one is configured;
+        // later calls do nothing
+        static synchronized void start() {
+            if (started) return;
+            started = true;
+            try {
+                java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                        .registerMBean(new Bean(), new ObjectName("cardpayment:type=Metrics"));
+            } catch (JMException e) {
+                Logger.log("Metrics are not available over JMX: " + e);
+            }
+            String file = System.getProperty("cardpayment.metrics.file");
+            if (file == null) return;
+            long period = Math.max(1, Long.getLong("cardpayment.metrics.dumpSeconds", 60L));
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cardpayment-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleWithFixedDelay(() -> dump(new File(file)), period, period, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(new File(file)), "cardpayment-metrics-shutdown"));
+        }
+
+        // Written aside and renamed, so a scraper never reads half a file
+        static void dump(File file) {
+            File temp = new File(file.getPath() + ".tmp");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                out.write(prometheus());
+            } catch (IOException e) {
+                Logger.log("Failed to write metrics to " + file + ": " + e.getMessage());
+                return;
+            }
+            try {
+                java.nio.file.Files.move(temp.toPath(), file.toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Logger.log("Failed to write metrics to " + file + ": " + e.getMessage());
+            }
+        }
+
+        // Prometheus text exposition format, version 0.0.4. Latencies are
+        // summaries in seconds with a few quantiles, plus a _max gauge.
+        static String prometheus() {
+            StringBuilder sb = new StringBuilder(16 * 1024);
+            family(sb, "cardpayment_operations_total", "counter", "Operations by outcome");
+            for (Operation<?> op : operations) {
+                for (int i = 0; i < op.outcomes.length; i++) {
+                    sb.append("cardpayment_operations_total{op=\"").append(op.name).append("\",outcome=\"")
+                            .append(op.outcomes[i]).append("\"} ").append(op.count(i)).append('\n');
+                }
+            }
+            Map<String, Histogram.Snapshot> ops = new LinkedHashMap<>();
+            for (Operation<?> op : operations) ops.put(op.name, op.latency.snapshot());
+            Map<String, Histogram.Snapshot> persistence = new LinkedHashMap<>();
+            synchronized (Metrics.class) {
+                phases.forEach((name, h) -> persistence.put(name, h.snapshot()));
+            }
+            summary(sb, "cardpayment_operation_seconds", "Time from call to result, including the durable write",
+                    "op", ops, 1e9);
+            summary(sb, "cardpayment_persistence_seconds", "Time spent in each persistence phase",
+                    "phase", persistence, 1e9);
+            summary(sb, "cardpayment_commit_group_records", "Commits written and forced together",
+                    null, Collections.singletonMap("", GROUP.snapshot()), 1);
+            synchronized (Metrics.class) {
+                sampled.forEach((name, s) -> {
+                    family(sb, name, s.type, s.help);
+                    sb.append(name).append(' ').append(s.value.getAsLong()).append('\n');
+                });
+            }
+            return sb.toString();
+        }
+
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+        private static void summary(StringBuilder sb, String name, String help, String label,
+                                    Map<String, Histogram.Snapshot> series, double unit) {
+            family(sb, name, "summary", help);
+            series.forEach((value, s) -> {
+                String labels = label == null ? "" : label + "=\"" + value + "\",";
+                for (double q : QUANTILES) {
+                    sb.append(name).append('{').append(labels).append("quantile=\"").append(q).append("\"} ")
+                            .append(s.percentile(q) / unit).append('\n');
+                }
+                String plain = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+                sb.append(name).append("_sum").append(plain).append(' ').append(s.sum / unit).append('\n');
+                sb.append(name).append("_count").append(plain).append(' ').append(s.count).append('\n');
+            });
+            family(sb, name + "_max", "gauge", "Largest value recorded");
+            series.forEach((value, s) -> {
+                String plain = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+                sb.append(name).append("_max").append(plain).append(' ').append(s.max / unit).append('\n');
+            });
+        }
+
+        private static void family(StringBuilder sb, String name, String type, String help) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        // A latency histogram and a counter per outcome
+        static final class Operation<E extends Enum<E>> {
+            final String name;
+            final Histogram latency = new Histogram();
+            private final String[] outcomes;
+            private final LongAdder[] counts;
+
+            private Operation(String name, E[] outcomes) {
+                this.name = name;
+                this.outcomes = new String[outcomes.length];
+                this.counts = new LongAdder[outcomes.length];
+                for (int i = 0; i < outcomes.length; i++) {
+                    this.outcomes[i] = outcomes[i].name().toLowerCase(Locale.ROOT);
+                    this.counts[i] = new LongAdder();
+                }
+            }
+
+            void record(E outcome, long nanos) {
+                counts[outcome.ordinal()].increment();
+                latency.record(nanos);
+            }
+
+            long count(E outcome) { return count(outcome.ordinal()); }
+
+            private long count(int outcome) { return counts[outcome].sum(); }
+        }
+
+        // Log-linear buckets as in HdrHistogram: 16 per power of two, so a
+        // value is placed to within 1/16 of itself, from 0 to Long.MAX_VALUE
+        // in 960 counters. Recording is one atomic increment plus a LongAdder;
+        // a reader copies the counts while writers carry on.
+        static final class Histogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB = 1 << SUB_BITS;
+            private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+            private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+            private final LongAdder sum = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+
+            void record(long value) {
+                if (value < 0) value = 0;
+                counts.incrementAndGet(bucket(value));
+                sum.add(value);
+                long m;
+                while (value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+            }
+
+            static int bucket(long value) {
+                if (value < SUB) return (int) value;
+                int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+                return (shift + 1) * SUB + (int) ((value >>> shift) & (SUB - 1));
+            }
+
+            // Largest value that lands in the bucket
+            static long highest(int bucket) {
+                if (bucket < SUB) return bucket;
+                int shift = bucket / SUB - 1;
+                long lowest = (long) (bucket % SUB | SUB) << shift;
+                return lowest + (1L << shift) - 1;
+            }
+
+            Snapshot snapshot() {
+                long[] copy = new long[BUCKETS];
+                long count = 0;
+                for (int i = 0; i < BUCKETS; i++) count += copy[i] = counts.get(i);
+                return new Snapshot(copy, count, sum.sum(), max.get());
+            }
+
+            static final class Snapshot {
+                final long count;
+                final long sum;
+                final long max;
+                private final long[] counts;
+
+                private Snapshot(long[] counts, long count, long sum, long max) {
+                    this.counts = counts;
+                    this.count = count;
+                    this.sum = sum;
+                    this.max = max;
+                }
+
+                // Upper end of the bucket holding the q-th value, never above the max
+                long percentile(double q) {
+                    if (count == 0) return 0;
+                    long rank = Math.max(1, (long) Math.ceil(q * count));
+                    long seen = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        seen += counts[i];
+                        if (seen >= rank) return Math.min(highest(i), max);
+                    }
+                    return max;
+                }
+
+                long mean() { return count == 0 ? 0 : sum / count; }
+            }
+        }
+
+        // One read-only attribute per reading, named like deposit_ok or
+        // transfer_p99_micros, and a prometheus() operation returning the
+        // same text as GET /metrics
+        private static final class Bean implements DynamicMBean {
+            private final Map<String, LongSupplier> attributes = new LinkedHashMap<>();
+            private final MBeanInfo info;
+
+            Bean() {
+                for (Operation<?> op : operations) {
+                    for (int i = 0; i < op.outcomes.length; i++) {
+                        int outcome = i;
+                        attributes.put(op.name + "_" + op.outcomes[i], () -> op.count(outcome));
+                    }
+                    timings(op.name, op.latency);
+                }
+                phases.forEach((name, h) -> timings("persistence_" + name, h));
+                attributes.put("commit_group_records_mean", () -> GROUP.snapshot().mean());
+                attributes.put("commit_group_records_max", () -> GROUP.snapshot().max);
+                MBeanAttributeInfo[] attrs = attributes.keySet().stream()
+                        .map(name -> new MBeanAttributeInfo(name, "java.lang.Long", name.replace('_', ' '), true, false, false))
+                        .toArray(MBeanAttributeInfo[]::new);
+                MBeanOperationInfo[] ops = {new MBeanOperationInfo("prometheus", "All metrics in Prometheus text format",
+                        new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)};
+                info = new MBeanInfo(Metrics.class.getName(), "Payment operation and persistence metrics",
+                        attrs, null, ops, null);
+            }
+
+            private void timings(String prefix, Histogram h) {
+                attributes.put(prefix + "_count", () -> h.snapshot().count);
+                attributes.put(prefix + "_mean_micros", () -> h.snapshot().mean() / 1000);
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    double q = QUANTILES[i];
+                    attributes.put(prefix + "_" + QUANTILE_NAMES[i] + "_micros", () -> h.snapshot().percentile(q) / 1000);
+                }
+                attributes.put(prefix + "_max_micros", () -> h.snapshot().max / 1000);
+            }
+
+            @Override
+            public Object getAttribute(String attribute) throws AttributeNotFoundException {
+                LongSupplier value = attributes.get(attribute);
+                if (value == null) throw new AttributeNotFoundException(attribute);
+                return value.getAsLong();
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] names) {
+                AttributeList list = new AttributeList();
+                for (String name : names) {
+                    LongSupplier value = attributes.get(name);
+                    if (value != null) list.add(new Attribute(name, value.getAsLong()));
+                }
+                return list;
+            }
+
+            @Override
+            public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList attributes) {
+                return new AttributeList();
+            }
+
+            @Override
+            public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+                if ("prometheus".equals(action)) return prometheus();
+                throw new ReflectionException(new NoSuchMethodException(action));
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() { return info; }
+        }
+    }
+
+    // Callers enqueue onto a bounded lock-free ring; one daemon thread drains
+    // it in batches into app.log, which stays open for the life of the process
+    private static class Logger {
+        enum FlushPolicy { BATCH, TIMED, SHUTDOWN }
+
+        private static final int CAPACITY = Integer.highestOneBit(Math.max(16, Integer.getInteger("cardpayment.log.capacity", 8192)));
+        private static final int BATCH = 256;
+        private static final long FLUSH_INTERVAL_MS = Long.getLong("cardpayment.log.flushMillis", 1000L);
+        private static final FlushPolicy POLICY = FlushPolicy.valueOf(
+                System.getProperty("cardpayment.log.flush", "timed").toUpperCase(Locale.ROOT));
+        // "drop" discards messages while the ring is full; "wait" blocks the caller
+        private static final boolean DROP_WHEN_FULL = "drop".equalsIgnoreCase(System.getProperty("cardpayment.log.whenFull"));
+        private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                .withZone(ZoneId.systemDefault());
+
+        // Bounded MPSC ring: a slot is free for position p when seq == p, readable when seq == p + 1
+        private static final String[] messages = new String[CAPACITY];
+        private static final long[] times = new long[CAPACITY];
+        private static final AtomicLongArray seq = new AtomicLongArray(CAPACITY);
+        private static final AtomicLong tail = new AtomicLong();
+        private static long head;
+
+        private static final AtomicLong dropped = new AtomicLong();
+        private static final AtomicLong waited = new AtomicLong();
+        private static volatile boolean running = true;
+        private static volatile boolean parked;
+        private static final Thread writer;
+
+        static {
+            for (int i = 0; i < CAPACITY; i++) seq.set(i, i);
+            writer = new Thread(Logger::drainLoop, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Logger::shutdown, "log-shutdown"));
+        }
+
+        static void log(String message) {
+            long now = System.currentTimeMillis();
+            if (!offer(message, now)) {
+                if (DROP_WHEN_FULL || !running) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                waited.incrementAndGet();
+                do {
+                    LockSupport.unpark(writer);
+                    Thread.yield();
+                } while (!offer(message, now) && running);
+            }
+            if (parked) LockSupport.unpark(writer);
+        }
+
+        static long droppedCount() { return dropped.get(); }
+        static long waitedCount() { return waited.get(); }
+
+        static void shutdown() {
+            if (!running) return;
+            running = false;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private static boolean offer(String message, long time) {
+            while (true) {
+                long pos = tail.get();
+                int i = (int) (pos & (CAPACITY - 1));
+                long diff = seq.get(i) - pos;
+                if (diff < 0) return false;
+                if (diff == 0 && tail.compareAndSet(pos, pos + 1)) {
+                    messages[i] = message;
+                    times[i] = time;
+                    seq.set(i, pos + 1);
+                    return true;
+                }
+            }
+        }
+
+        private static void drainLoop() {
+            StringBuilder batch = new StringBuilder(BATCH * 64);
+            String sep = System.lineSeparator();
+            long lastSecond = -1;
+            String stamp = "";
+            long lastForce = System.currentTimeMillis();
+            boolean dirty = false;
+            FileChannel out = null;
+            while (true) {
+                boolean stopping = !running;
+                int n = 0;
+                while (n < BATCH) {
+                    int i = (int) (head & (CAPACITY - 1));
+                    if (seq.get(i) != head + 1) break;
+                    long second = times[i] / 1000;
+                    if (second != lastSecond) {
+                        stamp = FORMAT.format(Instant.ofEpochSecond(second));
+                        lastSecond = second;
+                    }
+                    batch.append(stamp).append(" | ").append(messages[i]).append(sep);
+                    messages[i] = null;
+                    seq.lazySet(i, head + CAPACITY);
+                    head++;
+                    n++;
+                }
+                if (n > 0) {
+                    try {
+                        if (out == null) {
+                            out = FileChannel.open(Paths.get(LOG_FILE), StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                        }
+                        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+                        while (bytes.hasRemaining()) out.write(bytes);
+                        dirty = true;
+                        if (POLICY == FlushPolicy.BATCH) {
+                            out.force(false);
+                            dirty = false;
+                        }
+                    } catch (IOException ignored) {}
+                    batch.setLength(0);
+                    if (n == BATCH) continue;
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && out != null && (stopping
+                        || (POLICY == FlushPolicy.TIMED && now - lastForce >= FLUSH_INTERVAL_MS))) {
+                    try {
+                        out.force(false);
+                    } catch (IOException ignored) {}
+                    dirty = false;
+                    lastForce = now;
+                }
+                if (stopping) break;
+                if (n == 0) {
+                    parked = true;
+                    if (seq.get((int) (head & (CAPACITY - 1))) != head + 1 && running) {
+                        LockSupport.parkNanos(FLUSH_INTERVAL_MS * 1_000_000L);
+                    }
+                    parked = false;
+                }
+            }
+            if (out != null) {
+                try {
+                    if (dropped.get() > 0 || waited.get() > 0) {
+                        String summary = FORMAT.format(Instant.now()) + " | Logger: " + dropped.get()
+                                + " messages dropped, " + waited.get() + " waited for space" + sep;
+                        out.write(ByteBuffer.wrap(summary.getBytes(StandardCharsets.UTF_8)));
+                    }
+                    out.force(false);
+                    out.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+    // Main
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            try {
+                openStore();
+                PaymentServer server = new PaymentServer(users, store, engine, loginThrottle, sessions);
+                server.start(new java.net.InetSocketAddress(port));
+                System.out.println("Listening on port " + server.port() + " (" + server.threading() + ")");
+            } catch (IOException e) {
+                System.err.println("Failed to start server: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        SwingUtilities.invokeLater(CardPaymentSystem::new);
+    }
+}
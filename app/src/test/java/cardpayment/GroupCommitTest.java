@@ -0,0 +1,124 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitTest {
+    @TempDir
+    File dir;
+
+    @AfterEach
+    void clearProperties() {
+        System.clearProperty("cardpayment.groupCommit.maxRecords");
+        System.clearProperty("cardpayment.groupCommit.waitMicros");
+    }
+
+    private Persistence open(Persistence.Mode mode) {
+        return new Persistence(new File(dir, "users.dat"), new File(dir, "users.journal"), new File(dir, "ledger.dat"),
+                mode, Integer.MAX_VALUE);
+    }
+
+    private static User user(int i) {
+        return new RegularUser("user" + i, String.format("017%08d", i), "1234", null, null);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Persistence.Mode.class)
+    void everyAcknowledgedCommitSurvivesAReopen(Persistence.Mode mode) throws Exception {
+        Persistence store = open(mode);
+        UserDirectory users = store.load();
+        int threads = 8, perThread = 200;
+        for (int i = 0; i < threads; i++) users.add(user(i));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        try {
+            List<CompletableFuture<List<CompletableFuture<Void>>>> runs = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                User u = users.asList().get(t);
+                runs.add(CompletableFuture.supplyAsync(() -> {
+                    List<CompletableFuture<Void>> mine = new ArrayList<>();
+                    for (int i = 1; i <= perThread; i++) {
+                        // each thread owns its account, so its commits stay in order
+                        u.setBalance(i * 100L);
+                        mine.add(store.commitAsync(u));
+                    }
+                    return mine;
+                }, pool));
+            }
+            for (CompletableFuture<List<CompletableFuture<Void>>> run : runs) acks.addAll(run.get(1, TimeUnit.MINUTES));
+        } finally {
+            pool.shutdown();
+        }
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+        assertEquals(0, store.pendingWrites());
+        store.close();
+
+        UserDirectory back = open(mode).load();
+        assertEquals(threads, back.size());
+        for (User u : back.asList()) assertEquals(perThread * 100L, u.getBalance());
+    }
+
+    @Test
+    void aFullGroupIsWrittenAtOnce() throws Exception {
+        System.setProperty("cardpayment.groupCommit.maxRecords", "10");
+        // long enough that only a full group explains an early write
+        System.setProperty("cardpayment.groupCommit.waitMicros", "30000000");
+        Persistence store = open(Persistence.Mode.JOURNAL);
+        UserDirectory users = store.load();
+        ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        store.onPendingChange(pending::add);
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            User u = user(i);
+            users.add(u);
+            acks.add(store.commitAsync(u));
+        }
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 0), new ArrayList<>(pending));
+        store.close();
+        assertEquals(10, open(Persistence.Mode.JOURNAL).load().size());
+    }
+
+    @Test
+    void groupsAreCappedAtMaxRecords() throws Exception {
+        System.setProperty("cardpayment.groupCommit.maxRecords", "4");
+        System.setProperty("cardpayment.groupCommit.waitMicros", "30000000");
+        Persistence store = open(Persistence.Mode.JOURNAL);
+        UserDirectory users = store.load();
+        ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<>();
+        store.onPendingChange(pending::add);
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            User u = user(i);
+            users.add(u);
+            acks.add(store.commitAsync(u));
+        }
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        int previous = 0;
+        for (int n : pending) {
+            assertTrue(previous - n <= 4, pending.toString());
+            previous = n;
+        }
+        assertEquals(0, previous);
+        store.close();
+    }
+}
@@ -0,0 +1,125 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.IdempotencyCache;
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.PaymentEngine.Result;
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.ShardedStore;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyTest {
+    @TempDir
+    File dir;
+
+    private Persistence store;
+    private User alice;
+    private User bob;
+
+    private PaymentEngine engine() throws Exception {
+        store = new Persistence(new File(dir, "users.dat"), new File(dir, "users.journal"), new File(dir, "ledger.dat"),
+                Persistence.Mode.JOURNAL, 1000);
+        UserDirectory users = store.load();
+        alice = new RegularUser("alice", "01700000001", "1234", null, null);
+        bob = new RegularUser("bob", "01700000002", "1234", null, null);
+        alice.setBalance(1_000_00);
+        users.add(alice);
+        users.add(bob);
+        store.commit(alice, bob);
+        return new PaymentEngine(ShardedStore.of(store, users), new IdempotencyCache(TimeUnit.HOURS.toMillis(1), 1000));
+    }
+
+    @Test
+    void aRepeatedKeyReturnsTheFirstResult() throws Exception {
+        PaymentEngine engine = engine();
+        Result first = engine.transfer(alice, bob.getPhoneNumber(), 100_00, "k1").join();
+        Result again = engine.transfer(alice, bob.getPhoneNumber(), 100_00, "k1").join();
+        assertTrue(first.ok());
+        assertFalse(first.isReplayed());
+        assertTrue(again.isReplayed());
+        assertEquals(first.transactionId(), again.transactionId());
+        assertEquals(900_00, alice.getBalance());
+        assertEquals(100_00, bob.getBalance());
+        assertEquals(1, engine.idempotencyCache().replays());
+        store.close();
+    }
+
+    @Test
+    void aDifferentRequestUnderTheSameKeyIsRefused() throws Exception {
+        PaymentEngine engine = engine();
+        assertTrue(engine.transfer(alice, bob.getPhoneNumber(), 100_00, "k1").join().ok());
+        Result other = engine.transfer(alice, bob.getPhoneNumber(), 200_00, "k1").join();
+        assertEquals(Result.Status.KEY_REUSED, other.status());
+        assertEquals(900_00, alice.getBalance());
+        store.close();
+    }
+
+    @Test
+    void keysBelongToOneAccount() throws Exception {
+        PaymentEngine engine = engine();
+        assertTrue(engine.deposit(alice, 50_00, "k1").join().ok());
+        Result bobs = engine.deposit(bob, 50_00, "k1").join();
+        assertTrue(bobs.ok());
+        assertFalse(bobs.isReplayed());
+        store.close();
+    }
+
+    @Test
+    void refusalsAreNotRemembered() throws Exception {
+        PaymentEngine engine = engine();
+        Result refused = engine.withdraw(bob, 100_00, "k1").join();
+        assertEquals(Result.Status.INSUFFICIENT_BALANCE, refused.status());
+        assertTrue(engine.deposit(bob, 1_000_00).join().ok());
+        Result retried = engine.withdraw(bob, 100_00, "k1").join();
+        assertTrue(retried.ok());
+        assertFalse(retried.isReplayed());
+        store.close();
+    }
+
+    @Test
+    void inFlightKeysAreNotEvicted() {
+        IdempotencyCache cache = new IdempotencyCache(1000, 2);
+        CompletableFuture<Void> inFlight = new CompletableFuture<>();
+        assertNull(cache.claim("017", "slow", "f", inFlight, 0));
+        for (int i = 0; i < 10; i++) {
+            assertNull(cache.claim("017", "k" + i, "f", CompletableFuture.completedFuture(null), i));
+        }
+        // past its lifetime and over capacity, but still unsettled
+        long later = TimeUnit.SECONDS.toNanos(5);
+        assertNull(cache.claim("017", "next", "f", CompletableFuture.completedFuture(null), later));
+        IdempotencyCache.Entry held = cache.claim("017", "slow", "f", new CompletableFuture<>(), 10);
+        assertNotNull(held);
+        assertSame(inFlight, held.result());
+        assertTrue(cache.size() <= 3, "size " + cache.size());
+    }
+
+    @Test
+    void lapsedKeysAreClaimedAfresh() {
+        IdempotencyCache cache = new IdempotencyCache(1000, 100);
+        assertNull(cache.claim("017", "k", "f", CompletableFuture.completedFuture(null), 0));
+        assertNotNull(cache.claim("017", "k", "f", new CompletableFuture<>(), TimeUnit.MILLISECONDS.toNanos(999)));
+        assertNull(cache.claim("017", "k", "f", CompletableFuture.completedFuture(null),
+                TimeUnit.MILLISECONDS.toNanos(1000)));
+        // evicted in claim order once they lapse
+        for (String key : List.of("a", "b", "c")) {
+            assertNull(cache.claim("017", key, "f", CompletableFuture.completedFuture(null), TimeUnit.SECONDS.toNanos(2)));
+        }
+        assertNull(cache.claim("017", "d", "f", CompletableFuture.completedFuture(null), TimeUnit.SECONDS.toNanos(4)));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,109 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalTest {
+    @TempDir
+    File dir;
+
+    private Persistence open(int snapshotEvery) {
+        return new Persistence(new File(dir, "users.dat"), journal(), new File(dir, "ledger.dat"),
+                Persistence.Mode.JOURNAL, snapshotEvery);
+    }
+
+    private File journal() {
+        return new File(dir, "users.journal");
+    }
+
+    private static User user(int i, long balance) {
+        User u = new RegularUser("user" + i, String.format("017%08d", i), "1234", "u" + i + "@example.com", "N" + i);
+        u.setBalance(balance);
+        return u;
+    }
+
+    @Test
+    void replaysChangesOnTopOfTheSnapshot() throws IOException {
+        Persistence store = open(1000);
+        UserDirectory users = store.load();
+        User a = user(1, 500), b = user(2, 800);
+        users.add(a);
+        users.add(b);
+        store.commit(a, b);
+        store.snapshot();
+        a.setBalance(300);
+        a.setFullName("Rahim Uddin");
+        store.commit(a);
+        users.remove(b);
+        store.delete(b);
+        User c = user(3, 1000);
+        users.add(c);
+        store.commit(c);
+
+        UserDirectory back = open(1000).load();
+        assertEquals(2, back.size());
+        assertEquals(300, back.findByPhone(a.getPhoneNumber()).getBalance());
+        assertEquals("Rahim Uddin", back.findByPhone(a.getPhoneNumber()).getFullName());
+        assertNull(back.findByPhone(b.getPhoneNumber()));
+        assertEquals(1000, back.findByPhone(c.getPhoneNumber()).getBalance());
+    }
+
+    @Test
+    void dropsATornTailAndKeepsAppending() throws IOException {
+        Persistence store = open(1000);
+        UserDirectory users = store.load();
+        User a = user(1, 500);
+        users.add(a);
+        store.commit(a);
+        a.setBalance(600);
+        store.commit(a);
+        long intact = journal().length();
+        a.setBalance(700);
+        store.commit(a);
+        // a crash part way through the last append
+        try (RandomAccessFile raf = new RandomAccessFile(journal(), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        store = open(1000);
+        users = store.load();
+        assertEquals(600, users.findByPhone(a.getPhoneNumber()).getBalance());
+        assertEquals(intact, journal().length());
+        a = users.findByPhone(a.getPhoneNumber());
+        a.setBalance(650);
+        store.commit(a);
+        assertEquals(650, open(1000).load().findByPhone(a.getPhoneNumber()).getBalance());
+    }
+
+    @Test
+    void snapshotsEveryNRecordsAndEmptiesTheJournal() throws IOException {
+        Persistence store = open(3);
+        UserDirectory users = store.load();
+        User a = user(1, 500);
+        users.add(a);
+        for (int i = 1; i <= 4; i++) {
+            a.setBalance(500 + i);
+            store.commit(a);
+        }
+        assertTrue(new File(dir, "users.dat").exists());
+        assertTrue(journal().length() > 0);
+        assertEquals(504, open(3).load().findByPhone(a.getPhoneNumber()).getBalance());
+        a.setBalance(510);
+        store.commit(a);
+        store.commit(a);
+        assertEquals(0, journal().length());
+        assertEquals(510, open(3).load().findByPhone(a.getPhoneNumber()).getBalance());
+    }
+}
@@ -0,0 +1,157 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Ledger;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.Transaction;
+import cardpayment.CardPaymentSystem.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LedgerTest {
+    @TempDir
+    File dir;
+
+    private File file() {
+        return new File(dir, "ledger.dat");
+    }
+
+    private static User user(int i) {
+        return new RegularUser("user" + i, String.format("017%08d", i), "1234", null, null);
+    }
+
+    private static Transaction tx(int i) {
+        return new Transaction(i % 2 == 0 ? "Deposit" : "Refund", i * 100L + 25, "Entry " + i, 1_700_000_000_000L + i);
+    }
+
+    @Test
+    void keepsEachAccountsHistoryOldestFirstAcrossReopen() throws IOException {
+        Ledger ledger = Ledger.open(file());
+        User a = user(1), b = user(2);
+        List<Transaction> forA = new ArrayList<>(), forB = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Transaction t = tx(i);
+            if (i % 3 == 0) {
+                ledger.append(b, t);
+                forB.add(t);
+            } else {
+                ledger.append(a, t);
+                forA.add(t);
+            }
+        }
+        ledger.force();
+
+        Ledger reopened = Ledger.open(file());
+        assertHistory(forA, reopened.history(a));
+        assertHistory(forB, reopened.history(b));
+        assertEquals(0, reopened.history(user(3)).size());
+    }
+
+    @Test
+    void growsPastOneSegment() throws IOException {
+        Ledger ledger = Ledger.open(file());
+        User a = user(1);
+        int records = 140_000; // more than a 16 MB segment holds
+        for (int i = 0; i < records; i++) ledger.append(a, tx(i));
+        List<Transaction> history = ledger.history(a);
+        assertEquals(records, history.size());
+        assertEquals(tx(0).toString(), history.get(0).toString());
+        assertEquals(tx(records - 1).toString(), history.get(records - 1).toString());
+        assertTrue(file().length() > 16L * 1024 * 1024);
+    }
+
+    @Test
+    void cutsLongTextOnACharacterBoundary() throws IOException {
+        Ledger ledger = Ledger.open(file());
+        User a = user(1);
+        String description = "বাংলাদেশ ".repeat(20);
+        ledger.append(a, new Transaction("Deposit", 1, description, 0));
+        String back = ledger.history(a).get(0).toString();
+        String kept = back.substring(back.indexOf("|  ") + 3);
+        assertTrue(kept.length() > 0 && description.startsWith(kept), kept);
+        assertFalse(kept.contains("�"));
+    }
+
+    @Test
+    void rejectsBadOffsetsAndForeignFiles() throws IOException {
+        Ledger ledger = Ledger.open(file());
+        User a = user(1);
+        ledger.append(a, tx(1));
+        assertThrows(IOException.class, () -> ledger.read(0));
+        assertThrows(IOException.class, () -> ledger.read(a.getLedgerHead() + 1));
+        assertThrows(IOException.class, () -> ledger.read(a.getLedgerHead() + Ledger.RECORD_SIZE));
+
+        File other = new File(dir, "other.dat");
+        try (FileOutputStream out = new FileOutputStream(other)) {
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        assertThrows(IOException.class, () -> Ledger.open(other));
+    }
+
+    @Test
+    void upgradesDoubleAmountsInACopy() throws IOException {
+        User a = user(1);
+        long head = writeVersion1(file(), 12.34, 0.1, 99_999.99);
+        a.setLedger(head, 3);
+        // left behind by a crash during an earlier attempt
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "ledger.dat.upgrade"))) {
+            out.write(new byte[] {9, 9, 9});
+        }
+
+        Ledger ledger = Ledger.open(file());
+        List<Transaction> history = ledger.history(a);
+        assertEquals(3, history.size());
+        assertTrue(history.get(0).toString().contains("BDT 12.34"), history.get(0).toString());
+        assertTrue(history.get(1).toString().contains("BDT 0.10"), history.get(1).toString());
+        assertTrue(history.get(2).toString().contains("BDT 99,999.99"), history.get(2).toString());
+        assertFalse(new File(dir, "ledger.dat.upgrade").exists());
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "r")) {
+            raf.seek(4);
+            assertTrue(raf.readInt() > 1);
+        }
+        // a second open finds nothing left to convert
+        assertEquals(history.get(2).toString(), Ledger.open(file()).history(a).get(2).toString());
+    }
+
+    // The first ledger layout, which stored amounts as double BDT. Returns
+    // the offset of the newest record.
+    private static long writeVersion1(File f, double... amounts) throws IOException {
+        int size = Ledger.RECORD_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.writeInt(0x4350534C);
+            raf.writeInt(1);
+            raf.writeInt(size);
+            raf.writeInt(0);
+            raf.writeLong((long) size * (amounts.length + 1));
+            for (int i = 0; i < amounts.length; i++) {
+                long offset = (long) size * (i + 1);
+                raf.seek(offset);
+                raf.writeLong(i == 0 ? 0 : offset - size);
+                raf.writeLong(1_700_000_000_000L + i);
+                raf.writeDouble(amounts[i]);
+                raf.writeByte(1); // Deposit
+                raf.writeByte(0);
+                raf.writeShort(0);
+            }
+            raf.setLength((long) size * (amounts.length + 1));
+            return (long) size * amounts.length;
+        }
+    }
+
+    private static void assertHistory(List<Transaction> expected,
+                                      List<Transaction> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertEquals(expected.get(i).toString(), actual.get(i).toString());
+    }
+}
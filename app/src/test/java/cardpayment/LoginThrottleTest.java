@@ -0,0 +1,77 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.LoginThrottle;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoginThrottleTest {
+    private static final String PHONE = "01711111111";
+
+    // 3 failures a second per phone, 100 ms backoff doubling up to 1 s
+    private static LoginThrottle throttle(int globalPerSecond) {
+        return new LoginThrottle(3, 1000, globalPerSecond, 100, 1000, 1000);
+    }
+
+    @Test
+    void blocksOnceTheWindowFillsAndDoublesTheBackoff() {
+        LoginThrottle t = throttle(1000);
+        long now = 10_000;
+        assertEquals(0, t.failed(PHONE, now));
+        assertEquals(0, t.failed(PHONE, now));
+        assertEquals(100, t.failed(PHONE, now));
+        assertEquals(100, t.check(PHONE, now));
+        assertEquals(0, t.check(PHONE, now + 100));
+        assertEquals(200, t.failed(PHONE, now + 100));
+        assertEquals(400, t.failed(PHONE, now + 300));
+    }
+
+    @Test
+    void backoffIsCapped() {
+        LoginThrottle t = throttle(1000);
+        long now = 10_000;
+        long blocked = 0;
+        for (int i = 0; i < 40; i++) blocked = t.failed(PHONE, now);
+        assertEquals(1000, blocked);
+    }
+
+    @Test
+    void failuresOutsideTheWindowStopCounting() {
+        LoginThrottle t = throttle(1000);
+        assertEquals(0, t.failed(PHONE, 10_000));
+        assertEquals(0, t.failed(PHONE, 10_001));
+        // two windows later nothing of the old ones is left
+        assertEquals(0, t.failed(PHONE, 12_500));
+        assertEquals(0, t.check(PHONE, 12_500));
+    }
+
+    @Test
+    void successClearsThePhone() {
+        LoginThrottle t = throttle(1000);
+        t.failed(PHONE, 10_000);
+        t.failed(PHONE, 10_000);
+        t.succeeded(PHONE);
+        assertEquals(0, t.failed(PHONE, 10_000));
+        assertEquals(0, t.failed(PHONE, 10_000));
+        assertEquals(1, t.tracked());
+    }
+
+    @Test
+    void failuresAcrossPhonesShareTheGlobalCap() {
+        LoginThrottle t = throttle(5);
+        long now = 10_250;
+        for (int i = 0; i < 5; i++) t.failed("0171000000" + i, now);
+        long wait = t.check("01799999999", now);
+        assertTrue(wait > 0 && wait <= 1000, "wait " + wait);
+        assertEquals(0, t.check("01799999999", now + 2000));
+    }
+
+    @Test
+    void otherPhonesAreNotBlocked() {
+        LoginThrottle t = throttle(1000);
+        for (int i = 0; i < 3; i++) t.failed(PHONE, 10_000);
+        assertTrue(t.check(PHONE, 10_000) > 0);
+        assertEquals(0, t.check("01722222222", 10_000));
+    }
+}
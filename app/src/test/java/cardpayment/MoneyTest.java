@@ -0,0 +1,65 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Money;
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MoneyTest {
+    @Test
+    void parsesWholeAndFractionalAmounts() {
+        assertEquals(100_00, Money.parse("100"));
+        assertEquals(100_50, Money.parse("100.5"));
+        assertEquals(100_05, Money.parse("100.05"));
+        assertEquals(1_00, Money.parse("  +1.00 "));
+        assertEquals(-2_50, Money.parse("-2.5"));
+        assertEquals(50, Money.parse(".50"));
+        assertEquals(7_00, Money.parse("7."));
+        assertEquals(3_10, Money.parse("3.1000"));
+    }
+
+    @Test
+    void rejectsMalformedAmounts() {
+        for (String bad : new String[] {"", " ", "-", ".", "1.001", "1.2.3", "12a", "1,000", "1e3",
+                "99999999999999999999"}) {
+            assertThrows(NumberFormatException.class, () -> Money.parse(bad), bad);
+        }
+    }
+
+    @Test
+    void formatsWithThousandsSeparators() {
+        assertEquals("0.00", Money.format(0));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("999.99", Money.format(999_99));
+        assertEquals("1,000.00", Money.format(1_000_00));
+        assertEquals("1,234,567.89", Money.format(1_234_567_89));
+        assertEquals("1,000,001.00", Money.format(1_000_001_00));
+        assertEquals("-12,345.60", Money.format(-12_345_60));
+    }
+
+    @Test
+    void formatMatchesStringFormat() {
+        long[] samples = {1, 10, 99, 100, 1_005, 100_000_00, 123_456_789_01L, Money.MAX_AMOUNT};
+        for (long paisa : samples) {
+            assertEquals(String.format(Locale.ROOT, "%,.2f", paisa / 100.0), Money.format(paisa));
+        }
+    }
+
+    @Test
+    void parseReadsWhatFormatWrites() {
+        for (long paisa : new long[] {0, 1, 99, 100, 12_345_67, Money.MAX_AMOUNT}) {
+            assertEquals(paisa, Money.parse(Money.format(paisa).replace(",", "")));
+        }
+    }
+
+    @Test
+    void convertsOldDoubleAmountsToTheNearestPaisa() {
+        assertEquals(12_34, Money.fromDouble(12.34));
+        assertEquals(10, Money.fromDouble(0.1));
+        assertEquals(1_000_000_00, Money.fromDouble(1_000_000.0));
+        assertEquals(30, Money.fromDouble(0.1 + 0.2));
+    }
+}
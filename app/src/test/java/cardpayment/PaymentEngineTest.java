@@ -0,0 +1,94 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaymentEngineTest {
+    private static final int ACCOUNTS = 200;
+    private static final int THREADS = 8;
+    private static final int TRANSFERS = 2500;
+
+    @TempDir
+    File dir;
+
+    private Persistence open() {
+        return new Persistence(new File(dir, "users.dat"), new File(dir, "users.journal"),
+                new File(dir, "ledger.dat"), Persistence.Mode.JOURNAL, 1000);
+    }
+
+    private static long total(UserDirectory users) {
+        long total = 0;
+        for (User u : users.asList()) total += u.getBalance();
+        return total;
+    }
+
+    // One shard over a store loaded here, as the Swing app runs by default;
+    // every transfer is made on the shard's thread
+    @Test
+    void concurrentTransfersConserveMoney() throws Exception {
+        Persistence store = open();
+        UserDirectory users = store.load();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            User u = new RegularUser("user" + i, String.format("017%08d", i), "1234", null, null);
+            u.setBalance(1_000_00);
+            users.add(u);
+        }
+        store.snapshot();
+        long expected = total(users);
+        PaymentEngine engine = new PaymentEngine(users, store);
+        User[] accounts = users.asList().toArray(new User[0]);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> runs = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                runs.add(pool.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int done = 0;
+                    for (int i = 0; i < TRANSFERS; i++) {
+                        User from = accounts[random.nextInt(ACCOUNTS)];
+                        User to = accounts[random.nextInt(ACCOUNTS)];
+                        if (from == to) continue;
+                        PaymentEngine.Result r =
+                                engine.transfer(from, to.getPhoneNumber(), random.nextLong(1, 500_00)).join();
+                        assertTrue(r.ok() || r.status() == PaymentEngine.Result.Status.INSUFFICIENT_BALANCE,
+                                r.message());
+                        if (r.ok()) done++;
+                    }
+                    return done;
+                }));
+            }
+            int done = 0;
+            for (Future<Integer> run : runs) done += run.get(2, TimeUnit.MINUTES);
+            assertTrue(done > 0);
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(expected, total(users));
+        for (User u : accounts) assertTrue(u.getBalance() >= 100_00, u.getPhoneNumber());
+        UserDirectory reloaded = open().load();
+        assertEquals(expected, total(reloaded));
+        for (User u : accounts) {
+            assertEquals(u.getBalance(), reloaded.findByPhone(u.getPhoneNumber()).getBalance());
+            assertEquals(u.getTransactionCount(), reloaded.findByPhone(u.getPhoneNumber()).getTransactionCount());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Sequencer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SequencerTest {
+    private static final class Event {
+        int publisher;
+        long value;
+    }
+
+    private static void publish(Sequencer<Event> ring, int publisher, long value) {
+        long seq = ring.claim();
+        Event e = ring.slot(seq);
+        e.publisher = publisher;
+        e.value = value;
+        ring.publish(seq);
+    }
+
+    // A ring much smaller than the traffic, so publishers wrap it many
+    // times and wait on the consumer
+    @Test
+    void eachPublishersEventsArriveOnceAndInOrder() throws Exception {
+        int publishers = 4, perPublisher = 20_000;
+        long[] last = new long[publishers];
+        long[] count = new long[publishers];
+        boolean[] outOfOrder = new boolean[1];
+        Sequencer<Event> ring = new Sequencer<>("test-ring", 8, Event::new, e -> {
+            if (e.value != last[e.publisher] + 1) outOfOrder[0] = true;
+            last[e.publisher] = e.value;
+            count[e.publisher]++;
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(publishers);
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int p = 0; p < publishers; p++) {
+                int publisher = p;
+                runs.add(pool.submit(() -> {
+                    for (long v = 1; v <= perPublisher; v++) publish(ring, publisher, v);
+                }));
+            }
+            for (Future<?> run : runs) run.get(1, TimeUnit.MINUTES);
+        } finally {
+            pool.shutdown();
+        }
+        ring.close();
+        assertTrue(ring.awaitTermination(1, TimeUnit.MINUTES));
+        assertFalse(outOfOrder[0]);
+        for (int p = 0; p < publishers; p++) {
+            assertEquals(perPublisher, count[p]);
+            assertEquals(perPublisher, last[p]);
+        }
+    }
+
+    @Test
+    void theConsumerOffersInsteadOfWaitingOnItsOwnRing() throws Exception {
+        List<Long> handled = new ArrayList<>();
+        boolean[] elsewhere = new boolean[1];
+        CountDownLatch all = new CountDownLatch(19);
+        AtomicReference<Sequencer<Event>> self = new AtomicReference<>();
+        self.set(new Sequencer<>("test-ring", 2, Event::new, e -> {
+            handled.add(e.value);
+            all.countDown();
+            if (!Sequencer.onConsumer()) elsewhere[0] = true;
+            // a full ring would never drain if the consumer claimed here
+            if (e.value > 0 && e.value < 10) {
+                Event more = new Event();
+                more.value = -e.value;
+                self.get().offer(more);
+            }
+        }));
+        for (long v = 1; v <= 10; v++) publish(self.get(), 0, v);
+        // a closed ring refuses offers, so let them all through first
+        assertTrue(all.await(1, TimeUnit.MINUTES));
+        self.get().close();
+        assertTrue(self.get().awaitTermination(1, TimeUnit.MINUTES));
+        assertFalse(elsewhere[0]);
+        assertFalse(Sequencer.onConsumer());
+        assertEquals(19, handled.size());
+        long published = handled.stream().filter(v -> v > 0).count();
+        assertEquals(10, published);
+    }
+
+    @Test
+    void aClosedRingDrainsThenRefuses() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        long[] sum = new long[1];
+        Sequencer<Event> ring = new Sequencer<>("test-ring", 16, Event::new, e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            sum[0] += e.value;
+        });
+        for (long v = 1; v <= 10; v++) publish(ring, 0, v);
+        ring.close();
+        release.countDown();
+        assertTrue(ring.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(55, sum[0]);
+        assertThrows(RejectedExecutionException.class, ring::claim);
+        assertThrows(RejectedExecutionException.class, () -> ring.offer(new Event()));
+    }
+
+    @Test
+    void aFailingEventDoesNotStopTheConsumer() throws Exception {
+        long[] sum = new long[1];
+        Sequencer<Event> ring = new Sequencer<>("test-ring", 4, Event::new, e -> {
+            if (e.value == 3) throw new IllegalStateException("bad event");
+            sum[0] += e.value;
+        });
+        for (long v = 1; v <= 5; v++) publish(ring, 0, v);
+        ring.close();
+        assertTrue(ring.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(12, sum[0]);
+    }
+}
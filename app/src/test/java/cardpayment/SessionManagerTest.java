@@ -0,0 +1,84 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.SessionManager;
+import cardpayment.CardPaymentSystem.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class SessionManagerTest {
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    private static User user(int i) {
+        return new RegularUser("user" + i, String.format("017%08d", i), "1234", null, null);
+    }
+
+    @Test
+    void findsOpenSessionsByToken() {
+        SessionManager m = new SessionManager(TimeUnit.MINUTES.toMillis(15), 100);
+        User u = user(1);
+        SessionManager.Session s = m.open(u, 0);
+        assertSame(u, m.get(s.token(), 1).user());
+        assertNull(m.get(s.token() + 1, 1));
+        assertNull(m.get(0, 1));
+    }
+
+    @Test
+    void closeRemovesOnlyThatSession() {
+        SessionManager m = new SessionManager(TimeUnit.MINUTES.toMillis(15), 10_000);
+        List<SessionManager.Session> open = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) open.add(m.open(user(i), 0));
+        // every other one, so removals land between entries of the same probe runs
+        for (int i = 0; i < open.size(); i += 2) m.close(open.get(i).token());
+        assertEquals(1000, m.active());
+        for (int i = 0; i < open.size(); i++) {
+            SessionManager.Session s = m.get(open.get(i).token(), 1);
+            if (i % 2 == 0) assertNull(s);
+            else assertSame(open.get(i), s);
+        }
+    }
+
+    @Test
+    void closeAllEndsEverySessionOfTheAccount() {
+        SessionManager m = new SessionManager(TimeUnit.MINUTES.toMillis(15), 100);
+        User a = user(1), b = user(2);
+        long a1 = m.open(a, 0).token(), a2 = m.open(a, 0).token(), b1 = m.open(b, 0).token();
+        m.closeAll(a);
+        assertNull(m.get(a1, 1));
+        assertNull(m.get(a2, 1));
+        assertNotNull(m.get(b1, 1));
+        assertEquals(1, m.active());
+    }
+
+    @Test
+    void idleSessionsLapseAndUseKeepsThemAlive() {
+        SessionManager m = new SessionManager(TimeUnit.MINUTES.toMillis(15), 100);
+        long idle = m.open(user(1), 0).token();
+        long busy = m.open(user(2), 0).token();
+        for (long now = MINUTE; now <= 20 * MINUTE; now += MINUTE) assertNotNull(m.get(busy, now));
+        assertNull(m.get(idle, 20 * MINUTE));
+    }
+
+    @Test
+    void fullTableDropsTheLeastRecentlyUsed() {
+        SessionManager m = new SessionManager(TimeUnit.MINUTES.toMillis(15), 3);
+        long first = m.open(user(1), 0).token();
+        long second = m.open(user(2), MINUTE).token();
+        long third = m.open(user(3), 2 * MINUTE).token();
+        m.get(first, 3 * MINUTE);
+        long fourth = m.open(user(4), 4 * MINUTE).token();
+        assertEquals(3, m.active());
+        assertNull(m.get(second, 4 * MINUTE));
+        assertNotNull(m.get(first, 4 * MINUTE));
+        assertNotNull(m.get(third, 4 * MINUTE));
+        assertNotNull(m.get(fourth, 4 * MINUTE));
+    }
+}
@@ -0,0 +1,210 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.ShardedStore;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedStoreTest {
+    private static final int SHARDS = 4;
+    private static final long OPENING_BALANCE = 1_000_00;
+
+    @TempDir
+    Path dir;
+
+    private ShardedStore open(int ringSize) {
+        return ShardedStore.open(dir.toFile(), SHARDS, Persistence.Mode.JOURNAL, Integer.MAX_VALUE, ringSize);
+    }
+
+    private static String phone(int i) {
+        return String.format("017%08d", i);
+    }
+
+    private static UserDirectory populate(ShardedStore store, int count) throws IOException {
+        UserDirectory users = store.load();
+        for (int i = 0; i < count; i++) {
+            User u = new RegularUser("user" + i, phone(i), "1234", null, null);
+            u.setBalance(OPENING_BALANCE);
+            users.add(u);
+        }
+        store.snapshot();
+        return users;
+    }
+
+    private static long total(UserDirectory users) {
+        long total = 0;
+        for (User u : users.asList()) total += u.getBalance();
+        return total;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 16})
+    void concurrentTransfersConserveMoney(int ringSize) throws Exception {
+        ShardedStore store = open(ringSize);
+        UserDirectory users = populate(store, 200);
+        long expected = total(users);
+        PaymentEngine engine = new PaymentEngine(store);
+        User[] accounts = users.asList().toArray(new User[0]);
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int t = 0; t < 6; t++) {
+                runs.add(pool.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 300; i++) {
+                        User from = accounts[random.nextInt(accounts.length)];
+                        User to = accounts[random.nextInt(accounts.length)];
+                        if (from == to) continue;
+                        PaymentEngine.Result r = engine.transfer(from, to.getPhoneNumber(), random.nextLong(1, 500_00)).join();
+                        assertTrue(r.ok() || r.status() == PaymentEngine.Result.Status.INSUFFICIENT_BALANCE, r.message());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> run : runs) run.get(2, TimeUnit.MINUTES);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(expected, total(users));
+        for (User u : accounts) assertTrue(u.getBalance() >= 100_00, u.getPhoneNumber());
+        store.close();
+
+        ShardedStore reopened = open(ringSize);
+        UserDirectory back = reopened.load();
+        for (User u : accounts) assertEquals(u.getBalance(), back.findByPhone(u.getPhoneNumber()).getBalance());
+        reopened.close();
+    }
+
+    // The four ways a crash can leave a cross-shard transfer: DECIDE written
+    // (0), not written (1), PREPARE only in a journal since rotated away by
+    // a snapshot (2), and PREPARE carried into a new journal that was then
+    // rotated too (3); and a DECIDE that failed to be written, which the
+    // payer's shard called off with an END without credits (4). A restart
+    // redoes the decided ones and calls off the rest, and a second restart
+    // finds nothing left in doubt.
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 3, 4})
+    void inDoubtTransfersSettleOnRestart(int crash) throws Exception {
+        ShardedStore store = open(0);
+        UserDirectory users = populate(store, 50);
+        User payer = users.findByPhone(phone(0));
+        User payee = null;
+        for (int i = 1; payee == null; i++) {
+            User u = users.findByPhone(phone(i));
+            if (store.shard(u) != store.shard(payer)) payee = u;
+        }
+        ShardedStore.Shard home = store.shard(payer), away = store.shard(payee);
+        long txid = 0x5EED + crash;
+        away.store.prepareAsync(new Persistence.Prepare(txid, home.index, List.of(new Persistence.Credit(
+                payee.getPhoneNumber(), 5_00, "From " + payer.getPhoneNumber(), payer.getPhoneNumber(),
+                System.currentTimeMillis())))).join();
+        if (crash >= 2) away.store.snapshot();
+        if (crash == 3) {
+            away.store.commitAsync(payee).join();
+            away.store.snapshot();
+        }
+        if (crash == 4) away.store.endAsync(txid).join();
+        boolean decided = crash != 1 && crash != 4;
+        if (decided) {
+            payer.setBalance(payer.getBalance() - 5_00);
+            home.store.decideAsync(txid, payer).join();
+        }
+        // the crash: the files close with the transfer unfinished
+        store.close();
+
+        long payerAfter = decided ? OPENING_BALANCE - 5_00 : OPENING_BALANCE;
+        long payeeAfter = decided ? OPENING_BALANCE + 5_00 : OPENING_BALANCE;
+        for (int restart = 0; restart < 2; restart++) {
+            store = open(0);
+            users = store.load();
+            assertEquals(payerAfter, users.findByPhone(payer.getPhoneNumber()).getBalance());
+            assertEquals(payeeAfter, users.findByPhone(payee.getPhoneNumber()).getBalance());
+            store.close();
+        }
+    }
+
+    // The payer's record is too large to journal, so the DECIDE fails, and
+    // so does writing the undone accounts after it: the transfer stays in
+    // doubt until the restart calls it off
+    @Test
+    void aFailedDecideIsUndone() throws Exception {
+        ShardedStore store = open(0);
+        UserDirectory users = populate(store, 50);
+        PaymentEngine engine = new PaymentEngine(store);
+        User payer = users.findByPhone(phone(0));
+        User payee = null;
+        for (int i = 1; payee == null; i++) {
+            User u = users.findByPhone(phone(i));
+            if (store.shard(u) != store.shard(payer)) payee = u;
+        }
+        int rows = payer.getTransactionCount();
+        payer.setFullName("x".repeat(70_000));
+        PaymentEngine.Result r = engine.transfer(payer, payee.getPhoneNumber(), 5_00).join();
+        assertEquals(PaymentEngine.Result.Status.SAVE_FAILED, r.status());
+        assertEquals(OPENING_BALANCE, payer.getBalance());
+        assertEquals(rows, payer.getTransactionCount());
+        assertEquals(OPENING_BALANCE, payee.getBalance());
+        assertEquals(1, store.shard(payee).store.inDoubt().size());
+        payer.setFullName(null);
+        store.close();
+
+        for (int restart = 0; restart < 2; restart++) {
+            store = open(0);
+            users = store.load();
+            assertEquals(OPENING_BALANCE, users.findByPhone(payer.getPhoneNumber()).getBalance());
+            assertEquals(OPENING_BALANCE, users.findByPhone(payee.getPhoneNumber()).getBalance());
+            assertTrue(store.shard(payee).store.inDoubt().isEmpty());
+            store.close();
+        }
+    }
+
+    @Test
+    void deletedAccountsStayDeleted() throws Exception {
+        ShardedStore store = open(0);
+        UserDirectory users = populate(store, 100);
+        PaymentEngine engine = new PaymentEngine(store);
+        User gone = users.findByPhone(phone(7));
+        for (int i = 0; i < 100; i += 3) {
+            if (i != 7) engine.transfer(users.findByPhone(phone(i)), gone.getPhoneNumber(), 1_00);
+        }
+        store.removeAsync(gone).get(1, TimeUnit.MINUTES);
+        assertEquals(PaymentEngine.Result.Status.ACCOUNT_CLOSED, engine.deposit(gone, 1_00).join().status());
+        assertThrows(Exception.class, () -> store.updateAsync(gone, () -> gone.setEmail("x")).join());
+        store.close();
+
+        ShardedStore reopened = open(0);
+        assertNull(reopened.load().findByPhone(gone.getPhoneNumber()));
+        reopened.close();
+    }
+
+    @Test
+    void shardCountIsFixedOnceCreated() throws Exception {
+        ShardedStore store = open(0);
+        populate(store, 10);
+        store.close();
+        IOException e = assertThrows(IOException.class,
+                () -> ShardedStore.open(dir.toFile(), 2, Persistence.Mode.JOURNAL, Integer.MAX_VALUE).load());
+        assertTrue(e.getMessage().contains("has 4 shards"), e.getMessage());
+    }
+}
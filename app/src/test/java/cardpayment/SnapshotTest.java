@@ -0,0 +1,145 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotTest {
+    @TempDir
+    File dir;
+
+    private Persistence open() {
+        return new Persistence(new File(dir, "users.dat"), new File(dir, "users.journal"), new File(dir, "ledger.dat"),
+                Persistence.Mode.JOURNAL, Integer.MAX_VALUE);
+    }
+
+    private static Map<String, Long> balances(UserDirectory users) {
+        Map<String, Long> m = new HashMap<>();
+        for (User u : users.asList()) m.put(u.getPhoneNumber(), u.getBalance());
+        return m;
+    }
+
+    // Two snapshot generations with journal records on top of each
+    private Map<String, Long> twoGenerations() throws IOException {
+        Persistence store = open();
+        UserDirectory users = store.load();
+        for (int i = 0; i < 5; i++) {
+            User u = new RegularUser("user" + i, String.format("017%08d", i), "1234", null, null);
+            users.add(u);
+            store.commit(u);
+        }
+        store.snapshot();
+        for (User u : users.asList()) {
+            u.setBalance(u.getBalance() + 1_000);
+            store.commit(u);
+        }
+        store.snapshot();
+        for (User u : users.asList()) {
+            u.setBalance(u.getBalance() + 250);
+            store.commit(u);
+        }
+        Map<String, Long> expected = balances(users);
+        store.close();
+        return expected;
+    }
+
+    @Test
+    void snapshotsAreRenamedIntoPlace() throws Exception {
+        Map<String, Long> expected = twoGenerations();
+        assertTrue(new File(dir, "users.dat").exists());
+        assertTrue(new File(dir, "users.dat.prev").exists());
+        assertFalse(new File(dir, "users.dat.tmp").exists());
+
+        Persistence store = open();
+        assertEquals(expected, balances(store.load()));
+        assertNull(store.recovery().fallbackReason);
+        assertEquals("users.dat", store.recovery().source);
+        store.close();
+    }
+
+    @Test
+    void aFlippedByteFallsBackToThePreviousGeneration() throws Exception {
+        Map<String, Long> expected = twoGenerations();
+        File data = new File(dir, "users.dat");
+        try (RandomAccessFile f = new RandomAccessFile(data, "rw")) {
+            long at = f.length() / 2;
+            f.seek(at);
+            int b = f.read();
+            f.seek(at);
+            f.write(b ^ 0x40);
+        }
+        assertFallsBack(expected);
+    }
+
+    @Test
+    void aTruncatedSnapshotFallsBackToThePreviousGeneration() throws Exception {
+        Map<String, Long> expected = twoGenerations();
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, "users.dat"), "rw")) {
+            f.setLength(f.length() / 2);
+        }
+        assertFallsBack(expected);
+    }
+
+    @Test
+    void aMissingSnapshotFallsBackToThePreviousGeneration() throws Exception {
+        Map<String, Long> expected = twoGenerations();
+        // a crash between the two renames
+        assertTrue(new File(dir, "users.dat").delete());
+        assertFallsBack(expected);
+    }
+
+    @Test
+    void anUnfinishedSnapshotIsIgnored() throws Exception {
+        Map<String, Long> expected = twoGenerations();
+        File tmp = new File(dir, "users.dat.tmp");
+        try (RandomAccessFile f = new RandomAccessFile(tmp, "rw")) {
+            f.write(new byte[100]);
+        }
+        Persistence store = open();
+        assertEquals(expected, balances(store.load()));
+        assertNull(store.recovery().fallbackReason);
+        assertFalse(tmp.exists());
+        store.close();
+    }
+
+    @Test
+    void bothGenerationsDamagedIsRefused() throws Exception {
+        twoGenerations();
+        for (String name : new String[] {"users.dat", "users.dat.prev"}) {
+            try (RandomAccessFile f = new RandomAccessFile(new File(dir, name), "rw")) {
+                f.setLength(f.length() / 2);
+            }
+        }
+        assertThrows(IOException.class, () -> open().load());
+    }
+
+    private void assertFallsBack(Map<String, Long> expected) throws IOException {
+        Persistence store = open();
+        assertEquals(expected, balances(store.load()));
+        assertNotNull(store.recovery().fallbackReason);
+        assertEquals("users.dat.prev", store.recovery().source);
+        store.close();
+
+        // the fallback wrote fresh generations, so the next start is clean
+        store = open();
+        assertEquals(expected, balances(store.load()));
+        assertNull(store.recovery().fallbackReason);
+        store.close();
+    }
+}
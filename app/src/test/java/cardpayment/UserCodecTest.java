@@ -0,0 +1,160 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Money;
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserCodec;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserCodecTest {
+    @TempDir
+    File dir;
+
+    @Test
+    void roundTripsEveryField() throws IOException {
+        User u = new RegularUser("rahim", "01711111111", "1234", "rahim@example.com", "NID-1");
+        u.setFullName("Rahim Uddin");
+        u.setDob("1990-01-01");
+        u.setGender("M");
+        u.setMotherName("Amena");
+        u.setFatherName("Karim");
+        u.setBirthCertificate("BC-7");
+        u.setPermanentAddress("Dhaka");
+        u.setPresentAddress("ঢাকা, বাংলাদেশ");
+        u.setBalance(12_345_67);
+
+        User back = roundTrip(List.of(u)).get(0);
+        assertSame(u, back);
+    }
+
+    @Test
+    void keepsNullFields() throws IOException {
+        User u = new RegularUser("karim", "01722222222", "1234", null, null);
+        User back = roundTrip(List.of(u)).get(0);
+        assertSame(u, back);
+        assertNull(back.getEmail());
+        assertNull(back.getFullName());
+    }
+
+    @Test
+    void roundTripsManyUsers() throws IOException {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) users.add(user(i));
+        List<User> back = new ArrayList<>(roundTrip(users));
+        assertEquals(users.size(), back.size());
+        // accounts come back grouped by partition
+        back.sort(Comparator.comparing(User::getPhoneNumber));
+        for (int i = 0; i < users.size(); i++) assertSame(users.get(i), back.get(i));
+    }
+
+    @Test
+    void migratesASerializedFileOnLoad() throws IOException {
+        File data = new File(dir, "users.dat");
+        List<Legacy.User> users = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Legacy.User u = new Legacy.RegularUser();
+            u.username = "user" + i;
+            u.phoneNumber = String.format("017%08d", i);
+            u.pin = "1234";
+            u.email = "u" + i + "@example.com";
+            u.balance = 1_000.1 * i;
+            for (int t = 0; t < i; t++) u.transactions.add(new Legacy.Transaction("Deposit", 0.1 * t, "Cash deposit", t));
+            users.add(u);
+        }
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(data))) {
+            out.writeObject(users);
+        }
+        assertTrue(UserCodec.isLegacy(data));
+
+        Persistence store = new Persistence(data, new File(dir, "users.journal"),
+                new File(dir, "ledger.dat"), Persistence.Mode.JOURNAL, 1000);
+        UserDirectory loaded = store.load();
+        assertEquals(users.size(), loaded.size());
+        for (Legacy.User u : users) {
+            User back = loaded.findByPhone(u.phoneNumber);
+            assertEquals(u.username, back.getUsername());
+            assertEquals(u.email, back.getEmail());
+            assertEquals(Money.fromDouble(u.balance), back.getBalance());
+            assertEquals(u.transactions.size(), store.ledger().history(back).size());
+        }
+        assertFalse(UserCodec.isLegacy(data));
+        assertTrue(new File(dir, "users.dat.legacy").exists());
+    }
+
+    private static User user(int i) {
+        User u = new RegularUser("user" + i, String.format("017%08d", i), "1234", "u" + i + "@example.com", "N" + i);
+        u.setBalance(i * 100L);
+        return u;
+    }
+
+    private List<User> roundTrip(List<User> users) throws IOException {
+        File f = new File(dir, "codec.dat");
+        UserCodec.write(users, f);
+        return UserCodec.read(f);
+    }
+
+    private static void assertSame(User expected, User actual) {
+        assertEquals(expected.getUsername(), actual.getUsername());
+        assertEquals(expected.getPhoneNumber(), actual.getPhoneNumber());
+        assertEquals(expected.getPin(), actual.getPin());
+        assertEquals(expected.getFullName(), actual.getFullName());
+        assertEquals(expected.getDob(), actual.getDob());
+        assertEquals(expected.getGender(), actual.getGender());
+        assertEquals(expected.getEmail(), actual.getEmail());
+        assertEquals(expected.getMotherName(), actual.getMotherName());
+        assertEquals(expected.getFatherName(), actual.getFatherName());
+        assertEquals(expected.getNationalId(), actual.getNationalId());
+        assertEquals(expected.getBirthCertificate(), actual.getBirthCertificate());
+        assertEquals(expected.getPermanentAddress(), actual.getPermanentAddress());
+        assertEquals(expected.getPresentAddress(), actual.getPresentAddress());
+        assertEquals(expected.getBalance(), actual.getBalance());
+    }
+
+    // The classes users.dat was serialized from before the binary codec.
+    // The reader matches them by simple name, so these stand in for them.
+    static final class Legacy {
+        static class Transaction implements Serializable {
+            private static final long serialVersionUID = 1L;
+            final String type;
+            final double amount;
+            final String description;
+            final long timestamp;
+
+            Transaction(String type, double amount, String description, long timestamp) {
+                this.type = type;
+                this.amount = amount;
+                this.description = description;
+                this.timestamp = timestamp;
+            }
+        }
+
+        abstract static class User implements Serializable {
+            private static final long serialVersionUID = 2L;
+            String username, phoneNumber, pin, fullName, dob, gender, email, motherName, fatherName,
+                    nationalId, birthCertificate, permanentAddress, presentAddress;
+            double balance;
+            List<Transaction> transactions = new ArrayList<>();
+        }
+
+        static class RegularUser extends User {
+            private static final long serialVersionUID = 1L;
+        }
+    }
+}
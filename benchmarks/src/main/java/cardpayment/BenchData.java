@@ -0,0 +1,83 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.RegularUser;
+import cardpayment.CardPaymentSystem.ShardedStore;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Synthetic accounts and scratch directories shared by the benchmarks
+final class BenchData {
+    static final long OPENING_BALANCE = 1_000_000_00L;
+
+    private BenchData() { }
+
+    static String phone(int i) {
+        return String.format("017%08d", i);
+    }
+
+    static User user(int i) {
+        User u = new RegularUser("user" + i, phone(i), "1234", "user" + i + "@example.com", "NID" + i);
+        u.setFullName("User Number " + i);
+        u.setBalance(OPENING_BALANCE);
+        return u;
+    }
+
+    static UserDirectory directory(int count) {
+        UserDirectory directory = new UserDirectory();
+        for (int i = 0; i < count; i++) directory.add(user(i));
+        return directory;
+    }
+
+    static Persistence persistence(Path dir) {
+        return new Persistence(dir.resolve("users.dat").toFile(), dir.resolve("users.journal").toFile(),
+                dir.resolve("ledger.dat").toFile(), Persistence.Mode.JOURNAL, Integer.MAX_VALUE);
+    }
+
+    static ShardedStore store(Path dir, int shards) {
+        return store(dir, shards, 0);
+    }
+
+    // As above, with the shards on sequencer rings of ringSize, 0 for executors
+    static ShardedStore store(Path dir, int shards, int ringSize) {
+        return ShardedStore.open(dir.toFile(), shards, Persistence.Mode.JOURNAL, Integer.MAX_VALUE, ringSize);
+    }
+
+    // Loads an empty store, fills it with count accounts and snapshots it
+    static UserDirectory populate(Persistence store, int count) throws IOException {
+        UserDirectory users = store.load();
+        for (int i = 0; i < count; i++) users.add(user(i));
+        store.snapshot();
+        return users;
+    }
+
+    static UserDirectory populate(ShardedStore store, int count) throws IOException {
+        UserDirectory users = store.load();
+        for (int i = 0; i < count; i++) users.add(user(i));
+        store.snapshot();
+        return users;
+    }
+
+    static Path tempDir() {
+        try {
+            return Files.createTempDirectory("cardpayment-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(Path dir) {
+        if (dir == null) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException ignored) {}
+    }
+}
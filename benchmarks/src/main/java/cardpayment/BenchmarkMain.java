@@ -0,0 +1,21 @@
+package cardpayment;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// JMH's own launcher, with the gc profiler on unless another -prof is given
+public final class BenchmarkMain {
+    private BenchmarkMain() { }
+
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<>(Arrays.asList(args));
+        if (!argv.contains("-prof")) {
+            argv.add("-prof");
+            argv.add("gc");
+        }
+        Main.main(argv.toArray(new String[0]));
+    }
+}
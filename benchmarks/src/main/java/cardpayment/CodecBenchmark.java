@@ -0,0 +1,65 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// users.dat binary codec against the Java serialization it replaced, in memory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class CodecBenchmark {
+    @Param({"1000", "100000"})
+    int users;
+
+    private List<User> list;
+    private byte[] codecBytes;
+    private byte[] serializedBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        list = BenchData.directory(users).asList();
+        codecBytes = encodeCodec().toByteArray();
+        serializedBytes = encodeSerialization().toByteArray();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream encodeCodec() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        UserCodec.write(list, out);
+        return out;
+    }
+
+    @Benchmark
+    public List<User> decodeCodec() throws IOException {
+        return UserCodec.read(new ByteArrayInputStream(codecBytes));
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream encodeSerialization() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(new ArrayList<>(list));
+        }
+        return out;
+    }
+
+    @Benchmark
+    public Object decodeSerialization() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serializedBytes))) {
+            return ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Transfers from many threads over a small, hot set of accounts. Teardown
+// fails the run if money was created or lost, or a balance fell below the
+// minimum, so this doubles as the engine's concurrency stress check.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ConcurrentTransferBenchmark {
+    @Param({"16", "1000"})
+    int users;
+
+    private Path dir;
+    private Persistence store;
+    private UserDirectory directory;
+    private PaymentEngine engine;
+    private User[] accounts;
+    private String[] phones;
+    private long expectedTotal;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir();
+        store = BenchData.persistence(dir);
+        directory = BenchData.populate(store, users);
+        engine = new PaymentEngine(directory, store);
+        accounts = new User[users];
+        phones = new String[users];
+        for (int i = 0; i < users; i++) {
+            phones[i] = BenchData.phone(i);
+            accounts[i] = directory.findByPhone(phones[i]);
+            // low balances so MIN_BALANCE rejections are part of the mix
+            accounts[i].setBalance(1_000_00);
+            expectedTotal += accounts[i].getBalance();
+        }
+    }
+
+    @TearDown
+    public void verify() throws IOException {
+        long total = 0;
+        for (User u : directory.asList()) {
+            total += u.getBalance();
+            if (u.getBalance() < 100_00) {
+                throw new IllegalStateException(u.getPhoneNumber() + " fell below the minimum balance: " + u.getBalance());
+            }
+        }
+        store.close();
+        BenchData.delete(dir);
+        if (total != expectedTotal) {
+            throw new IllegalStateException("Money not conserved: expected " + expectedTotal + " but found " + total);
+        }
+    }
+
+    @Benchmark
+    public PaymentEngine.Result transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(users);
+        int to = random.nextInt(users - 1);
+        if (to >= from) to++;
+        return engine.transfer(accounts[from], phones[to], random.nextLong(1, 500_00)).join();
+    }
+}
@@ -0,0 +1,44 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// The lookup behind login, the registration duplicate check and transfers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class DirectoryBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int users;
+
+    private UserDirectory directory;
+    private String[] phones;
+    private int next;
+
+    @Setup
+    public void setup() {
+        directory = BenchData.directory(users);
+        phones = new String[1024];
+        for (int i = 0; i < phones.length; i++) {
+            // fresh strings, as typed into the login form
+            phones[i] = new String(BenchData.phone(ThreadLocalRandom.current().nextInt(users)));
+        }
+    }
+
+    @Benchmark
+    public User findUserByPhone() {
+        return directory.findByPhone(phones[next++ & (phones.length - 1)]);
+    }
+
+    @Benchmark
+    public User findUserByPhoneMissing() {
+        return directory.findByPhone("01999999999");
+    }
+}
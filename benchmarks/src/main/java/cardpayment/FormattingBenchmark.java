@@ -0,0 +1,43 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Money;
+import cardpayment.CardPaymentSystem.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// History rendering and amount handling; run with the gc profiler to see
+// bytes allocated per call
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormattingBenchmark {
+    private Transaction transaction;
+    private String amountText;
+    private long amount;
+
+    @Setup
+    public void setup() {
+        transaction = new Transaction("Transfer Out", 12_345_67, "To 01700000042");
+        amountText = "12345.67";
+        amount = 1_234_567_89L;
+    }
+
+    @Benchmark
+    public String transactionToString() {
+        return transaction.toString();
+    }
+
+    @Benchmark
+    public long parseAmount() {
+        return Money.parse(amountText);
+    }
+
+    @Benchmark
+    public String formatAmount() {
+        return Money.format(amount);
+    }
+}
@@ -0,0 +1,59 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.IdempotencyCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// The duplicate check in front of every keyed payment: a repeated key that
+// is answered from the cache, and a new key that is remembered, with the
+// cache full so every insert also evicts
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdempotencyBenchmark {
+    @Param({"100000"})
+    int capacity;
+
+    private IdempotencyCache cache;
+    private String[] phones;
+    private String[] keys;
+    private final CompletableFuture<Object> pending = new CompletableFuture<>();
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        long fresh;
+    }
+
+    @Setup
+    public void setup() {
+        cache = new IdempotencyCache(TimeUnit.DAYS.toMillis(1), capacity);
+        phones = new String[capacity];
+        keys = new String[capacity];
+        long now = System.nanoTime();
+        for (int i = 0; i < capacity; i++) {
+            phones[i] = BenchData.phone(i);
+            keys[i] = Long.toHexString(i * 0x9E3779B97F4A7C15L);
+            cache.claim(phones[i], keys[i], "deposit 100 null", pending, now);
+        }
+    }
+
+    @Benchmark
+    public Object repeat(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == keys.length ? 0 : i + 1;
+        return cache.claim(phones[i], keys[i], "deposit 100 null", pending, System.nanoTime());
+    }
+
+    @Benchmark
+    public Object claimNew(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == keys.length ? 0 : i + 1;
+        return cache.claim(phones[i], Long.toHexString(++cursor.fresh), "deposit 100 null", pending, System.nanoTime());
+    }
+}
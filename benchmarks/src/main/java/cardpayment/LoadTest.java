@@ -0,0 +1,157 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.LoginThrottle;
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.PaymentServer;
+import cardpayment.CardPaymentSystem.SessionManager;
+import cardpayment.CardPaymentSystem.ShardedStore;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Loopback load test for the HTTP front end. Starts the server over a
+// scratch store, then runs many concurrent client sessions, each logging in
+// once and issuing a mix of balance, deposit, transfer and history requests
+// on its session token.
+// Reports throughput and latency percentiles, and checks that no money was
+// created or lost.
+//
+//   java -cp benchmarks/target/benchmarks.jar cardpayment.LoadTest --sessions 500 --ops 40 [--shards 4]
+public final class LoadTest {
+    private LoadTest() { }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = intArg(args, "--sessions", 500);
+        int ops = intArg(args, "--ops", 40);
+        int accounts = Math.max(2, intArg(args, "--accounts", 10_000));
+        int shards = Math.max(1, intArg(args, "--shards", 1));
+
+        // Accounts start with plain PINs and are rehashed on login, so keep the
+        // KDF cheap; this measures the server, not PBKDF2
+        System.setProperty("cardpayment.pin.iterations", System.getProperty("cardpayment.pin.iterations", "1000"));
+
+        Path dir = BenchData.tempDir();
+        ShardedStore store = BenchData.store(dir, shards);
+        UserDirectory users = BenchData.populate(store, accounts);
+        PaymentEngine engine = new PaymentEngine(store);
+        LoginThrottle throttle = new LoginThrottle(5, 300_000, 1000, 1000, 900_000, 100_000);
+        PaymentServer server = new PaymentServer(users, store, engine, throttle, SessionManager.fromSystemProperties());
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        String base = "http://127.0.0.1:" + server.port() + "/api/";
+        System.out.printf("Server on %s (%s); %d sessions x %d ops over %d accounts in %d shards%n",
+                base, server.threading(), sessions, ops, accounts, shards);
+
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        long[][] latencies = new long[sessions][];
+        AtomicLong errors = new AtomicLong();
+        AtomicLong deposited = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(sessions);
+        ExecutorService clients = Executors.newFixedThreadPool(sessions);
+        for (int s = 0; s < sessions; s++) {
+            int session = s;
+            clients.execute(() -> {
+                long[] times = new long[ops + 1];
+                String phone = BenchData.phone(session % accounts);
+                try {
+                    start.await();
+                    String login = call(client, base + "login",
+                            "{\"phone\":\"" + phone + "\",\"pin\":\"1234\"}", times, 0, errors).body();
+                    int at = login.indexOf("\"token\":\"") + 9;
+                    if (at < 9) throw new IllegalStateException("login failed: " + login);
+                    String auth = "\"token\":\"" + login.substring(at, login.indexOf('"', at)) + "\"";
+                    String pinned = auth + ",\"pin\":\"1234\"";
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 1; i <= ops; i++) {
+                        int kind = random.nextInt(10);
+                        if (kind < 3) {
+                            call(client, base + "balance", "{" + auth + "}", times, i, errors);
+                        } else if (kind < 5) {
+                            int status = call(client, base + "deposit", "{" + auth + ",\"amount\":\"1.00\"}", times, i, errors).statusCode();
+                            if (status == 200) deposited.addAndGet(1_00);
+                        } else if (kind < 9) {
+                            String to = BenchData.phone((session + 1 + random.nextInt(accounts - 1)) % accounts);
+                            call(client, base + "transfer",
+                                    "{" + pinned + ",\"to\":\"" + to + "\",\"amount\":\"0.50\"}", times, i, errors);
+                        } else {
+                            call(client, base + "history", "{" + auth + ",\"limit\":20}", times, i, errors);
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    System.err.println("Session " + session + " failed: " + e);
+                } finally {
+                    latencies[session] = times;
+                    done.countDown();
+                }
+            });
+        }
+
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - t0;
+        clients.shutdown();
+        server.stop();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(t -> t > 0).sorted().toArray();
+        long total = 0;
+        for (User u : users.asList()) total += u.getBalance();
+        long expected = accounts * BenchData.OPENING_BALANCE + deposited.get();
+        store.close();
+        BenchData.delete(dir);
+
+        System.out.printf("%d requests in %.2f s: %.0f req/s, %d errors%n",
+                all.length, elapsed / 1e9, all.length / (elapsed / 1e9), errors.get());
+        System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                percentile(all, 0.50) / 1e6, percentile(all, 0.99) / 1e6, percentile(all, 1.0) / 1e6);
+        System.out.println(total == expected ? "Money conserved" : "MONEY NOT CONSERVED: expected " + expected + ", found " + total);
+        if (total != expected) System.exit(1);
+    }
+
+    // Records the round trip in nanos and returns the response. Non-2xx
+    // replies count as errors, except the insufficient-balance rejections a
+    // random workload is expected to hit.
+    private static HttpResponse<String> call(HttpClient client, String url, String json, long[] times, int i, AtomicLong errors)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        long t0 = System.nanoTime();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        times[i] = System.nanoTime() - t0;
+        int status = response.statusCode();
+        if (status != 200 && status != 409 && errors.incrementAndGet() <= 10) {
+            System.err.println(url + " -> " + status + " " + response.body());
+        }
+        return response;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static int intArg(String[] args, String name, int fallback) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) return Integer.parseInt(args[i + 1]);
+        }
+        return fallback;
+    }
+}
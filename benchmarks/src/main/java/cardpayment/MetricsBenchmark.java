@@ -0,0 +1,42 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Cost of recording on the payment hot path, which the gc profiler should
+// show allocating nothing, and of rendering the /metrics page
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+    private final Metrics.Histogram histogram = new Metrics.Histogram();
+
+    @Benchmark
+    public void record() {
+        histogram.record(ThreadLocalRandom.current().nextLong(1_000, 10_000_000));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void recordContended() {
+        record();
+    }
+
+    @Benchmark
+    public void recordOperation() {
+        Metrics.DEPOSIT.record(CardPaymentSystem.PaymentEngine.Result.Status.OK,
+                ThreadLocalRandom.current().nextLong(1_000, 10_000_000));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String prometheus() {
+        return Metrics.prometheus();
+    }
+}
@@ -0,0 +1,76 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// saveUsers/loadUsers: a full users.dat snapshot and a cold load of it.
+// loadUsers returns once logins can start; firstLogin adds looking up one
+// account, and loadAllUsers waits for the background load to finish.
+// Run with -jvmArgsAppend -Dcardpayment.load.threads=0 for the full load.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PersistenceBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int users;
+
+    private Path dir;
+    private Persistence store;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir();
+        store = BenchData.persistence(dir);
+        BenchData.populate(store, users);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        BenchData.delete(dir);
+    }
+
+    @Benchmark
+    public void saveUsers() throws IOException {
+        store.snapshot();
+    }
+
+    @Benchmark
+    public UserDirectory loadUsers() throws IOException {
+        Persistence fresh = BenchData.persistence(dir);
+        try {
+            return fresh.load();
+        } finally {
+            fresh.close();
+        }
+    }
+
+    @Benchmark
+    public User firstLogin() throws IOException {
+        Persistence fresh = BenchData.persistence(dir);
+        try {
+            return fresh.load().findByPhone(BenchData.phone(users / 2));
+        } finally {
+            fresh.close();
+        }
+    }
+
+    @Benchmark
+    public int loadAllUsers() throws IOException {
+        Persistence fresh = BenchData.persistence(dir);
+        try {
+            return fresh.load().size();
+        } finally {
+            fresh.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PinHasher;
+import cardpayment.CardPaymentSystem.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of a PIN check at different PBKDF2 iteration counts, to pick
+// cardpayment.pin.iterations against a per-login latency budget, and of a
+// repeat check answered from the verified-session cache
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PinBenchmark {
+    @Param({"50000", "100000", "210000", "600000"})
+    int iterations;
+
+    private String stored;
+    private User cachedUser;
+
+    @Setup
+    public void setup() {
+        stored = PinHasher.hash("4821", iterations);
+        cachedUser = BenchData.user(0);
+        cachedUser.setPin(stored);
+        PinHasher.verify(cachedUser, "4821");
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return PinHasher.matches(stored, "4821");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean verifyCached() {
+        return PinHasher.verify(cachedUser, "4821");
+    }
+}
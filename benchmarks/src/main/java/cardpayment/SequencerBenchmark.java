@@ -0,0 +1,63 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.ShardedStore;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// The hand-off to the shard thread, on an executor (ringSize 0) or a
+// sequencer ring: a deposit through the engine and journal, and a bare
+// round trip that reads a balance on the shard thread
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SequencerBenchmark {
+    @Param({"0", "4096"})
+    int ringSize;
+
+    @Param({"10000"})
+    int users;
+
+    private Path dir;
+    private ShardedStore store;
+    private PaymentEngine engine;
+    private User[] accounts;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir();
+        store = BenchData.store(dir, 1, ringSize);
+        UserDirectory directory = BenchData.populate(store, users);
+        engine = new PaymentEngine(store);
+        accounts = new User[users];
+        for (int i = 0; i < users; i++) accounts[i] = directory.findByPhone(BenchData.phone(i));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        BenchData.delete(dir);
+    }
+
+    @Benchmark
+    public PaymentEngine.Result deposit() {
+        User u = accounts[ThreadLocalRandom.current().nextInt(users)];
+        return engine.deposit(u, 1_00).join();
+    }
+
+    @Benchmark
+    public long handoff() throws IOException {
+        User u = accounts[ThreadLocalRandom.current().nextInt(users)];
+        return store.shard(u).call(u::getBalance);
+    }
+}
@@ -0,0 +1,52 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.SessionManager;
+import cardpayment.CardPaymentSystem.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Session token lookup, the check in front of every request; the gc
+// profiler should report no allocation for get
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+    @Param({"1000", "100000"})
+    int sessions;
+
+    private SessionManager manager;
+    private long[] tokens;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        manager = new SessionManager(TimeUnit.HOURS.toMillis(1), sessions);
+        tokens = new long[sessions];
+        long now = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            User u = BenchData.user(i);
+            tokens[i] = manager.open(u, now).token();
+        }
+    }
+
+    @Benchmark
+    public User get(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == tokens.length ? 0 : i + 1;
+        return manager.get(tokens[i], System.nanoTime()).user();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public User getContended(Cursor cursor) {
+        return get(cursor);
+    }
+}
@@ -0,0 +1,73 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.ShardedStore;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Transfer throughput by shard count, between random pairs of accounts, so
+// with n shards all but 1/n of them cross shards. Scaling needs as many
+// cores as shards. Teardown fails the run if money was created or lost.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ShardedTransferBenchmark {
+    @Param({"1", "2", "4", "8"})
+    int shards;
+
+    @Param({"10000"})
+    int users;
+
+    private Path dir;
+    private ShardedStore store;
+    private UserDirectory directory;
+    private PaymentEngine engine;
+    private User[] accounts;
+    private String[] phones;
+    private long expectedTotal;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir();
+        store = BenchData.store(dir, shards);
+        directory = BenchData.populate(store, users);
+        engine = new PaymentEngine(store);
+        accounts = new User[users];
+        phones = new String[users];
+        for (int i = 0; i < users; i++) {
+            phones[i] = BenchData.phone(i);
+            accounts[i] = directory.findByPhone(phones[i]);
+            expectedTotal += accounts[i].getBalance();
+        }
+    }
+
+    @TearDown
+    public void verify() throws IOException {
+        long total = 0;
+        for (User u : directory.asList()) total += u.getBalance();
+        store.close();
+        BenchData.delete(dir);
+        if (total != expectedTotal) {
+            throw new IllegalStateException("Money not conserved: expected " + expectedTotal + " but found " + total);
+        }
+    }
+
+    @Benchmark
+    public PaymentEngine.Result transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(users);
+        int to = random.nextInt(users - 1);
+        if (to >= from) to++;
+        return engine.transfer(accounts[from], phones[to], random.nextLong(1, 500_00)).join();
+    }
+}
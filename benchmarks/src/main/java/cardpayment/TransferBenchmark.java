@@ -0,0 +1,60 @@
+package cardpayment;
+
+import cardpayment.CardPaymentSystem.PaymentEngine;
+import cardpayment.CardPaymentSystem.Persistence;
+import cardpayment.CardPaymentSystem.User;
+import cardpayment.CardPaymentSystem.UserDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// The full transfer path: lookup, locks, ledger records and the journal write
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TransferBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int users;
+
+    private Path dir;
+    private Persistence store;
+    private UserDirectory directory;
+    private PaymentEngine engine;
+    private User[] accounts;
+    private String[] phones;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = BenchData.tempDir();
+        store = BenchData.persistence(dir);
+        directory = BenchData.populate(store, users);
+        engine = new PaymentEngine(directory, store);
+        accounts = new User[users];
+        phones = new String[users];
+        for (int i = 0; i < users; i++) {
+            phones[i] = BenchData.phone(i);
+            accounts[i] = directory.findByPhone(phones[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        BenchData.delete(dir);
+    }
+
+    @Benchmark
+    public PaymentEngine.Result transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(users);
+        int to = random.nextInt(users - 1);
+        if (to >= from) to++;
+        return engine.transfer(accounts[from], phones[to], 1_00).join();
+    }
+}